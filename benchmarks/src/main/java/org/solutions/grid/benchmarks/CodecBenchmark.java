@@ -0,0 +1,86 @@
+package org.solutions.grid.benchmarks;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import cz.cvut.fel.esw.server.proto.*;
+import org.openjdk.jmh.annotations.*;
+import org.solutions.grid.datastructures.WalkBuffer;
+import org.solutions.grid.server.RequestDecoder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of request frames by the generated protobuf parser and by the {@link RequestDecoder}
+ * of the server, which appends walks straight to the walk buffer of the connection.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class CodecBenchmark {
+    /**
+     * Number of locations of the decoded walk.
+     */
+    @Param({"10", "100"})
+    public int walkLocations;
+
+    private byte[] walkFrame;
+    private byte[] oneToOneFrame;
+    private final RequestDecoder decoder = new RequestDecoder();
+    private final WalkBuffer walks = new WalkBuffer();
+
+    @Setup(Level.Trial)
+    public void encodeFrames() {
+        RoadNetwork network = new RoadNetwork(10000, 1L);
+        WalkBuffer source = network.walks(1, walkLocations - 1, new Random(2L));
+        Walk.Builder walk = Walk.newBuilder();
+        for (int l = 0; l < source.getLocationCount(); l++) {
+            walk.addLocations(Location.newBuilder().setX(source.getX(l)).setY(source.getY(l)));
+            if (l < source.getLocationCount() - 1) {
+                walk.addLengths((int) source.getLength(l));
+            }
+        }
+        walkFrame = Request.newBuilder().setWalk(walk).build().toByteArray();
+        oneToOneFrame = Request.newBuilder().setOneToOne(OneToOne.newBuilder()
+                .setOrigin(Location.newBuilder().setX(network.getX(0)).setY(network.getY(0)))
+                .setDestination(Location.newBuilder().setX(network.getX(1)).setY(network.getY(1))))
+                .build().toByteArray();
+    }
+
+    @Benchmark
+    public Request parseWalk() throws InvalidProtocolBufferException {
+        return Request.parseFrom(walkFrame);
+    }
+
+    /**
+     * Parses the walk and copies it into the walk buffer, as the server did before the decoder.
+     */
+    @Benchmark
+    public WalkBuffer parseWalkIntoBuffer() throws InvalidProtocolBufferException {
+        walks.clear();
+        walks.addWalk(Request.parseFrom(walkFrame).getWalk());
+        return walks;
+    }
+
+    @Benchmark
+    public WalkBuffer decodeWalk() throws IOException {
+        walks.clear();
+        decoder.decode(CodedInputStream.newInstance(walkFrame), walks);
+        return walks;
+    }
+
+    @Benchmark
+    public Request parseOneToOne() throws InvalidProtocolBufferException {
+        return Request.parseFrom(oneToOneFrame);
+    }
+
+    @Benchmark
+    public int decodeOneToOne() throws IOException {
+        decoder.decode(CodedInputStream.newInstance(oneToOneFrame), walks);
+        return decoder.getDestinationY();
+    }
+}
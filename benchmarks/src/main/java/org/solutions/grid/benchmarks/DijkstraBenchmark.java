@@ -0,0 +1,62 @@
+package org.solutions.grid.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.solutions.grid.algorithms.Dijkstra;
+import org.solutions.grid.algorithms.SearchWorkspace;
+import org.solutions.grid.datastructures.CsrGraph;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shortest path searches on the CSR snapshot of road networks of several sizes,
+ * with one workspace per thread as the connection threads of the server use them.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class DijkstraBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"10000", "100000", "1000000"})
+    public int locations;
+
+    private CsrGraph csr;
+    private int[] origins;
+    private int[] destinations;
+
+    @Setup(Level.Trial)
+    public void buildGraph() {
+        csr = new RoadNetwork(locations, 1L).graph(20, 2L).getCsr();
+        Random random = new Random(3L);
+        origins = new int[QUERIES];
+        destinations = new int[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            origins[q] = random.nextInt(csr.getNodeCount());
+            destinations[q] = random.nextInt(csr.getNodeCount());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Search {
+        final SearchWorkspace workspace = new SearchWorkspace();
+        int query;
+    }
+
+    @Benchmark
+    public long oneToAll(Search search) {
+        int q = search.query++ & (QUERIES - 1);
+        Dijkstra.search(csr, search.workspace, origins[q], -1);
+        return search.workspace.settledDistanceSum();
+    }
+
+    @Benchmark
+    public long oneToOne(Search search) {
+        int q = search.query++ & (QUERIES - 1);
+        Dijkstra.search(csr, search.workspace, origins[q], destinations[q]);
+        return search.workspace.distance(destinations[q]);
+    }
+}
@@ -0,0 +1,64 @@
+package org.solutions.grid.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.solutions.grid.datastructures.EdgeStore;
+import org.solutions.grid.datastructures.Graph;
+import org.solutions.grid.datastructures.LocationRecord;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup of existing edges by their locations, done for every path of an ingested walk.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class EdgeLookupBenchmark {
+    private static final int QUERIES = 1 << 16;
+
+    @Param({"10000", "100000", "1000000"})
+    public int locations;
+
+    private Graph graph;
+    private LocationRecord[] origins;
+    private LocationRecord[] destinations;
+
+    @Setup(Level.Trial)
+    public void buildGraph() {
+        graph = new RoadNetwork(locations, 1L).graph(20, 2L);
+        List<LocationRecord> records = graph.getLocations();
+        EdgeStore edges = graph.getEdges();
+        int[] targets = new int[16];
+        Random random = new Random(3L);
+        origins = new LocationRecord[QUERIES];
+        destinations = new LocationRecord[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            int from;
+            do {
+                from = random.nextInt(records.size());
+            } while (edges.degree(from) == 0);
+            if (targets.length < edges.degree(from)) {
+                targets = new int[edges.degree(from)];
+            }
+            int degree = edges.readTargets(from, targets, 0);
+            origins[q] = records.get(from);
+            destinations[q] = records.get(targets[random.nextInt(degree)]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int query;
+    }
+
+    @Benchmark
+    public int findEdge(Cursor cursor) {
+        int q = cursor.query++ & (QUERIES - 1);
+        return graph.findEdge(origins[q], destinations[q]);
+    }
+}
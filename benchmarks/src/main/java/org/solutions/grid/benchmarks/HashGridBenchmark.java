@@ -0,0 +1,83 @@
+package org.solutions.grid.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.solutions.grid.datastructures.HashGrid;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches and inserts of the grid with the junctions of road networks of several sizes.
+ * A hit is a position a few metres off a junction, a miss lies between the junctions.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class HashGridBenchmark {
+    private static final int QUERIES = 1 << 16;
+
+    @Param({"10000", "100000", "1000000"})
+    public int locations;
+
+    private RoadNetwork network;
+    private HashGrid grid;
+    private int[] hitX;
+    private int[] hitY;
+    private int[] missX;
+    private int[] missY;
+
+    @Setup(Level.Trial)
+    public void buildGrid() {
+        network = new RoadNetwork(locations, 1L);
+        grid = fill(new HashGrid());
+        Random random = new Random(3L);
+        hitX = new int[QUERIES];
+        hitY = new int[QUERIES];
+        missX = new int[QUERIES];
+        missY = new int[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            int junction = random.nextInt(network.getJunctions());
+            hitX[q] = network.getX(junction) + random.nextInt(201) - 100;
+            hitY[q] = network.getY(junction) + random.nextInt(201) - 100;
+            missX[q] = network.getX(junction) + RoadNetwork.SPACING / 2;
+            missY[q] = network.getY(junction) + RoadNetwork.SPACING / 2;
+        }
+    }
+
+    private HashGrid fill(HashGrid grid) {
+        for (int j = 0; j < network.getJunctions(); j++) {
+            grid.insert(network.getX(j), network.getY(j), j);
+        }
+        return grid;
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int query;
+    }
+
+    @Benchmark
+    public int locationIdHit(Cursor cursor) {
+        int q = cursor.query++ & (QUERIES - 1);
+        return grid.locationId(hitX[q], hitY[q]);
+    }
+
+    @Benchmark
+    public int locationIdMiss(Cursor cursor) {
+        int q = cursor.query++ & (QUERIES - 1);
+        return grid.locationId(missX[q], missY[q]);
+    }
+
+    /**
+     * Inserts all junctions into an empty grid, growing it from its initial capacity.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public HashGrid insertAll() {
+        return fill(new HashGrid());
+    }
+}
@@ -0,0 +1,54 @@
+package org.solutions.grid.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.solutions.grid.datastructures.Graph;
+import org.solutions.grid.datastructures.WalkBuffer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingestion of walk batches into a road network graph of several sizes, including the refresh
+ * of the CSR snapshot at the synchronization point.
+ * The walks follow the roads of the graph, so a batch mostly updates edges the graph already has.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class IngestionBenchmark {
+    private static final int BATCHES = 64;
+
+    @Param({"10000", "100000", "1000000"})
+    public int locations;
+
+    /**
+     * Number of walks of one batch, the walks of all clients at one synchronization point.
+     */
+    @Param({"100", "10000"})
+    public int walksPerBatch;
+
+    private Graph graph;
+    private WalkBuffer[] batches;
+    private int batch;
+
+    @Setup(Level.Trial)
+    public void buildGraph() {
+        RoadNetwork network = new RoadNetwork(locations, 1L);
+        graph = network.graph(20, 2L);
+        Random random = new Random(3L);
+        batches = new WalkBuffer[BATCHES];
+        for (int b = 0; b < BATCHES; b++) {
+            batches[b] = network.walks(walksPerBatch, 20, random);
+        }
+    }
+
+    @Benchmark
+    public long addWalksAndCommit() {
+        graph.addWalks(batches[batch++ & (BATCHES - 1)]);
+        graph.commitBatch();
+        return graph.getVersion();
+    }
+}
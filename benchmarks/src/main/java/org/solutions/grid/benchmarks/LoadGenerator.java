@@ -0,0 +1,427 @@
+package org.solutions.grid.benchmarks;
+
+import com.google.protobuf.Message;
+import cz.cvut.fel.esw.server.proto.*;
+import org.solutions.grid.datastructures.WalkBuffer;
+import org.solutions.grid.metrics.LatencyHistogram;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator speaking the length-prefixed protobuf protocol of the server over TCP.
+ * <p>
+ * Every connection walks the roads of a seeded {@link RoadNetwork} and queries locations it has walked,
+ * so its queries find their locations in the snapshot of its own synchronization point. Requests are
+ * drawn from a configurable mix. With a rate the load is open-loop: every connection sends its requests
+ * at Poisson arrival times without waiting for the responses, and the latency of a request is measured
+ * from the time it was due to be sent, so a stalled server is charged for the requests queued behind
+ * the stall instead of hiding it (coordinated omission). Without a rate every connection sends its next
+ * request when the previous one is answered.
+ * <p>
+ * With a compare port every request is also sent to a second server, for example a primary with read
+ * replicas or a cluster coordinator, and the two responses are compared. The connections then take turns,
+ * one request at a time answered by both servers, so both apply the walks and resets in the same order
+ * and must give the same answers. Differing responses are counted and the first few printed, together
+ * with the latency of each server.
+ * <p>
+ * Usage: {@code LoadGenerator [--host=localhost] [--port=1263] [--compare-host=localhost] [--compare-port=0]
+ * [--connections=8] [--rate=0] [--duration=30] [--warmup=5] [--mix=walk:80,onetoone:15,onetoall:5,reset:0]
+ * [--locations=100000] [--walk-steps=20] [--preload-walks=100] [--seed=1]}, the rate in requests per second
+ * of all connections together.
+ */
+public class LoadGenerator {
+    private enum Type {
+        WALK, ONE_TO_ONE, ONE_TO_ALL, RESET
+    }
+
+    /**
+     * Walked locations a connection remembers for its queries.
+     */
+    private static final int KNOWN_LOCATIONS = 1024;
+    /**
+     * Differing responses printed in full.
+     */
+    private static final int PRINTED_MISMATCHES = 10;
+
+    private final String host;
+    private final int port;
+    private final String compareHost;
+    private final int comparePort;
+    private final int connections;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int[] mix = new int[Type.values().length];
+    private final int walkSteps;
+    private final int preloadWalks;
+    private final long seed;
+    private final RoadNetwork network;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Type.values().length];
+    private final AtomicLong[] errors = new AtomicLong[Type.values().length];
+    private final LatencyHistogram total = new LatencyHistogram();
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+    /**
+     * Latencies of the two servers compared, guarded by this like the counts of compared responses.
+     */
+    private final LatencyHistogram[] compared = {new LatencyHistogram(), new LatencyHistogram()};
+    private final long[] comparedErrors = new long[2];
+    private long comparedCount;
+    private long mismatches;
+
+    private LoadGenerator(String[] args) {
+        host = option(args, "host", "localhost");
+        port = Integer.parseInt(option(args, "port", "1263"));
+        compareHost = option(args, "compare-host", host);
+        comparePort = Integer.parseInt(option(args, "compare-port", "0"));
+        connections = Integer.parseInt(option(args, "connections", "8"));
+        rate = Double.parseDouble(option(args, "rate", "0"));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(args, "duration", "30")));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(args, "warmup", "5")));
+        for (String part : option(args, "mix", "walk:80,onetoone:15,onetoall:5,reset:0").split(",")) {
+            String[] weight = part.split(":");
+            mix[type(weight[0].trim()).ordinal()] = Integer.parseInt(weight[1].trim());
+        }
+        walkSteps = Integer.parseInt(option(args, "walk-steps", "20"));
+        preloadWalks = Integer.parseInt(option(args, "preload-walks", "100"));
+        seed = Long.parseLong(option(args, "seed", "1"));
+        network = new RoadNetwork(Integer.parseInt(option(args, "locations", "100000")), seed);
+        for (int t = 0; t < histograms.length; t++) {
+            histograms[t] = new LatencyHistogram();
+            errors[t] = new AtomicLong();
+        }
+        if (comparePort > 0 && rate > 0) {
+            throw new IllegalArgumentException("Servers are compared one request at a time, without a rate");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(args).run();
+    }
+
+    private void run() throws Exception {
+        CountDownLatch preloaded = new CountDownLatch(connections);
+        CountDownLatch started = new CountDownLatch(1);
+        Thread[] threads = new Thread[connections];
+        for (int c = 0; c < connections; c++) {
+            Connection connection = new Connection(c, preloaded, started);
+            threads[c] = Thread.ofVirtual().name("load-" + c).start(connection);
+        }
+        preloaded.await();
+        long start = System.nanoTime();
+        measureFrom = start + warmupNanos;
+        measureUntil = measureFrom + durationNanos;
+        started.countDown();
+        System.out.printf(Locale.ROOT, "%d connections, %s, warm-up %d s, measuring %d s%n", connections,
+                rate > 0 ? String.format(Locale.ROOT, "open loop at %.0f requests/s", rate)
+                        : comparePort > 0 ? "comparing " + host + ":" + port + " with " + compareHost + ":" + comparePort
+                        : "closed loop",
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report();
+    }
+
+    private void report() {
+        double seconds = durationNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%-11s %9s %7s %10s %9s %9s %9s %9s %9s %9s %9s%n", "request", "count",
+                "errors", "req/s", "mean ms", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        for (Type type : Type.values()) {
+            if (mix[type.ordinal()] > 0) {
+                print(type.name().toLowerCase(Locale.ROOT), histograms[type.ordinal()].snapshot(),
+                        errors[type.ordinal()].get(), seconds);
+            }
+        }
+        long allErrors = 0;
+        for (AtomicLong error : errors) {
+            allErrors += error.get();
+        }
+        print("all", total.snapshot(), allErrors, seconds);
+        if (comparePort > 0) {
+            System.out.printf(Locale.ROOT, "%nserver      %9s %7s %10s %9s %9s %9s %9s %9s %9s %9s%n", "count",
+                    "errors", "req/s", "mean ms", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+            String[] names = {"first", "second"};
+            for (int s = 0; s < compared.length; s++) {
+                LatencyHistogram.Snapshot snapshot = compared[s].snapshot();
+                /* One request at a time, so the throughput is that of the time spent waiting for the server. */
+                print(names[s], snapshot, comparedErrors[s], snapshot.getCount() * snapshot.getMean() / 1e9);
+            }
+            System.out.printf(Locale.ROOT, "%d responses compared, %d mismatches%n", comparedCount, mismatches);
+        }
+    }
+
+    private static void print(String name, LatencyHistogram.Snapshot snapshot, long errors, double seconds) {
+        System.out.printf(Locale.ROOT, "%-11s %9d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name,
+                snapshot.getCount(), errors, snapshot.getCount() / seconds, snapshot.getMean() / 1e6,
+                snapshot.valueAt(50) / 1e6, snapshot.valueAt(90) / 1e6, snapshot.valueAt(99) / 1e6,
+                snapshot.valueAt(99.9) / 1e6, snapshot.valueAt(99.99) / 1e6, snapshot.getMax() / 1e6);
+    }
+
+    /**
+     * Records the latency of a request due at the given time if it was due within the measured period.
+     */
+    private void record(Type type, long due, Response response) {
+        if (due < measureFrom || due >= measureUntil) return;
+        long latency = System.nanoTime() - due;
+        histograms[type.ordinal()].record(latency);
+        total.record(latency);
+        if (response.getStatus() != Response.Status.OK) {
+            errors[type.ordinal()].incrementAndGet();
+        }
+    }
+
+    /**
+     * Compares the responses of the two servers to a request, the latencies of the servers counted if the
+     * request was sent within the measured period.
+     * @param between time the first server answered and the request was sent to the second
+     */
+    private void compare(Request request, long sent, long between, Response response, Response other) {
+        comparedCount++;
+        if (!response.equals(other) && ++mismatches <= PRINTED_MISMATCHES) {
+            System.out.printf("Mismatch on %s%n  %s:%d answered %s%n  %s:%d answered %s%n",
+                    oneLine(request), host, port, oneLine(response), compareHost, comparePort, oneLine(other));
+        }
+        if (sent < measureFrom || sent >= measureUntil) return;
+        compared[0].record(between - sent);
+        compared[1].record(System.nanoTime() - between);
+        if (response.getStatus() != Response.Status.OK) comparedErrors[0]++;
+        if (other.getStatus() != Response.Status.OK) comparedErrors[1]++;
+    }
+
+    private static String oneLine(Message message) {
+        return message.toString().trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Request sent and waiting for its response.
+     */
+    private record Pending(Type type, long due) {
+    }
+
+    private static final Pending END = new Pending(null, 0L);
+
+    /**
+     * One client connection, its requests are sent by its thread and, in the open loop, answered to another.
+     */
+    private class Connection implements Runnable {
+        private final Random random;
+        private final CountDownLatch preloaded;
+        private final CountDownLatch started;
+        private final int[] knownX = new int[KNOWN_LOCATIONS];
+        private final int[] knownY = new int[KNOWN_LOCATIONS];
+        private int knownCount;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private DataOutputStream compareOut;
+        private DataInputStream compareIn;
+
+        private Connection(int index, CountDownLatch preloaded, CountDownLatch started) {
+            this.random = new Random(seed * 1_000_003L + index);
+            this.preloaded = preloaded;
+            this.started = started;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket(host, port);
+                 Socket compareSocket = comparePort > 0 ? new Socket(compareHost, comparePort) : null) {
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                if (compareSocket != null) {
+                    compareSocket.setTcpNoDelay(true);
+                    compareOut = new DataOutputStream(new BufferedOutputStream(compareSocket.getOutputStream(), 1 << 16));
+                    compareIn = new DataInputStream(new BufferedInputStream(compareSocket.getInputStream(), 1 << 16));
+                }
+                /* Walks the connection queries later, synchronized before the measurement starts. */
+                for (int w = 0; w < preloadWalks; w++) {
+                    call(walk());
+                }
+                call(oneToOne());
+                preloaded.countDown();
+                started.await();
+                if (rate > 0) {
+                    openLoop();
+                } else {
+                    closedLoop();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                preloaded.countDown();
+            }
+        }
+
+        private void closedLoop() throws IOException {
+            while (true) {
+                long due = System.nanoTime();
+                if (due >= measureUntil) return;
+                Type type = nextType();
+                record(type, due, call(request(type)));
+            }
+        }
+
+        /**
+         * Sends the request and waits for the response, when comparing to both servers in turn with the
+         * other connections waiting.
+         * @return response of the first server
+         */
+        private Response call(Request request) throws IOException {
+            if (compareOut == null) {
+                send(request);
+                return receive();
+            }
+            synchronized (LoadGenerator.this) {
+                long sent = System.nanoTime();
+                send(request);
+                Response response = receive();
+                long between = System.nanoTime();
+                writeFrame(compareOut, request);
+                compare(request, sent, between, response, readFrame(compareIn));
+                return response;
+            }
+        }
+
+        private void openLoop() throws IOException, InterruptedException {
+            BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+            Thread receiver = Thread.ofVirtual().start(() -> {
+                try {
+                    for (Pending request = pending.take(); request != END; request = pending.take()) {
+                        record(request.type, request.due, receive());
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            double meanIntervalNanos = 1e9 * connections / rate;
+            long due = System.nanoTime();
+            try {
+                while (true) {
+                    due += (long) (-Math.log(1.0 - random.nextDouble()) * meanIntervalNanos);
+                    if (due >= measureUntil) break;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    Type type = nextType();
+                    Request request = request(type);
+                    pending.put(new Pending(type, due));
+                    send(request);
+                }
+            } finally {
+                pending.put(END);
+                receiver.join();
+            }
+        }
+
+        private Type nextType() {
+            int weights = 0;
+            for (int weight : mix) {
+                weights += weight;
+            }
+            int draw = random.nextInt(weights);
+            for (Type type : Type.values()) {
+                draw -= mix[type.ordinal()];
+                if (draw < 0) return type;
+            }
+            return Type.WALK;
+        }
+
+        private Request request(Type type) {
+            switch (type) {
+                case ONE_TO_ONE:
+                    return oneToOne();
+                case ONE_TO_ALL:
+                    return Request.newBuilder().setOneToAll(OneToAll.newBuilder().setOrigin(knownLocation())).build();
+                case RESET:
+                    return Request.newBuilder().setReset(Reset.newBuilder()).build();
+                default:
+                    return walk();
+            }
+        }
+
+        private Request walk() {
+            WalkBuffer walks = network.walks(1, walkSteps, random);
+            Walk.Builder walk = Walk.newBuilder();
+            for (int l = 0; l < walks.getLocationCount(); l++) {
+                walk.addLocations(Location.newBuilder().setX(walks.getX(l)).setY(walks.getY(l)));
+                if (l < walks.getLocationCount() - 1) {
+                    walk.addLengths((int) walks.getLength(l));
+                }
+                int slot = knownCount++ % KNOWN_LOCATIONS;
+                knownX[slot] = walks.getX(l);
+                knownY[slot] = walks.getY(l);
+            }
+            return Request.newBuilder().setWalk(walk).build();
+        }
+
+        private Request oneToOne() {
+            return Request.newBuilder().setOneToOne(OneToOne.newBuilder()
+                    .setOrigin(knownLocation()).setDestination(knownLocation())).build();
+        }
+
+        private Location knownLocation() {
+            int slot = random.nextInt(Math.max(1, Math.min(knownCount, KNOWN_LOCATIONS)));
+            return Location.newBuilder().setX(knownX[slot]).setY(knownY[slot]).build();
+        }
+
+        private void send(Request request) throws IOException {
+            writeFrame(out, request);
+        }
+
+        private Response receive() throws IOException {
+            return readFrame(in);
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, Request request) throws IOException {
+        byte[] frame = request.toByteArray();
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private static Response readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        return Response.parseFrom(frame);
+    }
+
+    private static Type type(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "walk":
+                return Type.WALK;
+            case "onetoone":
+                return Type.ONE_TO_ONE;
+            case "onetoall":
+                return Type.ONE_TO_ALL;
+            case "reset":
+                return Type.RESET;
+            default:
+                throw new IllegalArgumentException("Unknown request type in the mix: " + name);
+        }
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) return arg.substring(prefix.length());
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,140 @@
+package org.solutions.grid.benchmarks;
+
+import org.solutions.grid.datastructures.Graph;
+import org.solutions.grid.datastructures.WalkBuffer;
+
+import java.util.Random;
+
+/**
+ * Seeded synthetic road network for the benchmarks, the same seed always gives the same locations and walks.
+ * <p>
+ * Junctions lie on a square lattice with their positions jittered, so the grid sees irregular cells.
+ * A walk is a random walk of a vehicle along the lattice roads; every reported position is off the junction
+ * by a few metres, like a GPS fix, and every reported length is the straight distance stretched by a random
+ * detour, so repeated walks over a road average different lengths. Some roads are closed, which gives the
+ * shortest path searches dead ends and detours.
+ */
+public class RoadNetwork {
+    /**
+     * Distance of neighbouring junctions, twice the distance at which two locations are the same.
+     */
+    public static final int SPACING = 1500;
+    private static final int JITTER = 200;
+    private static final int GPS_ERROR = 50;
+    private static final double CLOSED_ROADS = 0.1;
+    private static final int[] STEP_X = {1, -1, 0, 0};
+    private static final int[] STEP_Y = {0, 0, 1, -1};
+
+    private final int side;
+    private final int[] junctionX;
+    private final int[] junctionY;
+    /**
+     * Closed roads, two bits per junction: towards the right and towards the top neighbour.
+     */
+    private final byte[] closed;
+
+    /**
+     * @param junctions approximate number of junctions, rounded up to a square
+     * @param seed seed of the layout
+     */
+    public RoadNetwork(int junctions, long seed) {
+        Random random = new Random(seed);
+        side = (int) Math.ceil(Math.sqrt(junctions));
+        junctionX = new int[side * side];
+        junctionY = new int[side * side];
+        closed = new byte[side * side];
+        for (int j = 0; j < junctionX.length; j++) {
+            junctionX[j] = (j % side) * SPACING + random.nextInt(2 * JITTER + 1) - JITTER;
+            junctionY[j] = (j / side) * SPACING + random.nextInt(2 * JITTER + 1) - JITTER;
+            if (random.nextDouble() < CLOSED_ROADS) closed[j] |= 1;
+            if (random.nextDouble() < CLOSED_ROADS) closed[j] |= 2;
+        }
+    }
+
+    /**
+     * @return number of junctions of the lattice
+     */
+    public int getJunctions() {
+        return junctionX.length;
+    }
+
+    public int getX(int junction) {
+        return junctionX[junction];
+    }
+
+    public int getY(int junction) {
+        return junctionY[junction];
+    }
+
+    /**
+     * Random walks starting at uniformly chosen junctions.
+     * @param count number of walks
+     * @param steps number of roads of every walk, fewer if the walk gets stuck
+     * @param random source of the walks
+     * @return buffer with the walks
+     */
+    public WalkBuffer walks(int count, int steps, Random random) {
+        WalkBuffer walks = new WalkBuffer();
+        for (int w = 0; w < count; w++) {
+            int junction = random.nextInt(junctionX.length);
+            walks.beginWalk();
+            addFix(walks, junction, random);
+            for (int s = 0; s < steps; s++) {
+                int next = step(junction, random);
+                if (next < 0) break;
+                double dx = junctionX[next] - junctionX[junction];
+                double dy = junctionY[next] - junctionY[junction];
+                walks.addLength((int) (Math.sqrt(dx * dx + dy * dy) * (1.0 + 0.3 * random.nextDouble())));
+                addFix(walks, next, random);
+                junction = next;
+            }
+            walks.endWalk();
+        }
+        return walks;
+    }
+
+    /**
+     * Graph built from enough walks to visit nearly all junctions three times.
+     * @param steps number of roads of every walk
+     * @param seed seed of the walks
+     */
+    public Graph graph(int steps, long seed) {
+        Random random = new Random(seed);
+        Graph graph = new Graph(junctionX.length);
+        int remaining = 3 * junctionX.length / steps + 1;
+        while (remaining > 0) {
+            int count = Math.min(remaining, 10000);
+            graph.addWalks(walks(count, steps, random));
+            graph.commitBatch();
+            remaining -= count;
+        }
+        return graph;
+    }
+
+    private void addFix(WalkBuffer walks, int junction, Random random) {
+        walks.addLocation(junctionX[junction] + random.nextInt(2 * GPS_ERROR + 1) - GPS_ERROR,
+                junctionY[junction] + random.nextInt(2 * GPS_ERROR + 1) - GPS_ERROR);
+    }
+
+    /**
+     * @return junction reached by an open road in a random direction, -1 if all roads are closed
+     */
+    private int step(int junction, Random random) {
+        int first = random.nextInt(4);
+        for (int d = 0; d < 4; d++) {
+            int direction = (first + d) & 3;
+            int x = junction % side + STEP_X[direction];
+            int y = junction / side + STEP_Y[direction];
+            if (x < 0 || y < 0 || x >= side || y >= side) continue;
+            int next = y * side + x;
+            if (!isClosed(junction, next)) return next;
+        }
+        return -1;
+    }
+
+    private boolean isClosed(int from, int to) {
+        int lower = Math.min(from, to);
+        int bit = Math.abs(to - from) == 1 ? 1 : 2;
+        return (closed[lower] & bit) != 0;
+    }
+}
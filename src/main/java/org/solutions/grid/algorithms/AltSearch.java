@@ -0,0 +1,52 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.datastructures.CsrGraph;
+
+/**
+ * A* search for OneToOne queries guided by landmark lower bounds.
+ * Locations are expanded in the order of their distance from the origin plus the lower bound
+ * of the remaining distance, so the search heads towards the destination.
+ * Locations added after the landmark tables were computed get a zero bound, which keeps the bounds
+ * admissible but not necessarily consistent, so an expanded location is expanded again
+ * if a shorter path to it is found later.
+ */
+public class AltSearch {
+
+    /**
+     * Finds the shortest path length between two locations.
+     * @param csr snapshot of the graph
+     * @param workspace workspace of the search
+     * @param tables landmark tables usable on the snapshot
+     * @param originId id of the origin location
+     * @param destinationId id of the destination location
+     * @return length of the shortest path, {@link Long#MAX_VALUE} if the destination is unreachable
+     */
+    public static long search(CsrGraph csr, SearchWorkspace workspace,
+                              LandmarkIndex.Tables tables, int originId, int destinationId) {
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        long[] avgWeight = csr.getAvgWeight();
+        IndexedDaryHeap heap = workspace.getHeap();
+
+        workspace.begin(csr.getNodeCount());
+        workspace.setDistance(originId, 0L);
+        heap.insertOrDecrease(originId, tables.lowerBound(originId, destinationId));
+
+        while (!heap.isEmpty()) {
+            int u = heap.poll();
+            if (u == destinationId) {
+                return workspace.distance(u);
+            }
+            long currentDist = workspace.distance(u);
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int v = targets[e];
+                long newDist = currentDist + avgWeight[e];
+                if (newDist < workspace.distance(v)) {
+                    workspace.setDistance(v, newDist);
+                    heap.insertOrDecrease(v, newDist + tables.lowerBound(v, destinationId));
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
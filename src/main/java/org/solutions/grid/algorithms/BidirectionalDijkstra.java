@@ -0,0 +1,78 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.datastructures.CsrGraph;
+
+/**
+ * Bidirectional Dijkstra's algorithm for OneToOne queries.
+ * A forward search from the origin over out-edges and a backward search from the destination
+ * over in-edges grow towards each other, always expanding the side with the smaller heap minimum.
+ * Every edge scanned into a location already reached by the other side gives a candidate path;
+ * the search stops once the two heap minimums together are no shorter than the best candidate,
+ * as no path through unsettled locations can be shorter then.
+ */
+public class BidirectionalDijkstra {
+
+    /**
+     * Finds the shortest path length between two locations.
+     * @param csr snapshot of the graph with both out- and in-edges
+     * @param forward workspace of the search from the origin
+     * @param backward workspace of the search from the destination
+     * @param originId id of the origin location
+     * @param destinationId id of the destination location
+     * @return length of the shortest path, {@link Long#MAX_VALUE} if the destination is unreachable
+     */
+    public static long search(CsrGraph csr, SearchWorkspace forward, SearchWorkspace backward,
+                              int originId, int destinationId) {
+        forward.begin(csr.getNodeCount());
+        backward.begin(csr.getNodeCount());
+        if (originId == destinationId) {
+            return 0L;
+        }
+        IndexedDaryHeap forwardHeap = forward.getHeap();
+        IndexedDaryHeap backwardHeap = backward.getHeap();
+        forward.setDistance(originId, 0L);
+        forwardHeap.insertOrDecrease(originId, 0L);
+        backward.setDistance(destinationId, 0L);
+        backwardHeap.insertOrDecrease(destinationId, 0L);
+
+        long best = Long.MAX_VALUE;
+        while (!forwardHeap.isEmpty() && !backwardHeap.isEmpty()) {
+            long forwardMin = forwardHeap.minKey();
+            long backwardMin = backwardHeap.minKey();
+            if (forwardMin + backwardMin >= best) {
+                break;
+            }
+            if (forwardMin <= backwardMin) {
+                best = expand(forward, backward, csr.getOffsets(), csr.getTargets(), csr.getAvgWeight(), best);
+            } else {
+                best = expand(backward, forward, csr.getInOffsets(), csr.getInSources(), csr.getInAvgWeight(), best);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Settles the minimal location of one side and relaxes its edges.
+     * @return the best path length found so far
+     */
+    private static long expand(SearchWorkspace side, SearchWorkspace other,
+                               int[] offsets, int[] neighbours, long[] avgWeight, long best) {
+        IndexedDaryHeap heap = side.getHeap();
+        long currentDist = heap.minKey();
+        int u = heap.poll();
+        side.settle(u);
+        for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+            int v = neighbours[e];
+            long newDist = currentDist + avgWeight[e];
+            if (!side.isSettled(v) && newDist < side.distance(v)) {
+                side.setDistance(v, newDist);
+                heap.insertOrDecrease(v, newDist);
+            }
+            long otherDist = other.distance(v);
+            if (otherDist != Long.MAX_VALUE && newDist + otherDist < best) {
+                best = newDist + otherDist;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,252 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.datastructures.CsrGraph;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel delta-stepping single-source shortest paths for OneToAll queries on large graphs.
+ * <p>
+ * Locations wait in buckets of width delta by their tentative distance. The lowest non-empty bucket
+ * is emptied repeatedly by relaxing the light edges (at most delta long) of its locations in parallel,
+ * since those can put locations back into the same bucket; the heavy edges of all locations removed
+ * from the bucket are relaxed once afterwards. Distances are lowered by compare-and-set, so concurrent
+ * relaxations of the same location keep the minimum and the result equals that of Dijkstra's algorithm.
+ * <p>
+ * Queued distances never lie further than the longest edge above the current bucket, so the buckets
+ * form a ring of just enough buckets to span it, indexed by the bucket number modulo its size. A width
+ * so small that the ring would exceed {@link #MAX_BUCKETS} is raised, which changes the speed of the
+ * search but not its result.
+ */
+public class DeltaStepping {
+    private static final long INF = Long.MAX_VALUE;
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    /**
+     * Number of frontier locations relaxed by one task, smaller frontiers are relaxed by the caller.
+     */
+    private static final int CHUNK = 512;
+    /**
+     * Largest number of buckets of the ring.
+     */
+    private static final int MAX_BUCKETS = 1 << 12;
+
+    private final ForkJoinPool pool;
+    private final long delta;
+
+    /**
+     * @param parallelism number of threads relaxing edges
+     * @param delta bucket width, 0 to use the average edge length of the searched graph
+     */
+    public DeltaStepping(int parallelism, long delta) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.delta = delta;
+    }
+
+    /**
+     * Finds the distances from the origin to all locations.
+     * @param csr snapshot of the graph
+     * @param originId id of the origin location
+     * @return distances indexed by location id, {@link Long#MAX_VALUE} for unreachable locations
+     */
+    public long[] search(CsrGraph csr, int originId) {
+        return new Run(csr, delta > 0 ? delta : averageWeight(csr)).execute(originId);
+    }
+
+    private static long averageWeight(CsrGraph csr) {
+        long[] avgWeight = csr.getAvgWeight();
+        if (avgWeight.length == 0) return 1L;
+        long sum = 0L;
+        for (long w : avgWeight) {
+            sum += w;
+        }
+        return Math.max(1L, sum / avgWeight.length);
+    }
+
+    private static long maxWeight(CsrGraph csr) {
+        long max = 0L;
+        for (long w : csr.getAvgWeight()) {
+            max = Math.max(max, w);
+        }
+        return max;
+    }
+
+    /**
+     * State of one search.
+     */
+    private class Run {
+        private final int[] offsets;
+        private final int[] targets;
+        private final long[] avgWeight;
+        private final long width;
+        private final long[] dist;
+        /**
+         * Stamps of the round in which a location was last collected as updated,
+         * put to the frontier, or removed from the current bucket.
+         */
+        private final int[] updatedMarks;
+        private final int[] frontierMarks;
+        private final int[] removedMarks;
+        private final int[] updated;
+        private final AtomicInteger updatedCount = new AtomicInteger();
+        /**
+         * Ring of the buckets, bucket {@code b} at index {@code b % buckets.length}, created when first used.
+         */
+        private final IntList[] buckets;
+        /**
+         * Number of entries in all buckets, including those of locations lowered into another bucket since.
+         */
+        private long queued;
+        private int round;
+
+        private Run(CsrGraph csr, long width) {
+            int nodeCount = csr.getNodeCount();
+            this.offsets = csr.getOffsets();
+            this.targets = csr.getTargets();
+            this.avgWeight = csr.getAvgWeight();
+            long maxWeight = maxWeight(csr);
+            this.width = Math.max(width, Math.ceilDiv(maxWeight, MAX_BUCKETS - 1));
+            this.buckets = new IntList[(int) Math.ceilDiv(maxWeight, this.width) + 1];
+            this.dist = new long[nodeCount];
+            this.updatedMarks = new int[nodeCount];
+            this.frontierMarks = new int[nodeCount];
+            this.removedMarks = new int[nodeCount];
+            this.updated = new int[nodeCount];
+            Arrays.fill(dist, INF);
+        }
+
+        private long[] execute(int originId) {
+            dist[originId] = 0L;
+            bucket(0L).add(originId);
+            queued = 1;
+            IntList removed = new IntList();
+            for (long current = 0; queued > 0; current++) {
+                IntList bucket = buckets[(int) (current % buckets.length)];
+                if (bucket == null || bucket.size == 0) continue;
+                removed.size = 0;
+                round++;
+                int removedStamp = round;
+                while (bucket.size > 0) {
+                    /* Locations improved into a lower bucket, or already taken in this pass, are skipped. */
+                    round++;
+                    IntList frontier = new IntList();
+                    for (int i = 0; i < bucket.size; i++) {
+                        int v = bucket.items[i];
+                        if (dist[v] / width != current || frontierMarks[v] == round) continue;
+                        frontierMarks[v] = round;
+                        frontier.add(v);
+                        if (removedMarks[v] != removedStamp) {
+                            removedMarks[v] = removedStamp;
+                            removed.add(v);
+                        }
+                    }
+                    queued -= bucket.size;
+                    bucket.size = 0;
+                    relax(frontier, true);
+                }
+                relax(removed, false);
+            }
+            return dist;
+        }
+
+        /**
+         * Relaxes the light or the heavy edges of the given locations and files every location
+         * whose distance went down into its bucket.
+         */
+        private void relax(IntList locations, boolean light) {
+            if (locations.size == 0) return;
+            round++;
+            updatedCount.set(0);
+            RelaxTask task = new RelaxTask(locations.items, 0, locations.size, light, round);
+            if (locations.size <= CHUNK) {
+                task.compute();
+            } else {
+                pool.invoke(task);
+            }
+            int count = updatedCount.get();
+            for (int i = 0; i < count; i++) {
+                int v = updated[i];
+                bucket(dist[v] / width).add(v);
+            }
+            queued += count;
+        }
+
+        private IntList bucket(long number) {
+            int index = (int) (number % buckets.length);
+            if (buckets[index] == null) {
+                buckets[index] = new IntList();
+            }
+            return buckets[index];
+        }
+
+        private class RelaxTask extends RecursiveAction {
+            private final int[] locations;
+            private final int from;
+            private final int to;
+            private final boolean light;
+            private final int stamp;
+
+            private RelaxTask(int[] locations, int from, int to, boolean light, int stamp) {
+                this.locations = locations;
+                this.from = from;
+                this.to = to;
+                this.light = light;
+                this.stamp = stamp;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > CHUNK) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new RelaxTask(locations, from, middle, light, stamp),
+                            new RelaxTask(locations, middle, to, light, stamp));
+                    return;
+                }
+                for (int i = from; i < to; i++) {
+                    int u = locations[i];
+                    long du = (long) LONGS.getVolatile(dist, u);
+                    for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                        long w = avgWeight[e];
+                        if ((w <= width) != light) continue;
+                        lower(targets[e], du + w);
+                    }
+                }
+            }
+
+            private void lower(int v, long newDist) {
+                long current = (long) LONGS.getVolatile(dist, v);
+                while (newDist < current) {
+                    long witness = (long) LONGS.compareAndExchange(dist, v, current, newDist);
+                    if (witness == current) {
+                        int mark = (int) INTS.getVolatile(updatedMarks, v);
+                        if (mark != stamp && INTS.compareAndSet(updatedMarks, v, mark, stamp)) {
+                            updated[updatedCount.getAndIncrement()] = v;
+                        }
+                        return;
+                    }
+                    current = witness;
+                }
+            }
+        }
+    }
+
+    /**
+     * Growable list of location ids.
+     */
+    private static class IntList {
+        private int[] items = new int[16];
+        private int size;
+
+        private void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+    }
+}
@@ -1,90 +1,94 @@
 package org.solutions.grid.algorithms;
 
-import org.solutions.grid.datastructures.Edge;
-import org.solutions.grid.datastructures.Graph;
-import org.solutions.grid.datastructures.LocationRecord;
-
-import java.util.*;
+import org.solutions.grid.datastructures.CsrGraph;
 
 public class Dijkstra {
 
     /**
-     * Counts distance from the origin location to the destination location.
-     * @param graph the graph of locations represented by an adjacency list
-     * @param origin the starting node for the algorithm
-     * @param destination sum of distances from the origin location to any other node
-     * @return sum of distances from the origin location to any other node
+     * Implements Dijkstra's algorithm using an indexed heap with decrease-key.
+     * Allocates nothing once the workspace has grown to the size of the graph.
+     *
+     * @param csr snapshot of the graph
+     * @param workspace workspace that receives the distances and the settled locations
+     * @param originId the starting node for the algorithm
+     * @param destinationId the node at which the search stops once it is settled, -1 to settle all nodes
      */
-    public static long findShortestPathOneToOne(Graph graph, LocationRecord origin, LocationRecord destination){
-        return dijkstraAlgorithm(graph, origin, destination)[destination.getId()];
+    public static void search(CsrGraph csr, SearchWorkspace workspace, int originId, int destinationId){
+        run(csr.getNodeCount(), csr.getOffsets(), csr.getTargets(), csr.getAvgWeight(),
+                workspace, originId, destinationId);
     }
 
     /**
-     * Counts sum of distances from the origin location to any other
-     * @param graph the graph of locations represented by an adjacency list
-     * @param origin the starting node for the algorithm
-     * @return sum of distances from the origin location to any other node
+     * Implements Dijkstra's algorithm over the in-edges, so the workspace receives
+     * the distances from every location to the given one.
+     *
+     * @param csr snapshot of the graph
+     * @param workspace workspace that receives the distances and the settled locations
+     * @param destinationId the node the distances are measured to
      */
-    public static long findShortestPathOneToAll(Graph graph, LocationRecord origin){
-        long[] distances = dijkstraAlgorithm(graph, origin, null);
-        long sum = 0L;
-        for (Long dist: distances){
-            if (dist < (Long.MAX_VALUE)) sum += dist;
-        }
-        return sum;
+    public static void searchBackward(CsrGraph csr, SearchWorkspace workspace, int destinationId){
+        run(csr.getNodeCount(), csr.getInOffsets(), csr.getInSources(), csr.getInAvgWeight(),
+                workspace, destinationId, -1);
     }
 
     /**
-     * Implements Dijkstra's algorithm using a priority queue for better performance.
+     * Implements Dijkstra's algorithm from several origins, each starting at its own distance,
+     * so the workspace receives the distance of every location from the nearest of them.
      *
-     * @param graph the graph of locations represented by an adjacency list
-     * @param origin the starting node for the algorithm
-     * @param destination the target node for the algorithm; if {@code null}, calculates distances to all nodes
-     * @return an array of distances from the origin to each node if {@code destination} is {@code null},
-     *         or an array containing only the distance between the origin and the destination node
+     * @param csr snapshot of the graph
+     * @param workspace workspace that receives the distances and the settled locations
+     * @param originIds the starting nodes for the algorithm
+     * @param originDistances distances at which the search starts from the nodes
+     * @param count number of starting nodes
+     * @param destinationId the node at which the search stops once it is settled, -1 to settle all nodes
      */
-    public static long[] dijkstraAlgorithm(Graph graph, LocationRecord origin, LocationRecord destination){
-        List<List<Edge>> adj_list = graph.getAdjList();
-        long[] dist = new long[graph.getLocationsSize()];
-        PriorityQueue<LocationDistPair> pq = new PriorityQueue<>(
-                Comparator.comparing(LocationDistPair::getDistance,
-                        Long::compareTo));
-        boolean[] processed = new boolean[graph.getLocations().size()];
-
-        Arrays.fill(dist, Long.MAX_VALUE);
-
-        dist[origin.getId()] = 0L;
-        pq.add(new LocationDistPair(origin.getId(), 0L));
+    public static void search(CsrGraph csr, SearchWorkspace workspace, int[] originIds, long[] originDistances,
+                              int count, int destinationId){
+        workspace.begin(csr.getNodeCount());
+        for (int i = 0; i < count; i++) {
+            if (originDistances[i] < workspace.distance(originIds[i])) {
+                workspace.setDistance(originIds[i], originDistances[i]);
+                workspace.getHeap().insertOrDecrease(originIds[i], originDistances[i]);
+            }
+        }
+        settle(csr.getOffsets(), csr.getTargets(), csr.getAvgWeight(), workspace, destinationId);
+    }
 
-        while (!pq.isEmpty()) {
-            LocationDistPair current = pq.poll();
-            Integer currentLocationId = current.getLocation();
+    private static void run(int nodeCount, int[] offsets, int[] targets, long[] avgWeight,
+                            SearchWorkspace workspace, int originId, int destinationId){
+        workspace.begin(nodeCount);
+        workspace.setDistance(originId, 0L);
+        workspace.getHeap().insertOrDecrease(originId, 0L);
+        settle(offsets, targets, avgWeight, workspace, destinationId);
+    }
 
-            if (processed[currentLocationId]) continue;
-            processed[currentLocationId] = true;
+    /**
+     * Settles the locations reached by the origins already in the heap of the workspace.
+     */
+    private static void settle(int[] offsets, int[] targets, long[] avgWeight,
+                               SearchWorkspace workspace, int destinationId){
+        IndexedDaryHeap heap = workspace.getHeap();
 
-            long currentDist = current.getDistance();
-            if (destination != null && currentLocationId == destination.getId()) {
-                return dist;
-            }
+        while (!heap.isEmpty()) {
+            long currentDist = heap.minKey();
+            int currentLocationId = heap.poll();
+            workspace.settle(currentLocationId);
 
-            if (currentDist > dist[currentLocationId]) {
-                continue;
+            if (currentLocationId == destinationId) {
+                return;
             }
 
-            for (Edge edge : adj_list.get(currentLocationId)) {
-                int neighbourId = edge.getToId();
-                long newDist = currentDist + edge.getAvgDistance();
+            for (int e = offsets[currentLocationId]; e < offsets[currentLocationId + 1]; e++) {
+                int neighbourId = targets[e];
+                long newDist = currentDist + avgWeight[e];
 
-                if (!processed[neighbourId] &&
-                        newDist < dist[neighbourId]) {
-                    dist[neighbourId] = newDist;
-                    pq.add(new LocationDistPair(neighbourId, newDist));
+                if (!workspace.isSettled(neighbourId) &&
+                        newDist < workspace.distance(neighbourId)) {
+                    workspace.setDistance(neighbourId, newDist);
+                    heap.insertOrDecrease(neighbourId, newDist);
                 }
             }
         }
-
-        return dist;
     }
 
 }
@@ -0,0 +1,65 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.metrics.ServerMetrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Table of the queries being computed, so that identical concurrent queries share one computation.
+ * <p>
+ * A query is identified by the graph generation and version, its origin and its destination. The first caller of
+ * a query computes it on its own thread while the table holds its future; callers of the same query
+ * arriving before it finishes wait for that future instead of computing the query again. The entry is
+ * removed as soon as the result is known, later callers find it in the {@link ShortestPathCache}
+ * or compute it anew.
+ */
+public class InFlightQueries {
+    private final ConcurrentHashMap<Key, CompletableFuture<Long>> inFlight = new ConcurrentHashMap<>();
+    private final ServerMetrics metrics;
+
+    private record Key(long generation, long version, int originId, int destinationId) {
+    }
+
+    /**
+     * @param metrics metrics counting the queries answered by another caller's computation
+     */
+    public InFlightQueries(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Computes the query, or waits for the result of the identical query already being computed.
+     * @param generation generation of the searched graph
+     * @param version version of the searched graph
+     * @param originId id of the origin location
+     * @param destinationId id of the destination location, -1 for a OneToAll query
+     * @param query computation of the result
+     * @return result of the query
+     */
+    public long query(long generation, long version, int originId, int destinationId, LongSupplier query) {
+        Key key = new Key(generation, version, originId, destinationId);
+        CompletableFuture<Long> mine = new CompletableFuture<>();
+        CompletableFuture<Long> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            metrics.count(ServerMetrics.Counter.COALESCED_QUERIES);
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        try {
+            long result = query.getAsLong();
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.solutions.grid.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Indexed 4-ary min-heap of location ids keyed by distance, with decrease-key.
+ * Every location is in the heap at most once, so the heap never holds stale entries
+ * and needs no boxed pairs. The position table is kept at -1 for all locations outside
+ * the heap, which lets {@link #clear()} run in time proportional to the heap size.
+ */
+public class IndexedDaryHeap {
+    private static final int ARITY = 4;
+
+    private int[] nodes;
+    private long[] keys;
+    /**
+     * Position of each location in the heap, -1 if it is not in the heap.
+     */
+    private int[] positions;
+    private int size;
+
+    public IndexedDaryHeap(int capacity) {
+        nodes = new int[capacity];
+        keys = new long[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Grows the heap so that it can hold locations with ids below the given capacity.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= positions.length) return;
+        int newCapacity = Math.max(capacity, positions.length + (positions.length >> 1));
+        int oldCapacity = positions.length;
+        nodes = Arrays.copyOf(nodes, newCapacity);
+        keys = Arrays.copyOf(keys, newCapacity);
+        positions = Arrays.copyOf(positions, newCapacity);
+        Arrays.fill(positions, oldCapacity, newCapacity, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int node) {
+        return positions[node] >= 0;
+    }
+
+    /**
+     * @return key of the minimal location, undefined if the heap is empty
+     */
+    public long minKey() {
+        return keys[0];
+    }
+
+    /**
+     * Inserts the location, or lowers its key if it is already in the heap with a higher one.
+     */
+    public void insertOrDecrease(int node, long key) {
+        int i = positions[node];
+        if (i < 0) {
+            i = size++;
+        } else if (key >= keys[i]) {
+            return;
+        }
+        siftUp(i, node, key);
+    }
+
+    /**
+     * Removes the location with the minimal key.
+     * @return id of the removed location
+     */
+    public int poll() {
+        int top = nodes[0];
+        positions[top] = -1;
+        size--;
+        if (size > 0) {
+            siftDown(0, nodes[size], keys[size]);
+        }
+        return top;
+    }
+
+    /**
+     * Removes all locations from the heap.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            positions[nodes[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int i, int node, long key) {
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            if (keys[parent] <= key) break;
+            place(i, nodes[parent], keys[parent]);
+            i = parent;
+        }
+        place(i, node, key);
+    }
+
+    private void siftDown(int i, int node, long key) {
+        while (true) {
+            int first = i * ARITY + 1;
+            if (first >= size) break;
+            int last = Math.min(first + ARITY, size);
+            int min = first;
+            for (int c = first + 1; c < last; c++) {
+                if (keys[c] < keys[min]) min = c;
+            }
+            if (keys[min] >= key) break;
+            place(i, nodes[min], keys[min]);
+            i = min;
+        }
+        place(i, node, key);
+    }
+
+    private void place(int i, int node, long key) {
+        nodes[i] = node;
+        keys[i] = key;
+        positions[node] = i;
+    }
+}
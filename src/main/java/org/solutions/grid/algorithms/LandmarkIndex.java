@@ -0,0 +1,217 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.datastructures.CsrGraph;
+import org.solutions.grid.datastructures.EdgeChangeLog;
+import org.solutions.grid.datastructures.GraphSnapshot;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Landmarks for the ALT (A*, landmarks, triangle inequality) OneToOne search.
+ * For k landmarks chosen by farthest selection, exact distances from every landmark to every location
+ * and from every location to every landmark are kept, which bound the remaining distance
+ * to a destination from below: {@code d(v, t) >= d(L, t) - d(L, v)} and {@code d(v, t) >= d(v, L) - d(t, L)}.
+ * <p>
+ * The bounds stay valid as long as no edge got shorter or was added since the tables were computed,
+ * which is checked against the change log of the graph. Once they are invalid, the tables are
+ * recomputed in the background after enough walks have been ingested, on the immutable snapshot.
+ */
+public class LandmarkIndex {
+    private static final long INF = Long.MAX_VALUE;
+
+    private final int landmarkCount;
+    private final long recomputeAfterWalks;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "landmarks");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean computing = new AtomicBoolean();
+    private volatile Tables tables;
+
+    /**
+     * @param landmarkCount number of landmarks, 0 disables the index
+     * @param recomputeAfterWalks number of ingested walks after which invalid tables are recomputed
+     */
+    public LandmarkIndex(int landmarkCount, long recomputeAfterWalks) {
+        this.landmarkCount = landmarkCount;
+        this.recomputeAfterWalks = recomputeAfterWalks;
+    }
+
+    /**
+     * Distance tables of the landmarks, flattened by location: entry {@code v * k + i}
+     * belongs to location {@code v} and landmark {@code i}.
+     */
+    public static class Tables {
+        private final long generation;
+        private final long version;
+        private final long ingestedWalks;
+        private final int nodeCount;
+        private final int k;
+        private final long[] fromLandmarks;
+        private final long[] toLandmarks;
+        /**
+         * Last graph version the tables were checked against, times two, plus one if they were usable.
+         */
+        private volatile long lastCheck = -1L;
+
+        private Tables(long generation, long version, long ingestedWalks, int nodeCount, int k) {
+            this.generation = generation;
+            this.version = version;
+            this.ingestedWalks = ingestedWalks;
+            this.nodeCount = nodeCount;
+            this.k = k;
+            this.fromLandmarks = new long[nodeCount * k];
+            this.toLandmarks = new long[nodeCount * k];
+        }
+
+        public int getLandmarkCount() {
+            return k;
+        }
+
+        /**
+         * Lower bound of the distance between two locations.
+         */
+        public long lowerBound(int fromId, int toId) {
+            if (fromId >= nodeCount || toId >= nodeCount) return 0L;
+            long bound = 0L;
+            int v = fromId * k;
+            int t = toId * k;
+            for (int i = 0; i < k; i++) {
+                long landmarkToT = fromLandmarks[t + i];
+                long landmarkToV = fromLandmarks[v + i];
+                if (landmarkToT != INF && landmarkToV != INF && landmarkToT - landmarkToV > bound) {
+                    bound = landmarkToT - landmarkToV;
+                }
+                long vToLandmark = toLandmarks[v + i];
+                long tToLandmark = toLandmarks[t + i];
+                if (vToLandmark != INF && tToLandmark != INF && vToLandmark - tToLandmark > bound) {
+                    bound = vToLandmark - tToLandmark;
+                }
+            }
+            return bound;
+        }
+    }
+
+    /**
+     * Finds tables whose bounds hold on the given snapshot.
+     * @return usable tables, or null if there are none
+     */
+    public Tables usableTables(GraphSnapshot snapshot) {
+        Tables current = tables;
+        if (current == null || current.generation != snapshot.getGeneration()) return null;
+        long version = snapshot.getVersion();
+        if (current.version == version) return current;
+        long lastCheck = current.lastCheck;
+        if (lastCheck >> 1 == version) {
+            return (lastCheck & 1) == 1 ? current : null;
+        }
+        boolean usable = current.version < version && onlyLengthened(snapshot, current.version);
+        current.lastCheck = (version << 1) | (usable ? 1 : 0);
+        return usable ? current : null;
+    }
+
+    /**
+     * Starts recomputing the tables in the background if there are none yet,
+     * if they belong to another generation of the graph,
+     * or if they are unusable and enough walks were ingested since they were computed.
+     */
+    public void maybeRecompute(GraphSnapshot snapshot) {
+        if (landmarkCount == 0 || snapshot.getCsr().getNodeCount() == 0) return;
+        Tables current = tables;
+        if (current != null && current.generation == snapshot.getGeneration()
+                && snapshot.getIngestedWalks() - current.ingestedWalks < recomputeAfterWalks) return;
+        if (!computing.compareAndSet(false, true)) return;
+        executor.execute(() -> {
+            try {
+                tables = compute(snapshot.getCsr(), snapshot.getGeneration(), snapshot.getVersion(),
+                        snapshot.getIngestedWalks());
+            } finally {
+                computing.set(false);
+            }
+        });
+    }
+
+    /**
+     * Drops the tables, used when the graph is cleared.
+     */
+    public void clear() {
+        tables = null;
+    }
+
+    private Tables compute(CsrGraph csr, long generation, long version, long ingestedWalks) {
+        int nodeCount = csr.getNodeCount();
+        int k = Math.min(landmarkCount, nodeCount);
+        Tables result = new Tables(generation, version, ingestedWalks, nodeCount, k);
+        int[] offsets = csr.getOffsets();
+        int[] inOffsets = csr.getInOffsets();
+        /* Distance to the nearest landmark chosen so far, the farthest location becomes the next landmark. */
+        long[] nearest = new long[nodeCount];
+        Arrays.fill(nearest, INF);
+        SearchWorkspace workspace = SearchWorkspace.acquire();
+        try {
+            int landmark = 0;
+            for (int i = 0; i < k; i++) {
+                Dijkstra.search(csr, workspace, landmark, -1);
+                for (int v = 0; v < nodeCount; v++) {
+                    long d = workspace.distance(v);
+                    result.fromLandmarks[v * k + i] = d;
+                    if (d < nearest[v]) nearest[v] = d;
+                }
+                Dijkstra.searchBackward(csr, workspace, landmark);
+                for (int v = 0; v < nodeCount; v++) {
+                    result.toLandmarks[v * k + i] = workspace.distance(v);
+                }
+                nearest[landmark] = 0L;
+                int farthest = -1;
+                for (int v = 0; v < nodeCount; v++) {
+                    boolean connected = offsets[v + 1] > offsets[v] || inOffsets[v + 1] > inOffsets[v];
+                    if (connected && nearest[v] > 0L && (farthest < 0 || nearest[v] > nearest[farthest])) {
+                        farthest = v;
+                    }
+                }
+                if (farthest < 0) {
+                    return shrink(result, i + 1);
+                }
+                landmark = farthest;
+            }
+        } finally {
+            workspace.release();
+        }
+        return result;
+    }
+
+    /**
+     * Keeps only the first landmarks when the graph has fewer usable locations than requested.
+     */
+    private static Tables shrink(Tables tables, int k) {
+        if (k == tables.k) return tables;
+        Tables shrunk = new Tables(tables.generation, tables.version, tables.ingestedWalks, tables.nodeCount, k);
+        for (int v = 0; v < tables.nodeCount; v++) {
+            System.arraycopy(tables.fromLandmarks, v * tables.k, shrunk.fromLandmarks, v * k, k);
+            System.arraycopy(tables.toLandmarks, v * tables.k, shrunk.toLandmarks, v * k, k);
+        }
+        return shrunk;
+    }
+
+    /**
+     * Tells whether every edge changed since the given version got longer, which keeps the distances
+     * of that version lower bounds of the current ones.
+     */
+    private static boolean onlyLengthened(GraphSnapshot snapshot, long fromVersion) {
+        EdgeChangeLog.EdgeChanges changes = snapshot.changesSince(fromVersion);
+        if (changes == null) return false;
+        CsrGraph csr = snapshot.getCsr();
+        for (int i = 0; i < changes.size(); i++) {
+            long oldWeight = changes.getOldAvgDistance(i);
+            if (oldWeight == EdgeChangeLog.NO_EDGE
+                    || csr.weight(changes.getFrom(i), changes.getTo(i)) < oldWeight) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
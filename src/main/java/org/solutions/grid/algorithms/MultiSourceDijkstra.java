@@ -0,0 +1,124 @@
+package org.solutions.grid.algorithms;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.solutions.grid.datastructures.CsrGraph;
+
+import java.util.Arrays;
+
+/**
+ * OneToAll searches from several origins at once on the same graph, one vector lane per origin.
+ * <p>
+ * Distances are kept in a matrix with a row per location and a lane per origin. Scanning a location
+ * relaxes each of its edges for all origins together: the row of the location plus the edge length
+ * is compared with the row of the neighbour and the lower values are kept, by {@link LongVector}
+ * add and min. The scans are ordered by a heap keyed by the lowest distance improved at a location;
+ * since the origins disagree on which locations are close, a location may be scanned again when
+ * a later scan improves other lanes of it, so the search corrects labels instead of settling them.
+ * It still reads the adjacency of a location once for all origins, where separate searches would
+ * read it once per origin.
+ * <p>
+ * Needs the {@code jdk.incubator.vector} module, which must be checked before the class is loaded.
+ */
+public class MultiSourceDijkstra {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    /**
+     * Distance of unreached locations, low enough that adding an edge length cannot overflow.
+     */
+    private static final long INF = Long.MAX_VALUE >> 1;
+
+    private final int width;
+    private long[] dist = new long[0];
+    private final IndexedDaryHeap heap = new IndexedDaryHeap(1024);
+
+    /**
+     * @param maxOrigins maximum number of origins of one search
+     */
+    public MultiSourceDijkstra(int maxOrigins) {
+        this.width = (maxOrigins + SPECIES.length() - 1) / SPECIES.length() * SPECIES.length();
+    }
+
+    /**
+     * Finds the distances from every origin to all locations.
+     * @param csr snapshot of the graph
+     * @param origins ids of the origin locations, at most the maximum number of origins
+     * @param count number of origins
+     * @return number of location scans
+     */
+    public int search(CsrGraph csr, int[] origins, int count) {
+        int nodeCount = csr.getNodeCount();
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        long[] avgWeight = csr.getAvgWeight();
+        if (dist.length < nodeCount * width) {
+            dist = new long[nodeCount * width];
+        }
+        Arrays.fill(dist, 0, nodeCount * width, INF);
+        heap.ensureCapacity(nodeCount);
+        heap.clear();
+        for (int lane = 0; lane < count; lane++) {
+            dist[origins[lane] * width + lane] = 0L;
+            heap.insertOrDecrease(origins[lane], 0L);
+        }
+
+        int scans = 0;
+        while (!heap.isEmpty()) {
+            int u = heap.poll();
+            scans++;
+            int row = u * width;
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int neighbourRow = targets[e] * width;
+                long w = avgWeight[e];
+                long key = Long.MAX_VALUE;
+                for (int lane = 0; lane < width; lane += SPECIES.length()) {
+                    LongVector candidate = LongVector.fromArray(SPECIES, dist, row + lane).add(w);
+                    LongVector current = LongVector.fromArray(SPECIES, dist, neighbourRow + lane);
+                    VectorMask<Long> improved = candidate.compare(VectorOperators.LT, current);
+                    if (improved.anyTrue()) {
+                        current.min(candidate).intoArray(dist, neighbourRow + lane);
+                        key = Math.min(key, candidate.reduceLanes(VectorOperators.MIN, improved));
+                    }
+                }
+                if (key != Long.MAX_VALUE) {
+                    heap.insertOrDecrease(targets[e], key);
+                }
+            }
+        }
+        return scans;
+    }
+
+    /**
+     * Sums the distances of the last search to all reachable locations, origin by origin.
+     * @param nodeCount number of locations of the searched graph
+     * @return sums indexed by the index of the origin in the searched origins
+     */
+    public long[] sums(int nodeCount) {
+        long[] sums = new long[width];
+        for (int lane = 0; lane < width; lane += SPECIES.length()) {
+            LongVector sum = LongVector.zero(SPECIES);
+            for (int row = 0; row < nodeCount * width; row += width) {
+                LongVector d = LongVector.fromArray(SPECIES, dist, row + lane);
+                sum = sum.add(d, d.compare(VectorOperators.LT, INF));
+            }
+            sum.intoArray(sums, lane);
+        }
+        return sums;
+    }
+
+    /**
+     * Copies the distances of the last search from one origin.
+     * @param nodeCount number of locations of the searched graph
+     * @param lane index of the origin in the searched origins
+     * @return distances indexed by location id, {@link Long#MAX_VALUE} for unreachable locations
+     */
+    public long[] distances(int nodeCount, int lane) {
+        long[] distances = new long[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            long d = dist[i * width + lane];
+            distances[i] = d < INF ? d : Long.MAX_VALUE;
+        }
+        return distances;
+    }
+}
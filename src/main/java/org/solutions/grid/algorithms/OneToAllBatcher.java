@@ -0,0 +1,255 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.datastructures.CsrGraph;
+import org.solutions.grid.metrics.ServerMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs OneToAll searches of concurrent clients together when they search the same graph version.
+ * <p>
+ * Searches are queued for a few search threads. A thread takes the oldest search together with the
+ * searches queued behind it on the same snapshot, up to the given number of distinct origins, and runs
+ * them together. Nothing waits for a batch to fill: a search arriving at an idle thread runs alone, and
+ * batches form only from searches that queue up while all threads are busy, so the busier the server
+ * the larger the batches. Searches of the same origin in a batch are run once.
+ * <p>
+ * A batch of several origins runs either as one vectorized {@link MultiSourceDijkstra} or as scalar
+ * {@link Dijkstra} searches one after another. The vectorized search reads the adjacency of a location
+ * once for all origins, but it scans a location again for every origin whose search reaches it at
+ * a different time, so it only wins when the origins are close to each other. The batcher therefore keeps
+ * the average time per origin and location of both ways and runs a batch the cheaper way, trying the
+ * other way every {@link #EXPLORE_EVERY} batches as the queried origins change. Without the vector module
+ * batches always run one search after another.
+ */
+public class OneToAllBatcher {
+    /**
+     * Number of batches after which the slower way of searching them is measured again.
+     */
+    private static final int EXPLORE_EVERY = 16;
+    /**
+     * Weight of the last batch in the average times.
+     */
+    private static final double COST_WEIGHT = 0.2;
+
+    private final LinkedBlockingDeque<Search> queue = new LinkedBlockingDeque<>();
+    private final int maxOrigins;
+    private final boolean vectorized;
+    private final ServerMetrics metrics;
+    /**
+     * Average nanoseconds per origin and location of batches searched by the vectorized search
+     * and of batches searched one origin after another, updated by all threads without locking.
+     */
+    private volatile double vectorCost;
+    private volatile double scalarCost;
+    private final AtomicInteger batches = new AtomicInteger();
+
+    /**
+     * Result of a OneToAll search.
+     */
+    public static class Result {
+        private final long sum;
+        private final long[] distances;
+
+        private Result(long sum, long[] distances) {
+            this.sum = sum;
+            this.distances = distances;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return distances indexed by location id, null if they were not requested
+         */
+        public long[] getDistances() {
+            return distances;
+        }
+    }
+
+    private static class Search {
+        private final CsrGraph csr;
+        private final int originId;
+        private final boolean withDistances;
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        private Search(CsrGraph csr, int originId, boolean withDistances) {
+            this.csr = csr;
+            this.originId = originId;
+            this.withDistances = withDistances;
+        }
+    }
+
+    /**
+     * @param threads number of search threads
+     * @param maxOrigins maximum number of distinct origins searched together
+     * @param metrics metrics counting the batched searches
+     */
+    public OneToAllBatcher(int threads, int maxOrigins, ServerMetrics metrics) {
+        this.maxOrigins = maxOrigins;
+        /* Checked here, loading MultiSourceDijkstra without the module would fail. */
+        this.vectorized = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+        this.metrics = metrics;
+        for (int t = 0; t < threads; t++) {
+            Thread searcher = new Thread(this::run, "one-to-all-" + t);
+            searcher.setDaemon(true);
+            searcher.start();
+        }
+    }
+
+    /**
+     * @return whether batches are searched with vector instructions
+     */
+    public boolean isVectorized() {
+        return vectorized;
+    }
+
+    /**
+     * Finds the sum of shortest path lengths from the origin and waits until it is searched.
+     * @param csr snapshot of the graph
+     * @param originId id of the origin location
+     * @param withDistances whether the distances to all locations should be returned
+     * @return sum of the shortest path lengths, and the distances if requested
+     */
+    public Result search(CsrGraph csr, int originId, boolean withDistances) {
+        Search search = new Search(csr, originId, withDistances);
+        queue.add(search);
+        try {
+            return search.result.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    private void run() {
+        MultiSourceDijkstra vectorSearch = vectorized ? new MultiSourceDijkstra(maxOrigins) : null;
+        List<Search> batch = new ArrayList<>();
+        int[] origins = new int[maxOrigins];
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            int count = collect(batch, origins);
+            try {
+                if (count == 1 || vectorSearch == null) {
+                    searchApart(batch, origins, count);
+                } else {
+                    long start = System.nanoTime();
+                    boolean together = chooseVectorized();
+                    if (together) {
+                        searchTogether(vectorSearch, batch, origins, count);
+                    } else {
+                        searchApart(batch, origins, count);
+                    }
+                    double cost = (double) (System.nanoTime() - start) / count / batch.get(0).csr.getNodeCount();
+                    if (together) {
+                        vectorCost = average(vectorCost, cost);
+                    } else {
+                        scalarCost = average(scalarCost, cost);
+                    }
+                }
+            } catch (RuntimeException | OutOfMemoryError e) {
+                for (Search search : batch) {
+                    search.result.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return whether the next batch should run as one vectorized search
+     */
+    private boolean chooseVectorized() {
+        boolean cheaper = vectorCost <= scalarCost;
+        return batches.incrementAndGet() % EXPLORE_EVERY == 0 ? !cheaper : cheaper;
+    }
+
+    private static double average(double average, double cost) {
+        return average == 0 ? cost : average + COST_WEIGHT * (cost - average);
+    }
+
+    /**
+     * Adds the searches queued behind the first one of the batch on the same snapshot.
+     * @param origins receives the distinct origins of the batch
+     * @return number of distinct origins
+     */
+    private int collect(List<Search> batch, int[] origins) {
+        CsrGraph csr = batch.get(0).csr;
+        origins[0] = batch.get(0).originId;
+        int count = 1;
+        while (true) {
+            Search search = queue.pollFirst();
+            if (search == null) break;
+            int lane = lane(origins, count, search.originId);
+            if (search.csr != csr || (lane < 0 && count == maxOrigins)) {
+                queue.offerFirst(search);
+                break;
+            }
+            if (lane < 0) {
+                origins[count++] = search.originId;
+            }
+            batch.add(search);
+        }
+        return count;
+    }
+
+    private void searchTogether(MultiSourceDijkstra vectorSearch, List<Search> batch, int[] origins, int count) {
+        CsrGraph csr = batch.get(0).csr;
+        int nodeCount = csr.getNodeCount();
+        vectorSearch.search(csr, origins, count);
+        long[] sums = vectorSearch.sums(nodeCount);
+        long[][] distances = new long[count][];
+        for (Search search : batch) {
+            int lane = lane(origins, count, search.originId);
+            if (search.withDistances && distances[lane] == null) {
+                distances[lane] = vectorSearch.distances(nodeCount, lane);
+            }
+            search.result.complete(new Result(sums[lane], search.withDistances ? distances[lane] : null));
+        }
+        metrics.count(ServerMetrics.Counter.BATCHED_SEARCHES, count);
+    }
+
+    private void searchApart(List<Search> batch, int[] origins, int count) {
+        CsrGraph csr = batch.get(0).csr;
+        SearchWorkspace workspace = SearchWorkspace.acquire();
+        try {
+            for (int lane = 0; lane < count; lane++) {
+                Dijkstra.search(csr, workspace, origins[lane], -1);
+                metrics.count(ServerMetrics.Counter.SETTLED_LOCATIONS, workspace.getSettledCount());
+                long sum = workspace.settledDistanceSum();
+                long[] distances = null;
+                for (Search search : batch) {
+                    if (search.originId != origins[lane]) continue;
+                    if (search.withDistances && distances == null) {
+                        distances = new long[csr.getNodeCount()];
+                        for (int i = 0; i < distances.length; i++) {
+                            distances[i] = workspace.distance(i);
+                        }
+                    }
+                    search.result.complete(new Result(sum, search.withDistances ? distances : null));
+                }
+            }
+        } finally {
+            workspace.release();
+        }
+    }
+
+    /**
+     * @return index of the origin among the first count origins, -1 if it is not there
+     */
+    private static int lane(int[] origins, int count, int originId) {
+        for (int lane = 0; lane < count; lane++) {
+            if (origins[lane] == originId) return lane;
+        }
+        return -1;
+    }
+}
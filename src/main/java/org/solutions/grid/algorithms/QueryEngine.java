@@ -0,0 +1,202 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.datastructures.CsrGraph;
+import org.solutions.grid.datastructures.EdgeChangeLog;
+import org.solutions.grid.datastructures.GraphSnapshot;
+import org.solutions.grid.datastructures.GraphStore;
+import org.solutions.grid.metrics.ServerMetrics;
+
+import java.nio.file.Path;
+
+/**
+ * Answers shortest path queries on graph snapshots, reusing cached OneToAll results
+ * of the same graph version where possible. Cached shortest path trees of older versions
+ * are repaired with the edges changed since then instead of being computed from scratch.
+ * Queries need no locking, as snapshots never change.
+ */
+public class QueryEngine {
+    private final GraphStore store;
+    private final ShortestPathCache cache;
+    private final LandmarkIndex landmarks;
+    /**
+     * Parallel engine for OneToAll searches on large graphs, null if disabled.
+     */
+    private final DeltaStepping parallelSearch;
+    /**
+     * Number of locations from which OneToAll searches run on the parallel engine.
+     */
+    private final int parallelThreshold;
+    /**
+     * Batching of concurrent OneToAll searches below the parallel threshold, null if disabled.
+     */
+    private final OneToAllBatcher batcher;
+    /**
+     * Searches being computed, shared by identical concurrent queries.
+     */
+    private final InFlightQueries inFlight;
+    private final ServerMetrics metrics;
+
+    public QueryEngine(GraphStore store, ShortestPathCache cache, LandmarkIndex landmarks,
+                       DeltaStepping parallelSearch, int parallelThreshold) {
+        this(store, cache, landmarks, parallelSearch, parallelThreshold, null, new ServerMetrics());
+    }
+
+    public QueryEngine(GraphStore store, ShortestPathCache cache, LandmarkIndex landmarks,
+                       DeltaStepping parallelSearch, int parallelThreshold, OneToAllBatcher batcher,
+                       ServerMetrics metrics) {
+        this.store = store;
+        this.cache = cache;
+        this.landmarks = landmarks;
+        this.parallelSearch = parallelSearch;
+        this.parallelThreshold = parallelThreshold;
+        this.batcher = batcher;
+        this.inFlight = new InFlightQueries(metrics);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Finds the shortest path length, looked up in the cached tree of the origin if there is one.
+     * Otherwise it is computed by the landmark-guided A* search while the landmark bounds hold,
+     * and by the bidirectional search when they do not. Concurrent identical queries share the search.
+     * @param snapshot version of the graph to search
+     * @param originId id of the origin location
+     * @param destinationId id of the destination location
+     * @return length of the shortest path, {@link Long#MAX_VALUE} if the destination is unreachable
+     */
+    public long oneToOne(GraphSnapshot snapshot, int originId, int destinationId) {
+        ShortestPathCache.Entry cached = cache.get(originId, snapshot.getGeneration(), snapshot.getVersion());
+        if (cached != null && cached.getDistances() != null) {
+            metrics.count(ServerMetrics.Counter.CACHE_HITS);
+            return cached.getDistances()[destinationId];
+        }
+        return inFlight.query(snapshot.getGeneration(), snapshot.getVersion(), originId, destinationId,
+                () -> searchOneToOne(snapshot, originId, destinationId));
+    }
+
+    private long searchOneToOne(GraphSnapshot snapshot, int originId, int destinationId) {
+        metrics.count(ServerMetrics.Counter.SEARCHES);
+        LandmarkIndex.Tables tables = landmarks.usableTables(snapshot);
+        if (tables != null) {
+            SearchWorkspace workspace = SearchWorkspace.acquire();
+            try {
+                long length = AltSearch.search(snapshot.getCsr(), workspace, tables, originId, destinationId);
+                metrics.count(ServerMetrics.Counter.SETTLED_LOCATIONS, workspace.getSettledCount());
+                return length;
+            } finally {
+                workspace.release();
+            }
+        }
+        landmarks.maybeRecompute(snapshot);
+        SearchWorkspace forward = SearchWorkspace.acquire();
+        SearchWorkspace backward = SearchWorkspace.acquire();
+        try {
+            long length = BidirectionalDijkstra.search(snapshot.getCsr(), forward, backward, originId, destinationId);
+            metrics.count(ServerMetrics.Counter.SETTLED_LOCATIONS,
+                    forward.getSettledCount() + backward.getSettledCount());
+            return length;
+        } finally {
+            forward.release();
+            backward.release();
+        }
+    }
+
+    /**
+     * Finds the sum of shortest path lengths to all reachable locations and caches it.
+     * Searches from scratch run on the parallel engine for large graphs, otherwise they are batched
+     * with concurrent searches of the same version if a batcher is configured.
+     * Concurrent identical queries share the search.
+     * @param snapshot version of the graph to search
+     * @param originId id of the origin location
+     * @return sum of the shortest path lengths
+     */
+    public long oneToAll(GraphSnapshot snapshot, int originId) {
+        ShortestPathCache.Entry cached = cache.get(originId, snapshot.getGeneration(), snapshot.getVersion());
+        if (cached != null) {
+            metrics.count(ServerMetrics.Counter.CACHE_HITS);
+            return cached.getSum();
+        }
+        return inFlight.query(snapshot.getGeneration(), snapshot.getVersion(), originId, -1,
+                () -> searchOneToAll(snapshot, originId));
+    }
+
+    private long searchOneToAll(GraphSnapshot snapshot, int originId) {
+        long generation = snapshot.getGeneration();
+        long version = snapshot.getVersion();
+        CsrGraph csr = snapshot.getCsr();
+        /* Found if an identical query cached its result after this one missed the cache. */
+        ShortestPathCache.Entry cached = cache.getAnyVersion(originId);
+        if (cached != null && cached.getGeneration() != generation) {
+            cached = null; /* computed on a graph cleared or replaced since */
+        }
+        if (cached != null && cached.getVersion() == version) {
+            metrics.count(ServerMetrics.Counter.CACHE_HITS);
+            return cached.getSum();
+        }
+        if (cached != null && cached.getDistances() != null) {
+            TreeRepair.Result repaired = repair(snapshot, originId, cached);
+            if (repaired != null) {
+                metrics.count(ServerMetrics.Counter.TREE_REPAIRS);
+                cache.put(originId, generation, version, repaired.getSum(), repaired.getDistances());
+                return repaired.getSum();
+            }
+        }
+        metrics.count(ServerMetrics.Counter.SEARCHES);
+        if (parallelSearch != null && csr.getNodeCount() >= parallelThreshold) {
+            long[] distances = parallelSearch.search(csr, originId);
+            long sum = TreeRepair.reachableSum(distances);
+            cache.put(originId, generation, version, sum, cache.acceptsTree(distances.length) ? distances : null);
+            return sum;
+        }
+        if (batcher != null) {
+            OneToAllBatcher.Result result = batcher.search(csr, originId, cache.acceptsTree(csr.getNodeCount()));
+            cache.put(originId, generation, version, result.getSum(), result.getDistances());
+            return result.getSum();
+        }
+        SearchWorkspace workspace = SearchWorkspace.acquire();
+        try {
+            Dijkstra.search(csr, workspace, originId, -1);
+            metrics.count(ServerMetrics.Counter.SETTLED_LOCATIONS, workspace.getSettledCount());
+            long sum = workspace.settledDistanceSum();
+            long[] distances = null;
+            if (cache.acceptsTree(csr.getNodeCount())) {
+                distances = new long[csr.getNodeCount()];
+                for (int i = 0; i < distances.length; i++) {
+                    distances[i] = workspace.distance(i);
+                }
+            }
+            cache.put(originId, generation, version, sum, distances);
+            return sum;
+        } finally {
+            workspace.release();
+        }
+    }
+
+    private TreeRepair.Result repair(GraphSnapshot snapshot, int originId, ShortestPathCache.Entry cached) {
+        EdgeChangeLog.EdgeChanges changes = snapshot.changesSince(cached.getVersion());
+        if (changes == null) return null;
+        return TreeRepair.repair(snapshot.getCsr(), originId, cached.getDistances(), cached.getSum(), changes);
+    }
+
+    /**
+     * Clears the graph together with all cached results.
+     */
+    public void reset() {
+        store.reset();
+        cache.clear();
+        landmarks.clear();
+    }
+
+    /**
+     * Replaces the graph by the one of a {@link org.solutions.grid.datastructures.GraphFile},
+     * dropping all cached results.
+     * @throws java.io.UncheckedIOException if the file cannot be read
+     */
+    public GraphSnapshot restore(Path file) {
+        try {
+            return store.restore(file);
+        } finally {
+            cache.clear();
+            landmarks.clear();
+        }
+    }
+}
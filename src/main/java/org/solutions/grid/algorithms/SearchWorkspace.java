@@ -0,0 +1,112 @@
+package org.solutions.grid.algorithms;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable state of one shortest path search: distances, settled flags and the heap.
+ * Distances are epoch-stamped: a location is reached in the current search only if its
+ * stamp is {@code 2 * epoch} (reached) or {@code 2 * epoch + 1} (settled), so starting
+ * a new search just increments the epoch instead of clearing arrays sized to the graph.
+ * Workspaces are pooled and shared by all connection threads.
+ */
+public class SearchWorkspace {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final ArrayBlockingQueue<SearchWorkspace> POOL =
+            new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors());
+
+    private long[] dist = new long[INITIAL_CAPACITY];
+    private int[] stamps = new int[INITIAL_CAPACITY];
+    /**
+     * Locations in the order in which they were settled.
+     */
+    private int[] settled = new int[INITIAL_CAPACITY];
+    private int settledCount;
+    private int epoch;
+    private final IndexedDaryHeap heap = new IndexedDaryHeap(INITIAL_CAPACITY);
+
+    /**
+     * Takes a workspace from the pool, or creates one if all of them are in use.
+     */
+    public static SearchWorkspace acquire() {
+        SearchWorkspace workspace = POOL.poll();
+        return workspace != null ? workspace : new SearchWorkspace();
+    }
+
+    /**
+     * Returns the workspace to the pool, dropping it if the pool is full.
+     */
+    public void release() {
+        POOL.offer(this);
+    }
+
+    /**
+     * Prepares the workspace for a new search.
+     * @param nodeCount number of locations of the searched graph
+     */
+    public void begin(int nodeCount) {
+        if (nodeCount > dist.length) {
+            int capacity = Math.max(nodeCount, dist.length + (dist.length >> 1));
+            dist = new long[capacity];
+            stamps = new int[capacity];
+            settled = new int[capacity];
+            epoch = 0;
+        }
+        heap.ensureCapacity(nodeCount);
+        heap.clear();
+        settledCount = 0;
+        if (epoch == Integer.MAX_VALUE / 2) { /* stamps would overflow, start over */
+            Arrays.fill(stamps, 0);
+            epoch = 0;
+        }
+        epoch++;
+    }
+
+    /**
+     * @return distance of the location found so far, {@link Long#MAX_VALUE} if it was not reached
+     */
+    public long distance(int node) {
+        return stamps[node] >= 2 * epoch ? dist[node] : Long.MAX_VALUE;
+    }
+
+    public void setDistance(int node, long distance) {
+        dist[node] = distance;
+        stamps[node] = 2 * epoch;
+    }
+
+    public boolean isSettled(int node) {
+        return stamps[node] == 2 * epoch + 1;
+    }
+
+    public void settle(int node) {
+        stamps[node] = 2 * epoch + 1;
+        settled[settledCount++] = node;
+    }
+
+    public int getSettledCount() {
+        return settledCount;
+    }
+
+    /**
+     * @param index order of the location among the settled ones, below {@link #getSettledCount()}
+     * @return id of the location settled as the given one
+     */
+    public int getSettled(int index) {
+        return settled[index];
+    }
+
+    /**
+     * @return sum of distances of all settled locations
+     */
+    public long settledDistanceSum() {
+        long sum = 0L;
+        for (int i = 0; i < settledCount; i++) {
+            sum += dist[settled[i]];
+        }
+        return sum;
+    }
+
+    public IndexedDaryHeap getHeap() {
+        return heap;
+    }
+}
@@ -0,0 +1,134 @@
+package org.solutions.grid.algorithms;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of OneToAll results keyed by the origin location id.
+ * Every entry remembers the graph generation and version it was computed on and is valid only for that version.
+ * Besides the sum of distances, an entry may hold the whole distance array (the shortest path tree)
+ * so that OneToOne queries from the same origin are answered by a lookup;
+ * the arrays are limited by a memory budget separately from the number of entries.
+ */
+public class ShortestPathCache {
+    private final int maxEntries;
+    private final long maxTreeBytes;
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long treeBytes;
+
+    /**
+     * @param maxEntries maximal number of cached origins, 0 disables the cache
+     * @param maxTreeBytes maximal memory taken by the cached distance arrays
+     */
+    public ShortestPathCache(int maxEntries, long maxTreeBytes) {
+        this.maxEntries = maxEntries;
+        this.maxTreeBytes = maxTreeBytes;
+    }
+
+    /**
+     * Result of a OneToAll query from one origin.
+     */
+    public static class Entry {
+        private final long generation;
+        private final long version;
+        private final long sum;
+        private final long[] distances;
+
+        Entry(long generation, long version, long sum, long[] distances) {
+            this.generation = generation;
+            this.version = version;
+            this.sum = sum;
+            this.distances = distances;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return distances from the origin indexed by location id, or null if only the sum is cached
+         */
+        public long[] getDistances() {
+            return distances;
+        }
+    }
+
+    /**
+     * Finds the result for the origin computed on the given graph version.
+     * @return cached entry, or null if there is none or it belongs to another version
+     */
+    public synchronized Entry get(int originId, long generation, long version) {
+        Entry entry = entries.get(originId);
+        return entry != null && entry.generation == generation && entry.version == version ? entry : null;
+    }
+
+    /**
+     * Finds the result for the origin computed on any graph version.
+     * @return cached entry, or null if there is none
+     */
+    public synchronized Entry getAnyVersion(int originId) {
+        return entries.get(originId);
+    }
+
+    /**
+     * Tells whether a distance array for a graph of the given size fits into the memory budget at all.
+     */
+    public boolean acceptsTree(int nodeCount) {
+        return maxEntries > 0 && treeBytes(nodeCount) <= maxTreeBytes;
+    }
+
+    /**
+     * Stores the result for the origin, replacing any older one, and evicts
+     * the least recently used entries above the limits. A result of an older version or generation
+     * than the cached one, computed by a query on an older snapshot, is dropped.
+     * @param distances distance array to keep with the sum, may be null
+     */
+    public synchronized void put(int originId, long generation, long version, long sum, long[] distances) {
+        if (maxEntries == 0) return;
+        Entry current = entries.get(originId);
+        if (current != null && (current.generation > generation
+                || current.generation == generation && current.version > version)) return;
+        if (distances != null && treeBytes(distances.length) > maxTreeBytes) {
+            distances = null;
+        }
+        Entry previous = entries.put(originId, new Entry(generation, version, sum, distances));
+        if (previous != null) treeBytes -= treeBytes(previous);
+        treeBytes += treeBytes(distances);
+
+        Iterator<Map.Entry<Integer, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || treeBytes > maxTreeBytes) && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            treeBytes -= treeBytes(evicted);
+        }
+    }
+
+    /**
+     * Removes all entries, used when the graph is cleared.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        treeBytes = 0L;
+    }
+
+    private static long treeBytes(Entry entry) {
+        return treeBytes(entry.distances);
+    }
+
+    private static long treeBytes(long[] distances) {
+        return distances == null ? 0L : treeBytes(distances.length);
+    }
+
+    private static long treeBytes(int nodeCount) {
+        return (long) nodeCount * Long.BYTES;
+    }
+}
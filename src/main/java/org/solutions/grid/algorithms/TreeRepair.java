@@ -0,0 +1,203 @@
+package org.solutions.grid.algorithms;
+
+import org.solutions.grid.datastructures.CsrGraph;
+import org.solutions.grid.datastructures.EdgeChangeLog;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Repairs a shortest path tree computed on an older graph version after a few edges changed.
+ * <p>
+ * Locations whose old shortest path may run through an edge that got longer are found by following
+ * tight edges (those with {@code dist[u] + w(u, v) == dist[v]}) of the old graph from the heads of
+ * the lengthened tight edges. Their distances are dropped and recomputed from the unaffected rest
+ * of the tree, and the edges that got shorter or were added seed further improvements; the labels
+ * are then settled by Dijkstra's algorithm restricted to the locations whose distance changes.
+ */
+public class TreeRepair {
+    private static final long INF = Long.MAX_VALUE;
+    /**
+     * When more locations than this fraction of the graph are affected, a new search is cheaper.
+     */
+    private static final int MAX_AFFECTED_DIVISOR = 4;
+
+    /**
+     * Repaired shortest path tree.
+     */
+    public static class Result {
+        private final long[] distances;
+        private final long sum;
+
+        private Result(long[] distances, long sum) {
+            this.distances = distances;
+            this.sum = sum;
+        }
+
+        /**
+         * @return distances from the origin indexed by location id, {@link Long#MAX_VALUE} for unreachable ones
+         */
+        public long[] getDistances() {
+            return distances;
+        }
+
+        /**
+         * @return sum of the distances of all reachable locations
+         */
+        public long getSum() {
+            return sum;
+        }
+    }
+
+    /**
+     * @param csr current snapshot of the graph
+     * @param originId origin of the tree
+     * @param oldDistances distances from the origin on the older graph version
+     * @param oldSum sum of the reachable old distances
+     * @param changes edges changed since that version with their old average distances
+     * @return distances on the current graph, or null if repairing would not pay off
+     */
+    public static Result repair(CsrGraph csr, int originId, long[] oldDistances, long oldSum,
+                                EdgeChangeLog.EdgeChanges changes) {
+        int nodeCount = csr.getNodeCount();
+        if (changes.size() > nodeCount / MAX_AFFECTED_DIVISOR) return null;
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        long[] avgWeight = csr.getAvgWeight();
+
+        long[] dist = Arrays.copyOf(oldDistances, nodeCount);
+        Arrays.fill(dist, oldDistances.length, nodeCount, INF);
+        /* Locations whose distance may differ from the old one, so the sum is patched only for them. */
+        BitSet touched = new BitSet(nodeCount);
+
+        /* Old distances of changed edges, to tell which edges were tight in the old graph. */
+        Map<Long, Long> oldWeights = new HashMap<>();
+        for (int i = 0; i < changes.size(); i++) {
+            oldWeights.put(edgeKey(changes.getFrom(i), changes.getTo(i)), changes.getOldAvgDistance(i));
+        }
+
+        /* Locations whose old shortest path may have used a lengthened edge. */
+        BitSet affected = new BitSet(nodeCount);
+        int[] stack = new int[16];
+        int stackSize = 0;
+        for (int i = 0; i < changes.size(); i++) {
+            int from = changes.getFrom(i);
+            int to = changes.getTo(i);
+            long oldWeight = changes.getOldAvgDistance(i);
+            if (oldWeight == EdgeChangeLog.NO_EDGE || csr.weight(from, to) <= oldWeight) continue;
+            if (to != originId && isTight(oldDistances, from, to, oldWeight) && !affected.get(to)) {
+                affected.set(to);
+                if (stackSize == stack.length) stack = Arrays.copyOf(stack, stackSize * 2);
+                stack[stackSize++] = to;
+            }
+        }
+        int affectedCount = stackSize;
+        while (stackSize > 0) {
+            int u = stack[--stackSize];
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int v = targets[e];
+                if (v == originId || affected.get(v)) continue;
+                Long changedWeight = oldWeights.get(edgeKey(u, v));
+                long oldWeight = changedWeight != null ? changedWeight : avgWeight[e];
+                if (oldWeight != EdgeChangeLog.NO_EDGE && isTight(oldDistances, u, v, oldWeight)) {
+                    affected.set(v);
+                    affectedCount++;
+                    if (affectedCount > nodeCount / MAX_AFFECTED_DIVISOR) return null;
+                    if (stackSize == stack.length) stack = Arrays.copyOf(stack, stackSize * 2);
+                    stack[stackSize++] = v;
+                }
+            }
+        }
+
+        SearchWorkspace workspace = SearchWorkspace.acquire();
+        try {
+            settle(csr, dist, touched, affected, affectedCount, changes, workspace);
+        } finally {
+            workspace.release();
+        }
+
+        long sum = oldSum;
+        for (int v = touched.nextSetBit(0); v >= 0; v = touched.nextSetBit(v + 1)) {
+            if (v < oldDistances.length && oldDistances[v] != INF) sum -= oldDistances[v];
+            if (dist[v] != INF) sum += dist[v];
+        }
+        return new Result(dist, sum);
+    }
+
+    private static void settle(CsrGraph csr, long[] dist, BitSet touched, BitSet affected, int affectedCount,
+                               EdgeChangeLog.EdgeChanges changes, SearchWorkspace workspace) {
+        int nodeCount = csr.getNodeCount();
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        long[] avgWeight = csr.getAvgWeight();
+        workspace.begin(nodeCount);
+        IndexedDaryHeap heap = workspace.getHeap();
+        if (affectedCount > 0) {
+            /* Affected locations restart from their best edge coming from the unaffected part. */
+            for (int a = affected.nextSetBit(0); a >= 0; a = affected.nextSetBit(a + 1)) {
+                dist[a] = INF;
+            }
+            touched.or(affected);
+            int[] inOffsets = csr.getInOffsets();
+            int[] inSources = csr.getInSources();
+            long[] inAvgWeight = csr.getInAvgWeight();
+            for (int a = affected.nextSetBit(0); a >= 0; a = affected.nextSetBit(a + 1)) {
+                for (int e = inOffsets[a]; e < inOffsets[a + 1]; e++) {
+                    int u = inSources[e];
+                    if (dist[u] != INF && !affected.get(u) && dist[u] + inAvgWeight[e] < dist[a]) {
+                        dist[a] = dist[u] + inAvgWeight[e];
+                    }
+                }
+                if (dist[a] != INF) heap.insertOrDecrease(a, dist[a]);
+            }
+        }
+
+        /* Shortened and new edges may improve the distance of their destination. */
+        for (int i = 0; i < changes.size(); i++) {
+            int from = changes.getFrom(i);
+            int to = changes.getTo(i);
+            long weight = csr.weight(from, to);
+            if (weight >= changes.getOldAvgDistance(i) || dist[from] == INF || affected.get(from)) continue;
+            if (dist[from] + weight < dist[to]) {
+                dist[to] = dist[from] + weight;
+                touched.set(to);
+                heap.insertOrDecrease(to, dist[to]);
+            }
+        }
+
+        while (!heap.isEmpty()) {
+            int u = heap.poll();
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int v = targets[e];
+                long newDist = dist[u] + avgWeight[e];
+                if (newDist < dist[v]) {
+                    dist[v] = newDist;
+                    touched.set(v);
+                    heap.insertOrDecrease(v, newDist);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sums the distances of all reachable locations.
+     */
+    public static long reachableSum(long[] distances) {
+        long sum = 0L;
+        for (long d : distances) {
+            if (d != INF) sum += d;
+        }
+        return sum;
+    }
+
+    private static boolean isTight(long[] oldDistances, int from, int to, long oldWeight) {
+        return from < oldDistances.length && to < oldDistances.length
+                && oldDistances[from] != INF && oldDistances[from] + oldWeight == oldDistances[to];
+    }
+
+    private static long edgeKey(int from, int to) {
+        return ((long) from << 32) | to;
+    }
+}
@@ -0,0 +1,676 @@
+package org.solutions.grid.cluster;
+
+import org.solutions.grid.algorithms.IndexedDaryHeap;
+import org.solutions.grid.algorithms.SearchWorkspace;
+import org.solutions.grid.cluster.proto.BoundaryRow;
+import org.solutions.grid.cluster.proto.ShardIngest;
+import org.solutions.grid.cluster.proto.ShardRequest;
+import org.solutions.grid.cluster.proto.ShardReset;
+import org.solutions.grid.cluster.proto.ShardResponse;
+import org.solutions.grid.cluster.proto.ShardSearch;
+import org.solutions.grid.datastructures.HashGrid;
+import org.solutions.grid.datastructures.WalkBuffer;
+import org.solutions.grid.server.GraphBackend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Graph partitioned across shard processes by a {@link ShardMap}, answering the same as a single graph.
+ * <p>
+ * The coordinator keeps only the locations: a single writer thread resolves the walks of every
+ * synchronization point in the grid exactly like {@link org.solutions.grid.datastructures.Graph} does, and
+ * sends every path to the shard owning its origin. A path leading to another block makes its destination
+ * an entry of that block. Shards answer an ingest with the boundary rows it changed, the distances inside
+ * the block of an entry to the locations outside it, which are entries of their blocks; the rows form
+ * the overlay graph of the entries, kept by the coordinator. The cluster version is published once
+ * all shards have ingested it, and shards keep the snapshots of recent versions so queries of one version
+ * see the same graph in every shard.
+ * <p>
+ * A shortest path leaves the shard of its origin at a foreign location, moves between entries along
+ * overlay edges and reaches its destination from the last shard entry, an entry led to from another shard,
+ * inside the destination's shard. A OneToOne query therefore searches the origin's shard from the origin,
+ * the overlay from the foreign locations reached, and the destination's shard from its shard entries
+ * at their overlay distances. A OneToAll query searches every shard from its shard entries, and
+ * the origin, and sums the distances of the locations each shard owns.
+ */
+public class ClusterCoordinator implements GraphBackend {
+    /**
+     * Number of times a query is started again on a newer version when a shard no longer has its version.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    private final ShardMap shardMap;
+    private final ShardClient[] shards;
+    /**
+     * Virtual threads calling the shards in parallel.
+     */
+    private final ExecutorService calls = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicReference<Snapshot> current;
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+
+    /* State of the writer thread. Arrays are replaced when they grow, published versions keep the old ones. */
+    private HashGrid grid;
+    private int[] xs;
+    private int[] ys;
+    private int locationCount;
+    private long version;
+    private long ingestedWalks;
+    /**
+     * Number of resets, global ids are stable between them.
+     */
+    private long resets;
+    /**
+     * Index of every location in the overlay, -1 if it is no entry.
+     */
+    private int[] overlayIndex;
+    /**
+     * Location of every overlay node.
+     */
+    private int[] overlayNodes;
+    /**
+     * Whether paths from another shard lead to the overlay node. An entry may become a shard entry after
+     * it was published, older versions then also start searches from it, at a distance which is still
+     * the length of a path of their version.
+     */
+    private boolean[] shardEntries;
+    private int overlayCount;
+    private Row[] rows;
+    private long overlayEdges;
+    /**
+     * Whether rows changed since the last published version.
+     */
+    private boolean rowsChanged;
+
+    /**
+     * Overlay edges from an entry, to overlay nodes.
+     */
+    private static class Row {
+        private final int[] targets;
+        private final long[] weights;
+
+        private Row(int[] targets, long[] weights) {
+            this.targets = targets;
+            this.weights = weights;
+        }
+    }
+
+    private static class Task {
+        private final WalkBuffer walks;
+        private final CompletableFuture<Snapshot> published = new CompletableFuture<>();
+
+        /**
+         * @param walks walks to add, null for a reset
+         */
+        private Task(WalkBuffer walks) {
+            this.walks = walks;
+        }
+    }
+
+    /**
+     * Paths of one ingest for one shard together with the locations they reference.
+     */
+    private static class ShardBatch {
+        private final ShardIngest.Builder ingest = ShardIngest.newBuilder();
+        private final Map<Integer, Integer> indices = new HashMap<>();
+        private final BitSet foreign = new BitSet();
+        private final BitSet entries = new BitSet();
+    }
+
+    /**
+     * Thrown when a shard no longer keeps the version a query searches.
+     */
+    private static class StaleVersionException extends RuntimeException {
+        private StaleVersionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param shardMap partition of the plane, its shards in the order of the addresses
+     * @param addresses host and port of every shard
+     */
+    public ClusterCoordinator(ShardMap shardMap, List<String> addresses) {
+        if (addresses.size() != shardMap.getShards()) {
+            throw new IllegalArgumentException(addresses.size() + " shard addresses for "
+                    + shardMap.getShards() + " shards");
+        }
+        this.shardMap = shardMap;
+        this.shards = new ShardClient[addresses.size()];
+        for (int s = 0; s < shards.length; s++) {
+            shards[s] = new ShardClient(addresses.get(s));
+        }
+        clear();
+        callAll(s -> resetRequest());
+        this.current = new AtomicReference<>(snapshot(null));
+        Thread writer = new Thread(this::write, "cluster-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public Version current() {
+        return current.get();
+    }
+
+    @Override
+    public Version addWalks(WalkBuffer walks) {
+        return submit(new Task(walks));
+    }
+
+    @Override
+    public void reset() {
+        submit(new Task(null));
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    /**
+     * @return number of tasks waiting for the writer thread
+     */
+    public int getPendingTasks() {
+        return tasks.size();
+    }
+
+    public int getLocationCount() {
+        return current.get().locationCount;
+    }
+
+    public long getVersion() {
+        return current.get().version;
+    }
+
+    public long getIngestedWalks() {
+        return current.get().ingestedWalks;
+    }
+
+    /**
+     * @return number of entries of all blocks
+     */
+    public int getOverlayNodes() {
+        return current.get().overlayCount;
+    }
+
+    public long getOverlayEdges() {
+        return current.get().overlayEdges;
+    }
+
+    private Snapshot submit(Task task) {
+        tasks.add(task);
+        return task.published.join();
+    }
+
+    private void write() {
+        List<Task> batch = new ArrayList<>();
+        List<WalkBuffer> walks = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(tasks.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            tasks.drainTo(batch);
+            Snapshot previous = current.get();
+            try {
+                for (Task task : batch) {
+                    if (task.walks != null) {
+                        walks.add(task.walks);
+                    } else { /* walks submitted before a reset are cleared by it */
+                        walks.clear();
+                        clear();
+                        callAll(s -> resetRequest());
+                    }
+                }
+                if (!walks.isEmpty()) {
+                    ingest(walks);
+                }
+                Snapshot snapshot = snapshot(previous);
+                current.set(snapshot);
+                for (Task task : batch) {
+                    task.published.complete(snapshot);
+                }
+            } catch (RuntimeException e) {
+                for (Task task : batch) {
+                    task.published.completeExceptionally(e);
+                }
+            }
+            walks.clear();
+            batch.clear();
+        }
+    }
+
+    private ShardRequest resetRequest() {
+        return ShardRequest.newBuilder().setReset(ShardReset.newBuilder()
+                .setVersion(version).setBlockCells(shardMap.getBlockCells())).build();
+    }
+
+    /**
+     * Starts an empty graph as a new version.
+     */
+    private void clear() {
+        grid = new HashGrid();
+        xs = new int[1024];
+        ys = new int[1024];
+        locationCount = 0;
+        overlayIndex = new int[1024];
+        Arrays.fill(overlayIndex, -1);
+        overlayNodes = new int[1024];
+        shardEntries = new boolean[1024];
+        overlayCount = 0;
+        rows = new Row[1024];
+        overlayEdges = 0;
+        rowsChanged = true;
+        resets++;
+        version++;
+    }
+
+    /**
+     * Resolves the locations of the walks, sends their paths to the shards as a new version and
+     * replaces the boundary rows the shards changed.
+     */
+    private void ingest(List<WalkBuffer> batch) {
+        version++;
+        ShardBatch[] batches = new ShardBatch[shards.length];
+        for (WalkBuffer walks : batch) {
+            for (int w = 0; w < walks.getWalkCount(); w++) {
+                int end = walks.getWalkEnd(w);
+                int start = walks.getWalkStart(w);
+                if (end - start < 2) continue;
+                int fromId = locationId(walks.getX(start), walks.getY(start));
+                for (int i = start; i < end - 1; i++) {
+                    int toId = locationId(walks.getX(i + 1), walks.getY(i + 1));
+                    addPath(batches, fromId, toId, walks.getLength(i));
+                    fromId = toId;
+                }
+            }
+            ingestedWalks += walks.getWalkCount();
+        }
+        List<ShardResponse> responses = callAll(s -> batches[s] == null ? null
+                : ShardRequest.newBuilder().setIngest(batches[s].ingest.setVersion(version)).build());
+        for (ShardResponse response : responses) {
+            if (response == null) continue;
+            for (BoundaryRow row : response.getRowsList()) {
+                setRow(row);
+            }
+        }
+    }
+
+    /**
+     * Finds the id of the same location in the grid, adding the location if there is none.
+     */
+    private int locationId(int x, int y) {
+        int existingId = grid.locationId(x, y);
+        if (existingId >= 0) {
+            return existingId;
+        }
+        int id = locationCount++;
+        if (id == xs.length) {
+            xs = Arrays.copyOf(xs, id * 2);
+            ys = Arrays.copyOf(ys, id * 2);
+        }
+        xs[id] = x;
+        ys[id] = y;
+        grid.insert(x, y, id);
+        return id;
+    }
+
+    private void addPath(ShardBatch[] batches, int fromId, int toId, long length) {
+        int owner = owner(fromId);
+        ShardBatch batch = batch(batches, owner);
+        batch.ingest.addFrom(index(batch, fromId)).addTo(index(batch, toId)).addLengths((int) length);
+        if (shardMap.block(xs[fromId], ys[fromId]) == shardMap.block(xs[toId], ys[toId])) return;
+        int toOwner = owner(toId);
+        ShardBatch entryBatch = batch(batches, toOwner);
+        int entry = index(entryBatch, toId);
+        if (!entryBatch.entries.get(entry)) {
+            entryBatch.entries.set(entry);
+            entryBatch.ingest.addEntries(entry);
+        }
+        int node = addOverlayNode(toId);
+        if (toOwner == owner) return;
+        int foreign = index(batch, toId);
+        if (!batch.foreign.get(foreign)) {
+            batch.foreign.set(foreign);
+            batch.ingest.addForeign(foreign);
+        }
+        shardEntries[node] = true;
+    }
+
+    private static ShardBatch batch(ShardBatch[] batches, int shard) {
+        if (batches[shard] == null) {
+            batches[shard] = new ShardBatch();
+        }
+        return batches[shard];
+    }
+
+    /**
+     * @return index of the location among those referenced by the batch, added if it is not there yet
+     */
+    private int index(ShardBatch batch, int id) {
+        Integer index = batch.indices.get(id);
+        if (index == null) {
+            index = batch.indices.size();
+            batch.indices.put(id, index);
+            batch.ingest.addLocationIds(id).addXs(xs[id]).addYs(ys[id]);
+        }
+        return index;
+    }
+
+    /**
+     * @return overlay node of the entry, added if it is not there yet
+     */
+    private int addOverlayNode(int id) {
+        if (id >= overlayIndex.length) {
+            int length = overlayIndex.length;
+            overlayIndex = Arrays.copyOf(overlayIndex, Math.max(id + 1, length * 2));
+            Arrays.fill(overlayIndex, length, overlayIndex.length, -1);
+        }
+        if (overlayIndex[id] >= 0) {
+            return overlayIndex[id];
+        }
+        if (overlayCount == overlayNodes.length) {
+            overlayNodes = Arrays.copyOf(overlayNodes, overlayCount * 2);
+            shardEntries = Arrays.copyOf(shardEntries, overlayCount * 2);
+            rows = Arrays.copyOf(rows, overlayCount * 2);
+        }
+        overlayNodes[overlayCount] = id;
+        overlayIndex[id] = overlayCount;
+        return overlayCount++;
+    }
+
+    private void setRow(BoundaryRow row) {
+        int node = overlayIndex[row.getEntryId()];
+        int[] targets = new int[row.getExitIdsCount()];
+        long[] weights = new long[targets.length];
+        for (int e = 0; e < targets.length; e++) {
+            targets[e] = overlayIndex[row.getExitIds(e)];
+            weights[e] = row.getDistances(e);
+        }
+        if (rows[node] != null) {
+            overlayEdges -= rows[node].targets.length;
+        }
+        rows[node] = new Row(targets, weights);
+        overlayEdges += targets.length;
+        rowsChanged = true;
+    }
+
+    /**
+     * @param previous version published before, whose rows are shared if they have not changed
+     */
+    private Snapshot snapshot(Snapshot previous) {
+        Row[] published = previous != null && !rowsChanged ? previous.rows : Arrays.copyOf(rows, overlayCount);
+        rowsChanged = false;
+        return new Snapshot(version, resets, locationCount, ingestedWalks, grid, xs, ys,
+                overlayIndex, overlayNodes, shardEntries, overlayCount, published, overlayEdges);
+    }
+
+    private int owner(int id) {
+        return shardMap.owner(xs[id], ys[id]);
+    }
+
+    private interface RequestOfShard {
+        /**
+         * @return request for the shard, null if it is not called
+         */
+        ShardRequest request(int shard);
+    }
+
+    /**
+     * Calls the shards in parallel and waits for all of them.
+     * @return responses indexed by shard, null for the shards not called
+     */
+    private List<ShardResponse> callAll(RequestOfShard requests) {
+        List<CompletableFuture<ShardResponse>> futures = new ArrayList<>(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            ShardRequest request = requests.request(s);
+            int shard = s;
+            futures.add(request == null ? CompletableFuture.completedFuture(null)
+                    : CompletableFuture.supplyAsync(() -> call(shard, request), calls));
+        }
+        List<ShardResponse> responses = new ArrayList<>(shards.length);
+        try {
+            for (CompletableFuture<ShardResponse> future : futures) {
+                responses.add(future.join());
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        return responses;
+    }
+
+    /**
+     * @throws StaleVersionException if the shard no longer keeps the searched version
+     * @throws IllegalStateException if the shard failed to process the request
+     */
+    private ShardResponse call(int shard, ShardRequest request) {
+        ShardResponse response = shards[shard].call(request);
+        switch (response.getStatus()) {
+            case OK:
+                return response;
+            case STALE:
+                throw new StaleVersionException(response.getErrMsg());
+            default:
+                throw new IllegalStateException("Shard " + shards[shard] + " failed: " + response.getErrMsg());
+        }
+    }
+
+    /**
+     * Published version of the cluster with the overlay as of that version.
+     */
+    private class Snapshot implements Version {
+        private final long version;
+        private final long resets;
+        private final int locationCount;
+        private final long ingestedWalks;
+        private final HashGrid grid;
+        private final int[] xs;
+        private final int[] ys;
+        private final int[] overlayIndex;
+        private final int[] overlayNodes;
+        private final boolean[] shardEntries;
+        private final int overlayCount;
+        private final Row[] rows;
+        private final long overlayEdges;
+
+        private Snapshot(long version, long resets, int locationCount, long ingestedWalks, HashGrid grid,
+                         int[] xs, int[] ys, int[] overlayIndex, int[] overlayNodes, boolean[] shardEntries,
+                         int overlayCount, Row[] rows, long overlayEdges) {
+            this.version = version;
+            this.resets = resets;
+            this.locationCount = locationCount;
+            this.ingestedWalks = ingestedWalks;
+            this.grid = grid;
+            this.xs = xs;
+            this.ys = ys;
+            this.overlayIndex = overlayIndex;
+            this.overlayNodes = overlayNodes;
+            this.shardEntries = shardEntries;
+            this.overlayCount = overlayCount;
+            this.rows = rows;
+            this.overlayEdges = overlayEdges;
+        }
+
+        @Override
+        public int locationId(int x, int y) {
+            return grid.locationId(x, y, locationCount);
+        }
+
+        @Override
+        public long oneToOne(int originId, int destinationId) {
+            Snapshot snapshot = this;
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return snapshot.searchOneToOne(originId, destinationId);
+                } catch (StaleVersionException e) {
+                    snapshot = retryOn(attempt, e);
+                }
+            }
+        }
+
+        @Override
+        public long oneToAll(int originId) {
+            Snapshot snapshot = this;
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return snapshot.searchOneToAll(originId);
+                } catch (StaleVersionException e) {
+                    snapshot = retryOn(attempt, e);
+                }
+            }
+        }
+
+        /**
+         * @return newest version, on which the ids of this version still identify the same locations
+         */
+        private Snapshot retryOn(int attempt, StaleVersionException e) {
+            Snapshot latest = current.get();
+            if (attempt >= MAX_RETRIES || latest.resets != resets) {
+                throw e;
+            }
+            return latest;
+        }
+
+        private long searchOneToOne(int originId, int destinationId) {
+            int originShard = owner(originId);
+            int destinationShard = owner(destinationId);
+            ShardResponse first = call(originShard, search()
+                    .addXs(xs[originId]).addYs(ys[originId]).addDistances(0L)
+                    .setHasDestination(true).setDestinationX(xs[destinationId]).setDestinationY(ys[destinationId])
+                    .setExits(overlayCount > 0));
+            long direct = originShard == destinationShard ? first.getDistance() : Long.MAX_VALUE;
+            if (first.getExitIdsCount() == 0) {
+                return direct;
+            }
+            SearchWorkspace workspace = searchOverlay(first);
+            ShardSearch.Builder last;
+            try {
+                last = entrySearches(workspace)[destinationShard];
+            } finally {
+                workspace.release();
+            }
+            if (last == null) {
+                return direct;
+            }
+            ShardResponse response = call(destinationShard, last.setHasDestination(true)
+                    .setDestinationX(xs[destinationId]).setDestinationY(ys[destinationId]));
+            return Math.min(direct, response.getDistance());
+        }
+
+        private long searchOneToAll(int originId) {
+            int originShard = owner(originId);
+            ShardResponse first = call(originShard, search()
+                    .addXs(xs[originId]).addYs(ys[originId]).addDistances(0L)
+                    .setExits(overlayCount > 0).setSum(true));
+            if (first.getExitIdsCount() == 0) {
+                return first.getSum();
+            }
+            SearchWorkspace workspace = searchOverlay(first);
+            ShardSearch.Builder[] searches;
+            try {
+                searches = entrySearches(workspace);
+            } finally {
+                workspace.release();
+            }
+            /* Without entries reached, the origin's shard was searched completely by the first search. */
+            long sum = 0L;
+            if (searches[originShard] == null) {
+                sum += first.getSum();
+            } else {
+                searches[originShard].addXs(xs[originId]).addYs(ys[originId]).addDistances(0L);
+            }
+            for (ShardResponse response : callAll(s -> searches[s] == null ? null
+                    : ShardRequest.newBuilder().setSearch(searches[s].setSum(true)).build())) {
+                if (response != null) {
+                    sum += response.getSum();
+                }
+            }
+            return sum;
+        }
+
+        private ShardSearch.Builder search() {
+            return ShardSearch.newBuilder().setVersion(version);
+        }
+
+        private ShardResponse call(int shard, ShardSearch.Builder search) {
+            return ClusterCoordinator.this.call(shard, ShardRequest.newBuilder().setSearch(search).build());
+        }
+
+        /**
+         * Searches the overlay from the foreign locations reached by the search of the origin's shard.
+         * @return workspace with the distances of the overlay nodes, to be released by the caller
+         */
+        private SearchWorkspace searchOverlay(ShardResponse first) {
+            SearchWorkspace workspace = SearchWorkspace.acquire();
+            IndexedDaryHeap heap = workspace.getHeap();
+            workspace.begin(overlayCount);
+            for (int i = 0; i < first.getExitIdsCount(); i++) {
+                int node = node(first.getExitIds(i));
+                long distance = first.getExitDistances(i);
+                if (node >= 0 && distance < workspace.distance(node)) {
+                    workspace.setDistance(node, distance);
+                    heap.insertOrDecrease(node, distance);
+                }
+            }
+            while (!heap.isEmpty()) {
+                long distance = heap.minKey();
+                int node = heap.poll();
+                workspace.settle(node);
+                Row row = rows[node];
+                if (row == null) continue;
+                for (int e = 0; e < row.targets.length; e++) {
+                    int target = row.targets[e];
+                    long newDistance = distance + row.weights[e];
+                    if (target >= 0 && target < overlayCount && !workspace.isSettled(target)
+                            && newDistance < workspace.distance(target)) {
+                        workspace.setDistance(target, newDistance);
+                        heap.insertOrDecrease(target, newDistance);
+                    }
+                }
+            }
+            return workspace;
+        }
+
+        /**
+         * @return searches of the shards from their shard entries reached in the overlay, null for shards with none
+         */
+        private ShardSearch.Builder[] entrySearches(SearchWorkspace workspace) {
+            ShardSearch.Builder[] searches = new ShardSearch.Builder[shards.length];
+            for (int i = 0; i < workspace.getSettledCount(); i++) {
+                int node = workspace.getSettled(i);
+                if (!shardEntries[node]) continue;
+                int id = overlayNodes[node];
+                int shard = owner(id);
+                if (searches[shard] == null) {
+                    searches[shard] = search();
+                }
+                searches[shard].addXs(xs[id]).addYs(ys[id]).addDistances(workspace.distance(node));
+            }
+            return searches;
+        }
+
+        /**
+         * @return overlay node of the location in this version, -1 if it is no entry
+         */
+        private int node(int id) {
+            int node = id < overlayIndex.length ? overlayIndex[id] : -1;
+            return node < overlayCount ? node : -1;
+        }
+
+        private int owner(int id) {
+            return shardMap.owner(xs[id], ys[id]);
+        }
+    }
+}
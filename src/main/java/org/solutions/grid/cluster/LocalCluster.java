@@ -0,0 +1,89 @@
+package org.solutions.grid.cluster;
+
+import org.solutions.grid.server.ConfigLoader;
+import org.solutions.grid.server.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cluster on this host for running and testing the cluster mode: starts {@code cluster.local_shards}
+ * shard processes listening on consecutive ports from {@code cluster.shard_port}, then the server
+ * of the configuration as their coordinator. The shard processes are stopped when this one exits.
+ */
+public class LocalCluster {
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * @param args optionally the number of shards, overriding {@code cluster.local_shards}, and properties
+     *             overriding those of the configuration file, each as {@code key=value}
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ConfigLoader config = new ConfigLoader("src/main/resources/config.properties");
+        config.setProperties(args);
+        int shards = args.length > 0 && args[0].indexOf('=') < 0
+                ? Integer.parseInt(args[0]) : config.getIntProperty("cluster.local_shards", 4);
+        int firstPort = config.getIntProperty("cluster.shard_port", config.getIntProperty("server.port") + 1);
+        int expectedLocations = Math.max(1024, config.getIntProperty("server.expected_locations_number") / shards);
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String classPath = classPath();
+
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy), "stop-shards"));
+        List<String> addresses = new ArrayList<>();
+        for (int s = 0; s < shards; s++) {
+            int port = firstPort + s;
+            processes.add(new ProcessBuilder(java, "-cp", classPath, ShardServer.class.getName(),
+                    String.valueOf(port), String.valueOf(expectedLocations)).inheritIO().start());
+            addresses.add("localhost:" + port);
+        }
+        for (int s = 0; s < shards; s++) {
+            awaitListening(processes.get(s), firstPort + s);
+        }
+        config.setProperty("cluster.shards", String.join(",", addresses));
+        Server.run(config);
+    }
+
+    /**
+     * Class path of this process, taken from its class loader when it is run by a launcher such as Maven's.
+     */
+    public static String classPath() {
+        if (LocalCluster.class.getClassLoader() instanceof URLClassLoader loader) {
+            List<String> entries = new ArrayList<>();
+            try {
+                for (URL url : loader.getURLs()) {
+                    entries.add(Path.of(url.toURI()).toString());
+                }
+                return String.join(File.pathSeparator, entries);
+            } catch (URISyntaxException e) {
+                /* fall back to the class path of the JVM */
+            }
+        }
+        return System.getProperty("java.class.path");
+    }
+
+    /**
+     * Waits until the started process accepts connections on the local port.
+     * @throws IOException if the process exits or does not listen in time
+     */
+    public static void awaitListening(Process process, int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Process listening on port " + port + " did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
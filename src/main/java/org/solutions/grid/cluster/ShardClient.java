@@ -0,0 +1,120 @@
+package org.solutions.grid.cluster;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import org.solutions.grid.cluster.proto.ShardRequest;
+import org.solutions.grid.cluster.proto.ShardResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connections of the coordinator to one shard. Every call takes an idle connection, or opens a new one
+ * if all of them are busy, so concurrent queries do not wait for each other's answers.
+ * Messages are framed by their size like those of the clients.
+ */
+public class ShardClient {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+    private static class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            /* Not subclassed, so they lock without a monitor and a waiting virtual thread is not pinned. */
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @param address host and port of the shard separated by a colon
+     */
+    public ShardClient(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Shard address " + address + " has no port");
+        }
+        this.host = address.substring(0, colon).trim();
+        this.port = Integer.parseInt(address.substring(colon + 1).trim());
+    }
+
+    /**
+     * Sends the request and waits for the response of the shard.
+     * @throws UncheckedIOException if the shard cannot be reached
+     */
+    public ShardResponse call(ShardRequest request) {
+        Connection connection = idle.poll();
+        try {
+            if (connection == null) {
+                connection = new Connection(new Socket(host, port));
+            }
+            writeFrame(connection.out, request);
+            connection.out.flush();
+            ShardResponse response = ShardResponse.parseFrom(readFrame(connection.in));
+            idle.offer(connection);
+            return response;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            throw new UncheckedIOException("Shard " + this + " failed", e);
+        }
+    }
+
+    /**
+     * Closes the idle connections.
+     */
+    public void close() {
+        for (Connection connection = idle.poll(); connection != null; connection = idle.poll()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Writes the message framed by its size, as the messages of the clients, the shards and the replicas are.
+     */
+    public static void writeFrame(DataOutputStream out, MessageLite message) throws IOException {
+        out.writeInt(message.getSerializedSize());
+        message.writeTo(out);
+    }
+
+    /**
+     * @return content of the next frame
+     * @throws InvalidProtocolBufferException if the frame size is negative
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new InvalidProtocolBufferException("Frame of " + size + " bytes");
+        }
+        byte[] frame = new byte[size];
+        in.readFully(frame);
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,63 @@
+package org.solutions.grid.cluster;
+
+import org.solutions.grid.datastructures.HashGrid;
+
+/**
+ * Partition of the plane among the shards of a cluster. The {@link HashGrid} cells are grouped
+ * into square blocks, and every block is owned by one shard chosen by a hash of the block coordinates.
+ * Blocks are much larger than the cells, so most paths stay inside one block and only those crossing
+ * a block border connect the blocks and the shards; hashing the blocks spreads dense areas over all shards.
+ */
+public class ShardMap {
+    private final int shards;
+    private final int blockCells;
+
+    /**
+     * @param shards number of shards
+     * @param blockCells side of a block in grid cells
+     */
+    public ShardMap(int shards, int blockCells) {
+        if (shards < 1 || blockCells < 1) {
+            throw new IllegalArgumentException("Invalid partition of " + shards + " shards and blocks of "
+                    + blockCells + " cells");
+        }
+        this.shards = shards;
+        this.blockCells = blockCells;
+    }
+
+    /**
+     * @return index of the shard owning the location
+     */
+    public int owner(int x, int y) {
+        long key = block(x, y, blockCells);
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) Math.floorMod(key, (long) shards);
+    }
+
+    /**
+     * @param blockCells side of a block in grid cells
+     * @return both coordinates of the block of the location packed into one long
+     */
+    public static long block(int x, int y, int blockCells) {
+        int blockX = Math.floorDiv(Math.floorDiv(x, HashGrid.CELL_SIZE), blockCells);
+        int blockY = Math.floorDiv(Math.floorDiv(y, HashGrid.CELL_SIZE), blockCells);
+        return ((long) blockX << 32) | (blockY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return block of the location, see {@link #block(int, int, int)}
+     */
+    public long block(int x, int y) {
+        return block(x, y, blockCells);
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int getBlockCells() {
+        return blockCells;
+    }
+}
@@ -0,0 +1,366 @@
+package org.solutions.grid.cluster;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.solutions.grid.algorithms.Dijkstra;
+import org.solutions.grid.algorithms.IndexedDaryHeap;
+import org.solutions.grid.algorithms.SearchWorkspace;
+import org.solutions.grid.cluster.proto.BoundaryRow;
+import org.solutions.grid.cluster.proto.ShardIngest;
+import org.solutions.grid.cluster.proto.ShardRequest;
+import org.solutions.grid.cluster.proto.ShardReset;
+import org.solutions.grid.cluster.proto.ShardResponse;
+import org.solutions.grid.cluster.proto.ShardSearch;
+import org.solutions.grid.datastructures.CsrGraph;
+import org.solutions.grid.datastructures.Graph;
+import org.solutions.grid.datastructures.GraphSnapshot;
+import org.solutions.grid.datastructures.WalkBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Shard of a cluster, a process holding the paths whose origins lie in its part of the plane.
+ * <p>
+ * Its graph contains the locations it owns and, as locations without paths, the foreign locations its
+ * paths lead to. Locations are found by the coordinates the coordinator resolved them to, which are
+ * farther from each other than same locations, so the shard's grid finds exactly the coordinator's
+ * locations. Every ingest is published as the snapshot of its cluster version, and searches run on
+ * the snapshot of the version the coordinator asks for; the last {@link #RETAINED_VERSIONS} are kept,
+ * a search of an older one is answered as stale.
+ * <p>
+ * After every ingest the shard brings up to date its boundary rows, the distances inside the block of
+ * every entry, an owned location that paths from other blocks lead to, to the locations outside the block.
+ * Only the rows of entries which reach an origin of a new path inside its block may change, they are found
+ * by a backward search from those origins and only they are searched again and sent to the coordinator.
+ * Searches of the rows are bounded by the blocks, so the cost of an ingest does not grow with the shard.
+ */
+public class ShardServer {
+    private static final int RETAINED_VERSIONS = 64;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int expectedLocations;
+    /**
+     * Graph of the shard, changed by one ingest or reset at a time.
+     */
+    private Graph graph;
+    /**
+     * Coordinator's id and whether it is owned by another shard, for every location of the graph.
+     * The arrays are replaced when they grow, so older versions keep reading those they were published with.
+     */
+    private int[] globalIds;
+    private boolean[] foreign;
+    /**
+     * Block of every location of the graph and entries of their blocks, touched only by ingests.
+     */
+    private long[] blocks;
+    private BitSet entries;
+    private int blockCells = 1;
+    private final ConcurrentSkipListMap<Long, Version> versions = new ConcurrentSkipListMap<>();
+
+    /**
+     * Snapshot published for a cluster version.
+     */
+    private static class Version {
+        private final GraphSnapshot snapshot;
+        private final int[] globalIds;
+        private final boolean[] foreign;
+
+        private Version(GraphSnapshot snapshot, int[] globalIds, boolean[] foreign) {
+            this.snapshot = snapshot;
+            this.globalIds = globalIds;
+            this.foreign = foreign;
+        }
+    }
+
+    /**
+     * @param expectedLocations approximate number of locations of the shard
+     */
+    public ShardServer(int expectedLocations) {
+        this.expectedLocations = expectedLocations;
+        clear(0L);
+    }
+
+    /**
+     * Starts a shard.
+     * @param args port to listen on and, optionally, the approximate number of locations of the shard
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: ShardServer <port> [expected_locations]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        ShardServer shard = new ShardServer(args.length > 1 ? Integer.parseInt(args[1]) : INITIAL_CAPACITY);
+        shard.serve(port);
+    }
+
+    /**
+     * Serves the connections of the coordinator, each on its own virtual thread.
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Shard listening on port " + port);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().start(() -> handle(socket));
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE))) {
+            socket.setTcpNoDelay(true);
+            while (true) {
+                ShardRequest request;
+                try {
+                    request = ShardRequest.parseFrom(ShardClient.readFrame(in));
+                } catch (InvalidProtocolBufferException e) {
+                    ShardClient.writeFrame(out, error(e));
+                    out.flush();
+                    return;
+                }
+                ShardClient.writeFrame(out, process(request));
+                out.flush();
+            }
+        } catch (IOException e) {
+            /* the coordinator closed the connection */
+        }
+    }
+
+    /**
+     * @return response to the request of the coordinator
+     */
+    ShardResponse process(ShardRequest request) {
+        try {
+            switch (request.getMsgCase()) {
+                case INGEST:
+                    return ingest(request.getIngest());
+                case RESET:
+                    return reset(request.getReset());
+                case SEARCH:
+                    return search(request.getSearch());
+                default:
+                    return ShardResponse.newBuilder()
+                            .setStatus(ShardResponse.Status.ERROR)
+                            .setErrMsg("Unknown request")
+                            .build();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return error(e);
+        }
+    }
+
+    /**
+     * Adds the paths, publishes them as the given version and returns the boundary rows they changed.
+     */
+    private synchronized ShardResponse ingest(ShardIngest ingest) {
+        int[] localIds = new int[ingest.getLocationIdsCount()];
+        for (int i = 0; i < localIds.length; i++) {
+            int id = graph.locationId(ingest.getXs(i), ingest.getYs(i));
+            if (id >= globalIds.length) {
+                globalIds = Arrays.copyOf(globalIds, Math.max(id + 1, globalIds.length * 2));
+                foreign = Arrays.copyOf(foreign, globalIds.length);
+                blocks = Arrays.copyOf(blocks, globalIds.length);
+            }
+            globalIds[id] = ingest.getLocationIds(i);
+            blocks[id] = ShardMap.block(ingest.getXs(i), ingest.getYs(i), blockCells);
+            localIds[i] = id;
+        }
+        for (int i = 0; i < ingest.getForeignCount(); i++) {
+            foreign[localIds[ingest.getForeign(i)]] = true;
+        }
+        BitSet changed = new BitSet();
+        for (int i = 0; i < ingest.getEntriesCount(); i++) {
+            int entry = localIds[ingest.getEntries(i)];
+            if (!entries.get(entry)) {
+                entries.set(entry);
+                changed.set(entry);
+            }
+        }
+        WalkBuffer paths = new WalkBuffer();
+        BitSet origins = new BitSet();
+        for (int p = 0; p < ingest.getFromCount(); p++) {
+            int from = ingest.getFrom(p);
+            int to = ingest.getTo(p);
+            paths.beginWalk();
+            paths.addLocation(ingest.getXs(from), ingest.getYs(from));
+            paths.addLocation(ingest.getXs(to), ingest.getYs(to));
+            paths.addLength(ingest.getLengths(p));
+            paths.endWalk();
+            origins.set(localIds[from]);
+        }
+        graph.addWalks(paths);
+        graph.commitBatch();
+        GraphSnapshot snapshot = graph.snapshot();
+        publish(ingest.getVersion(), new Version(snapshot, globalIds, foreign));
+
+        changed.or(entriesReaching(snapshot.getCsr(), origins));
+        ShardResponse.Builder response = ShardResponse.newBuilder().setStatus(ShardResponse.Status.OK);
+        SearchWorkspace workspace = SearchWorkspace.acquire();
+        try {
+            for (int entry = changed.nextSetBit(0); entry >= 0; entry = changed.nextSetBit(entry + 1)) {
+                response.addRows(row(snapshot.getCsr(), workspace, entry));
+            }
+        } finally {
+            workspace.release();
+        }
+        return response.build();
+    }
+
+    /**
+     * Searches the block of the entry, settling but not expanding the locations outside it.
+     */
+    private BoundaryRow row(CsrGraph csr, SearchWorkspace workspace, int entry) {
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        long[] weights = csr.getAvgWeight();
+        IndexedDaryHeap heap = workspace.getHeap();
+        long block = blocks[entry];
+        BoundaryRow.Builder row = BoundaryRow.newBuilder().setEntryId(globalIds[entry]);
+        workspace.begin(csr.getNodeCount());
+        workspace.setDistance(entry, 0L);
+        heap.insertOrDecrease(entry, 0L);
+        while (!heap.isEmpty()) {
+            long distance = heap.minKey();
+            int u = heap.poll();
+            workspace.settle(u);
+            if (blocks[u] != block) {
+                row.addExitIds(globalIds[u]).addDistances(distance);
+                continue;
+            }
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int v = targets[e];
+                long newDistance = distance + weights[e];
+                if (!workspace.isSettled(v) && newDistance < workspace.distance(v)) {
+                    workspace.setDistance(v, newDistance);
+                    heap.insertOrDecrease(v, newDistance);
+                }
+            }
+        }
+        return row.build();
+    }
+
+    /**
+     * Searches backwards from the origins, inside their blocks, for the entries whose paths to them
+     * may have got shorter.
+     */
+    private BitSet entriesReaching(CsrGraph csr, BitSet origins) {
+        BitSet reaching = new BitSet();
+        BitSet visited = (BitSet) origins.clone();
+        int[] queue = new int[csr.getNodeCount()];
+        int tail = 0;
+        for (int u = origins.nextSetBit(0); u >= 0; u = origins.nextSetBit(u + 1)) {
+            queue[tail++] = u;
+        }
+        int[] inOffsets = csr.getInOffsets();
+        int[] inSources = csr.getInSources();
+        for (int head = 0; head < tail; head++) {
+            int u = queue[head];
+            if (entries.get(u)) {
+                reaching.set(u);
+            }
+            for (int e = inOffsets[u]; e < inOffsets[u + 1]; e++) {
+                int source = inSources[e];
+                if (!visited.get(source) && blocks[source] == blocks[u]) {
+                    visited.set(source);
+                    queue[tail++] = source;
+                }
+            }
+        }
+        return reaching;
+    }
+
+    private synchronized ShardResponse reset(ShardReset reset) {
+        blockCells = Math.max(1, reset.getBlockCells());
+        clear(reset.getVersion());
+        return ShardResponse.newBuilder().setStatus(ShardResponse.Status.OK).build();
+    }
+
+    /**
+     * Starts an empty graph, queries of older versions keep searching the previous one.
+     */
+    private void clear(long version) {
+        graph = new Graph(expectedLocations);
+        globalIds = new int[INITIAL_CAPACITY];
+        foreign = new boolean[INITIAL_CAPACITY];
+        blocks = new long[INITIAL_CAPACITY];
+        entries = new BitSet();
+        publish(version, new Version(graph.snapshot(), globalIds, foreign));
+    }
+
+    private void publish(long version, Version published) {
+        versions.put(version, published);
+        while (versions.size() > RETAINED_VERSIONS) {
+            versions.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Searches the snapshot of the cluster version, which is the latest one published up to that version.
+     */
+    private ShardResponse search(ShardSearch search) {
+        Map.Entry<Long, Version> published = versions.floorEntry(search.getVersion());
+        if (published == null) {
+            return ShardResponse.newBuilder()
+                    .setStatus(ShardResponse.Status.STALE)
+                    .setErrMsg("Version " + search.getVersion() + " is no longer retained")
+                    .build();
+        }
+        Version version = published.getValue();
+        GraphSnapshot snapshot = version.snapshot;
+        int[] origins = new int[search.getXsCount()];
+        long[] distances = new long[origins.length];
+        int count = 0;
+        for (int i = 0; i < origins.length; i++) {
+            int id = snapshot.locationId(search.getXs(i), search.getYs(i));
+            if (id >= 0) {
+                origins[count] = id;
+                distances[count++] = search.getDistances(i);
+            }
+        }
+        int destinationId = search.getHasDestination()
+                ? snapshot.locationId(search.getDestinationX(), search.getDestinationY()) : -1;
+        boolean settleAll = search.getExits() || search.getSum();
+        ShardResponse.Builder response = ShardResponse.newBuilder().setStatus(ShardResponse.Status.OK);
+        SearchWorkspace workspace = SearchWorkspace.acquire();
+        try {
+            Dijkstra.search(snapshot.getCsr(), workspace, origins, distances, count, settleAll ? -1 : destinationId);
+            response.setDistance(destinationId < 0 ? Long.MAX_VALUE : workspace.distance(destinationId));
+            if (settleAll) {
+                long sum = 0L;
+                for (int i = 0; i < workspace.getSettledCount(); i++) {
+                    int node = workspace.getSettled(i);
+                    if (!version.foreign[node]) {
+                        sum += workspace.distance(node);
+                    } else if (search.getExits()) {
+                        response.addExitIds(version.globalIds[node]).addExitDistances(workspace.distance(node));
+                    }
+                }
+                response.setSum(sum);
+            }
+        } finally {
+            workspace.release();
+        }
+        return response.build();
+    }
+
+    private static ShardResponse error(Exception e) {
+        return ShardResponse.newBuilder()
+                .setStatus(ShardResponse.Status.ERROR)
+                .setErrMsg(String.valueOf(e.getMessage()))
+                .build();
+    }
+}
@@ -0,0 +1,98 @@
+package org.solutions.grid.datastructures;
+
+import java.util.BitSet;
+
+/**
+ * Query-side snapshot of the graph in compressed sparse row form.
+ * Out-edges of location {@code u} occupy indices {@code offsets[u]} to {@code offsets[u + 1] - 1}
+ * of {@code targets} and {@code avgWeight}, so a search walks plain primitive arrays
+ * instead of decoding the {@link EdgeStore} and dividing sums on every relaxation.
+ * In-edges are kept the same way in {@code inOffsets}, {@code inSources} and {@code inAvgWeight}
+ * for searches running backwards from a destination.
+ * A snapshot is immutable, so queries may search it while the graph builds the next one.
+ */
+public class CsrGraph {
+    public static final CsrGraph EMPTY = new CsrGraph(0, CsrRows.EMPTY, CsrRows.EMPTY);
+
+    private final int nodeCount;
+    private final CsrRows out;
+    private final CsrRows in;
+
+    private CsrGraph(int nodeCount, CsrRows out, CsrRows in) {
+        this.nodeCount = nodeCount;
+        this.out = out;
+        this.in = in;
+    }
+
+    /**
+     * Snapshot of complete rows, such as those read from a {@link GraphFile}.
+     */
+    static CsrGraph of(int nodeCount, int[] offsets, int[] targets, long[] avgWeight,
+                       int[] inOffsets, int[] inSources, long[] inAvgWeight) {
+        return new CsrGraph(nodeCount, new CsrRows(nodeCount, offsets, targets, avgWeight),
+                new CsrRows(nodeCount, inOffsets, inSources, inAvgWeight));
+    }
+
+    /**
+     * Brings the snapshot up to date with the ingest-side adjacency after some locations changed.
+     * @param outRows rows of out-edges of the graph
+     * @param inRows rows of in-edges of the graph
+     * @param nodeCount number of locations in the graph, at least {@link #getNodeCount()}
+     * @param dirtyOut locations whose out-edges were added or updated since this snapshot was built
+     * @param dirtyIn locations whose in-edges were added or updated since this snapshot was built
+     * @return updated snapshot, this instance if nothing changed
+     */
+    CsrGraph update(CsrRows.Source outRows, CsrRows.Source inRows, int nodeCount,
+                    BitSet dirtyOut, BitSet dirtyIn) {
+        CsrRows newOut = out.update(outRows, nodeCount, dirtyOut);
+        CsrRows newIn = in.update(inRows, nodeCount, dirtyIn);
+        if (newOut == out && newIn == in && nodeCount == this.nodeCount) {
+            return this;
+        }
+        return new CsrGraph(nodeCount, newOut, newIn);
+    }
+
+    /**
+     * Finds the average distance of an edge by scanning the row of its origin.
+     * @return average distance of the edge, {@link Long#MAX_VALUE} if there is no such edge
+     */
+    public long weight(int fromId, int toId) {
+        int[] offsets = out.offsets;
+        for (int e = offsets[fromId]; e < offsets[fromId + 1]; e++) {
+            if (out.neighbours[e] == toId) return out.avgWeight[e];
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return out.offsets[nodeCount];
+    }
+
+    public int[] getOffsets() {
+        return out.offsets;
+    }
+
+    public int[] getTargets() {
+        return out.neighbours;
+    }
+
+    public long[] getAvgWeight() {
+        return out.avgWeight;
+    }
+
+    public int[] getInOffsets() {
+        return in.offsets;
+    }
+
+    public int[] getInSources() {
+        return in.neighbours;
+    }
+
+    public long[] getInAvgWeight() {
+        return in.avgWeight;
+    }
+}
@@ -0,0 +1,136 @@
+package org.solutions.grid.datastructures;
+
+import java.util.BitSet;
+
+/**
+ * One direction of a {@link CsrGraph}: rows of neighbour ids and average distances
+ * packed into primitive arrays, row {@code u} being the index range
+ * {@code offsets[u]} to {@code offsets[u + 1] - 1}.
+ * Rows are never modified once built, as published snapshots are read without locking.
+ */
+class CsrRows {
+    static final CsrRows EMPTY = new CsrRows(0, new int[1], new int[0], new long[0]);
+
+    /**
+     * When more than this fraction of rows changed since the last snapshot,
+     * splicing old rows is no cheaper than building them from scratch.
+     */
+    private static final int FULL_REBUILD_DIVISOR = 4;
+
+    /**
+     * Ingest-side rows the snapshot is built from.
+     */
+    interface Source {
+        int degree(int u);
+
+        /**
+         * Writes row {@code u} starting at index {@code e}.
+         * @return index after the last written entry
+         */
+        int writeRow(int u, int[] neighbours, long[] avgWeight, int e);
+
+        /**
+         * Writes only the average distances of row {@code u} starting at index {@code e}.
+         * @return index after the last written entry
+         */
+        int writeWeights(int u, long[] avgWeight, int e);
+    }
+
+    final int rowCount;
+    final int[] offsets;
+    final int[] neighbours;
+    final long[] avgWeight;
+
+    CsrRows(int rowCount, int[] offsets, int[] neighbours, long[] avgWeight) {
+        this.rowCount = rowCount;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.avgWeight = avgWeight;
+    }
+
+    static CsrRows build(Source source, int rowCount) {
+        int entryCount = 0;
+        for (int u = 0; u < rowCount; u++) {
+            entryCount += source.degree(u);
+        }
+        int[] offsets = new int[rowCount + 1];
+        int[] neighbours = new int[entryCount];
+        long[] avgWeight = new long[entryCount];
+        int e = 0;
+        for (int u = 0; u < rowCount; u++) {
+            offsets[u] = e;
+            e = source.writeRow(u, neighbours, avgWeight, e);
+        }
+        offsets[rowCount] = e;
+        return new CsrRows(rowCount, offsets, neighbours, avgWeight);
+    }
+
+    /**
+     * Brings the rows up to date after some of them changed, leaving these rows untouched.
+     * If no row changed its length, only the weights are copied and patched, sharing the offsets
+     * and neighbours; otherwise unchanged rows are copied in bulk and only the changed rows
+     * are re-read from the source.
+     * @param newRowCount number of rows, at least the current one
+     * @param dirtyRows rows that changed since these rows were built
+     * @return updated rows, this instance if nothing changed
+     */
+    CsrRows update(Source source, int newRowCount, BitSet dirtyRows) {
+        if (dirtyRows.isEmpty() && newRowCount == rowCount) {
+            return this;
+        }
+        if (dirtyRows.cardinality() > newRowCount / FULL_REBUILD_DIVISOR) {
+            return build(source, newRowCount);
+        }
+        if (newRowCount == rowCount && sameDegrees(source, dirtyRows)) {
+            long[] newAvgWeight = avgWeight.clone();
+            for (int u = dirtyRows.nextSetBit(0); u >= 0; u = dirtyRows.nextSetBit(u + 1)) {
+                source.writeWeights(u, newAvgWeight, offsets[u]);
+            }
+            return new CsrRows(rowCount, offsets, neighbours, newAvgWeight);
+        }
+        return splice(source, newRowCount, dirtyRows);
+    }
+
+    private boolean sameDegrees(Source source, BitSet dirtyRows) {
+        for (int u = dirtyRows.nextSetBit(0); u >= 0; u = dirtyRows.nextSetBit(u + 1)) {
+            if (u >= rowCount || source.degree(u) != offsets[u + 1] - offsets[u]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CsrRows splice(Source source, int newRowCount, BitSet dirtyRows) {
+        int entryCount = neighbours.length;
+        for (int u = dirtyRows.nextSetBit(0); u >= 0; u = dirtyRows.nextSetBit(u + 1)) {
+            entryCount += source.degree(u) - (u < rowCount ? offsets[u + 1] - offsets[u] : 0);
+        }
+        int[] newOffsets = new int[newRowCount + 1];
+        int[] newNeighbours = new int[entryCount];
+        long[] newAvgWeight = new long[entryCount];
+
+        int e = 0;
+        int u = 0;
+        while (u < newRowCount) {
+            int nextDirty = dirtyRows.nextSetBit(u);
+            int runEnd = Math.min(nextDirty < 0 ? newRowCount : nextDirty, rowCount);
+            if (u < runEnd) { /* run of unchanged rows copied in bulk */
+                int shift = e - offsets[u];
+                int length = offsets[runEnd] - offsets[u];
+                System.arraycopy(neighbours, offsets[u], newNeighbours, e, length);
+                System.arraycopy(avgWeight, offsets[u], newAvgWeight, e, length);
+                for (int v = u; v < runEnd; v++) {
+                    newOffsets[v] = offsets[v] + shift;
+                }
+                e += length;
+                u = runEnd;
+            } else { /* changed row, or new location without edges */
+                newOffsets[u] = e;
+                e = source.writeRow(u, newNeighbours, newAvgWeight, e);
+                u++;
+            }
+        }
+        newOffsets[newRowCount] = e;
+        return new CsrRows(newRowCount, newOffsets, newNeighbours, newAvgWeight);
+    }
+}
@@ -0,0 +1,165 @@
+package org.solutions.grid.datastructures;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Log of the edges changed by the most recent walk batches.
+ * For every edge touched by a batch it keeps the average distance the edge had before the batch,
+ * so that shortest path trees computed on an older graph version can be repaired
+ * instead of being computed from scratch.
+ * <p>
+ * Changes are recorded by the single writer of the graph, while committed batches
+ * are read concurrently by queries running on older snapshots.
+ */
+public class EdgeChangeLog {
+    /**
+     * Average distance recorded for edges that did not exist before the batch.
+     */
+    public static final long NO_EDGE = Long.MAX_VALUE;
+
+    private final int maxBatches;
+    private final ArrayDeque<Batch> batches = new ArrayDeque<>();
+    /**
+     * Batch being ingested, touched only by the writer.
+     */
+    private Batch current = new Batch();
+
+    /**
+     * @param maxBatches number of most recent batches kept in the log
+     */
+    public EdgeChangeLog(int maxBatches) {
+        this.maxBatches = maxBatches;
+    }
+
+    /**
+     * Edges changed by one walk batch in the order they were changed, an edge may occur several times.
+     */
+    private static class Batch {
+        private long version;
+        private int size;
+        private int[] from = new int[64];
+        private int[] to = new int[64];
+        private long[] oldAvgDistance = new long[64];
+
+        private void add(int fromId, int toId, long oldAvg) {
+            if (size == from.length) {
+                from = Arrays.copyOf(from, size * 2);
+                to = Arrays.copyOf(to, size * 2);
+                oldAvgDistance = Arrays.copyOf(oldAvgDistance, size * 2);
+            }
+            from[size] = fromId;
+            to[size] = toId;
+            oldAvgDistance[size] = oldAvg;
+            size++;
+        }
+    }
+
+    /**
+     * Records a change of an edge in the batch being ingested.
+     * @param oldAvg average distance of the edge before the change, {@link #NO_EDGE} for a new edge
+     */
+    public void record(int fromId, int toId, long oldAvg) {
+        if (maxBatches > 0) {
+            current.add(fromId, toId, oldAvg);
+        }
+    }
+
+    /**
+     * Closes the batch being ingested.
+     * @param version graph version produced by the batch
+     */
+    public synchronized void commit(long version) {
+        if (maxBatches == 0) return;
+        current.version = version;
+        batches.addLast(current);
+        if (batches.size() > maxBatches) {
+            batches.removeFirst();
+        }
+        current = new Batch();
+    }
+
+    public synchronized void clear() {
+        batches.clear();
+        current = new Batch();
+    }
+
+    /**
+     * Collects the edges changed between two graph versions.
+     * @param fromVersion version the caller's data was computed on
+     * @param toVersion version of the snapshot the caller queries, the log may already hold newer batches
+     * @return each changed edge once with its average distance at {@code fromVersion},
+     *         or null if the log no longer covers all batches in between
+     */
+    public synchronized EdgeChanges changesSince(long fromVersion, long toVersion) {
+        if (fromVersion >= toVersion) return null;
+        Iterator<Batch> newestFirst = batches.descendingIterator();
+        Batch newest = null;
+        Batch oldest = null;
+        int records = 0;
+        while (newestFirst.hasNext()) {
+            Batch batch = newestFirst.next();
+            if (batch.version > toVersion) continue;
+            if (batch.version <= fromVersion) break;
+            if (newest == null) newest = batch;
+            oldest = batch;
+            records += batch.size;
+        }
+        if (newest == null || newest.version != toVersion || oldest.version != fromVersion + 1) return null;
+
+        EdgeChanges changes = new EdgeChanges(records);
+        Set<Long> seen = new HashSet<>();
+        for (Batch batch : batches) {
+            if (batch.version <= fromVersion || batch.version > toVersion) continue;
+            for (int i = 0; i < batch.size; i++) {
+                /* the first record of an edge holds its distance before all the batches */
+                if (seen.add(((long) batch.from[i] << 32) | batch.to[i])) {
+                    changes.add(batch.from[i], batch.to[i], batch.oldAvgDistance[i]);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Distinct changed edges with their average distances before the change.
+     */
+    public static class EdgeChanges {
+        private int size;
+        private final int[] from;
+        private final int[] to;
+        private final long[] oldAvgDistance;
+
+        private EdgeChanges(int capacity) {
+            from = new int[capacity];
+            to = new int[capacity];
+            oldAvgDistance = new long[capacity];
+        }
+
+        private void add(int fromId, int toId, long oldAvg) {
+            from[size] = fromId;
+            to[size] = toId;
+            oldAvgDistance[size] = oldAvg;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getFrom(int i) {
+            return from[i];
+        }
+
+        public int getTo(int i) {
+            return to[i];
+        }
+
+        public long getOldAvgDistance(int i) {
+            return oldAvgDistance[i];
+        }
+    }
+}
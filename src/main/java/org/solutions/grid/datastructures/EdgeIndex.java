@@ -0,0 +1,118 @@
+package org.solutions.grid.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from an edge {@code (fromId, toId)} to the slot of the edge
+ * among the edges of its origin in the {@link EdgeStore}. Keys are the two ids packed into one long
+ * so that neither keys nor values are boxed.
+ */
+public class EdgeIndex {
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final int initialCapacity;
+    private long[] keys;
+    private int[] slots;
+    private int size;
+    /**
+     * Size at which the table is doubled, keeps the load factor at most 1/2.
+     */
+    private int resizeThreshold;
+
+    public EdgeIndex() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity initial number of slots, a power of two
+     */
+    public EdgeIndex(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        allocate(initialCapacity);
+    }
+
+    /**
+     * Finds the slot of the edge.
+     * @param fromId id of the origin location
+     * @param toId id of the destination location
+     * @return slot of the edge among the origin's edges, or -1 if there is no such edge
+     */
+    public int get(int fromId, int toId) {
+        long key = pack(fromId, toId);
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) return slots[i];
+            if (k == EMPTY) return -1;
+        }
+    }
+
+    /**
+     * Stores the slot of a new edge.
+     * @param fromId id of the origin location
+     * @param toId id of the destination location
+     * @param slot slot of the edge among the origin's edges
+     */
+    public void put(int fromId, int toId, int slot) {
+        if (size >= resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        insert(pack(fromId, toId), slot);
+    }
+
+    private void insert(long key, int slot) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) size++;
+        keys[i] = key;
+        slots[i] = slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) insert(oldKeys[i], oldSlots[i]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        slots = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        resizeThreshold = capacity >> 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all edges and shrinks the table back to its initial capacity.
+     */
+    public void clear() {
+        allocate(initialCapacity);
+    }
+
+    private static long pack(int fromId, int toId) {
+        return ((long) fromId << 32) | (toId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads both ids over the low bits used for probing.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
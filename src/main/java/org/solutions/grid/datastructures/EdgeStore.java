@@ -0,0 +1,215 @@
+package org.solutions.grid.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * Out-edges of the locations of a {@link Graph} in primitive arrays instead of an object per edge.
+ * <p>
+ * The edges of an origin are numbered by slots in the order they were added. Their destinations are
+ * kept as delta-encoded varint rows, the sums of the lengths of their paths and the numbers of their
+ * paths in regions of chunked arrays addressed by slot. A path count takes 32 bits like an int counter
+ * did, a sum 64 bits as the lengths are unsigned ints. Locations are split into shards by id like the
+ * {@link EdgeIndex}, every shard having pools of its own, so edges of origins in different shards may be
+ * added concurrently.
+ */
+public class EdgeStore {
+    /**
+     * Smallest region of sums and counts, holds two edges.
+     */
+    private static final int MIN_SIZE_CLASS = 1;
+
+    private final Shard[] shards;
+    private int locationCount;
+
+    /**
+     * Edges of the origins of one shard, row {@code id / shards} holding those of origin {@code id}.
+     */
+    private static class Shard {
+        private final VarintRows targets;
+        private final Regions regions = new Regions();
+        private long[][] sums = new long[4][];
+        private int[][] counts = new int[4][];
+        private int[] slotRegions;
+
+        private Shard(int expectedRows) {
+            this.targets = new VarintRows(expectedRows);
+            this.slotRegions = new int[Math.max(16, expectedRows)];
+        }
+
+        private void addRow() {
+            if (targets.getRowCount() == slotRegions.length) {
+                slotRegions = Arrays.copyOf(slotRegions, slotRegions.length + (slotRegions.length >> 1));
+            }
+            targets.addRow();
+        }
+
+        private int allocate(int sizeClass) {
+            int region = regions.allocate(sizeClass);
+            int chunk = Regions.chunk(region);
+            if (chunk >= sums.length) {
+                sums = Arrays.copyOf(sums, Math.max(chunk + 1, sums.length * 2));
+                counts = Arrays.copyOf(counts, sums.length);
+            }
+            if (sums[chunk] == null) {
+                sums[chunk] = new long[regions.getChunkSize(chunk)];
+                counts[chunk] = new int[regions.getChunkSize(chunk)];
+            }
+            return region;
+        }
+    }
+
+    /**
+     * @param shards number of shards, the number of shards of the edge index
+     * @param expectedLocations approximate number of locations
+     */
+    public EdgeStore(int shards, int expectedLocations) {
+        this.shards = new Shard[shards];
+        for (int s = 0; s < shards; s++) {
+            this.shards[s] = new Shard(expectedLocations / shards);
+        }
+    }
+
+    /**
+     * Adds a location without edges, its id being the number of locations before.
+     */
+    void addLocation() {
+        shards[locationCount % shards.length].addRow();
+        locationCount++;
+    }
+
+    public int getLocationCount() {
+        return locationCount;
+    }
+
+    /**
+     * @return number of out-edges of the location
+     */
+    public int degree(int fromId) {
+        return shards[fromId % shards.length].targets.size(fromId / shards.length);
+    }
+
+    /**
+     * Adds an edge not yet in the store.
+     * @param sum sum of the lengths of its paths
+     * @param count number of its paths
+     * @return slot of the edge
+     */
+    int add(int fromId, int toId, long sum, int count) {
+        Shard shard = shards[fromId % shards.length];
+        int row = fromId / shards.length;
+        int slot = shard.targets.size(row);
+        int region;
+        if (slot == 0) {
+            region = shard.allocate(MIN_SIZE_CLASS);
+        } else {
+            region = shard.slotRegions[row];
+            if (slot == capacity(slot)) { /* full, moved to a region twice as large */
+                int grown = shard.allocate(Regions.sizeClass(slot + 1));
+                int from = Regions.position(region);
+                int to = Regions.position(grown);
+                System.arraycopy(shard.sums[Regions.chunk(region)], from, shard.sums[Regions.chunk(grown)], to, slot);
+                System.arraycopy(shard.counts[Regions.chunk(region)], from, shard.counts[Regions.chunk(grown)], to, slot);
+                shard.regions.release(region, Regions.sizeClass(slot));
+                region = grown;
+            }
+        }
+        shard.slotRegions[row] = region;
+        shard.sums[Regions.chunk(region)][Regions.position(region) + slot] = sum;
+        shard.counts[Regions.chunk(region)][Regions.position(region) + slot] = count;
+        shard.targets.append(row, fromId, toId);
+        return slot;
+    }
+
+    /**
+     * Adds a path to an edge.
+     * @return average distance of the edge before
+     */
+    long accumulate(int fromId, int slot, long length) {
+        Shard shard = shards[fromId % shards.length];
+        int region = shard.slotRegions[fromId / shards.length];
+        int e = Regions.position(region) + slot;
+        long[] sums = shard.sums[Regions.chunk(region)];
+        int[] counts = shard.counts[Regions.chunk(region)];
+        long oldAvg = sums[e] / counts[e];
+        sums[e] += length;
+        counts[e]++;
+        return oldAvg;
+    }
+
+    /**
+     * @return sum of the lengths of the paths of the edge
+     */
+    public long getDistancesSum(int fromId, int slot) {
+        Shard shard = shards[fromId % shards.length];
+        int region = shard.slotRegions[fromId / shards.length];
+        return shard.sums[Regions.chunk(region)][Regions.position(region) + slot];
+    }
+
+    /**
+     * @return number of paths of the edge
+     */
+    public int getEdgesCounter(int fromId, int slot) {
+        Shard shard = shards[fromId % shards.length];
+        int region = shard.slotRegions[fromId / shards.length];
+        return shard.counts[Regions.chunk(region)][Regions.position(region) + slot];
+    }
+
+    /**
+     * Counts average distance using integer division.
+     * @return average distance of the edge rounded to zero
+     */
+    public long getAvgDistance(int fromId, int slot) {
+        Shard shard = shards[fromId % shards.length];
+        int region = shard.slotRegions[fromId / shards.length];
+        int e = Regions.position(region) + slot;
+        return shard.sums[Regions.chunk(region)][e] / shard.counts[Regions.chunk(region)][e];
+    }
+
+    /**
+     * Writes the destinations of the out-edges of the location in slot order.
+     * @param pos index of the first destination in the array
+     * @return index after the last destination
+     */
+    public int readTargets(int fromId, int[] targets, int pos) {
+        return shards[fromId % shards.length].targets.read(fromId / shards.length, fromId, targets, pos);
+    }
+
+    /**
+     * Writes the average distances of the out-edges of the location in slot order.
+     * @param pos index of the first distance in the array
+     * @return index after the last distance
+     */
+    public int readAvgDistances(int fromId, long[] avgDistances, int pos) {
+        Shard shard = shards[fromId % shards.length];
+        int row = fromId / shards.length;
+        int degree = shard.targets.size(row);
+        if (degree == 0) return pos;
+        int region = shard.slotRegions[row];
+        long[] sums = shard.sums[Regions.chunk(region)];
+        int[] counts = shard.counts[Regions.chunk(region)];
+        int e = Regions.position(region);
+        for (int slot = 0; slot < degree; slot++, e++) {
+            avgDistances[pos++] = sums[e] / counts[e];
+        }
+        return pos;
+    }
+
+    /**
+     * @return bytes taken by the edges, including the room reserved for edges to come
+     */
+    public long getByteCount() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            bytes += shard.targets.getByteCount() + 12L * shard.regions.getUnits() + 4L * shard.slotRegions.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Capacity of the region of an origin with the number of edges, the origin always taking the smallest
+     * region that holds them.
+     */
+    private static int capacity(int degree) {
+        return 1 << Math.max(MIN_SIZE_CLASS, Regions.sizeClass(degree));
+    }
+}
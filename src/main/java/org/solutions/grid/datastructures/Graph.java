@@ -1,22 +1,31 @@
 package org.solutions.grid.datastructures;
 
 import com.google.common.primitives.UnsignedInts;
-import cz.cvut.fel.esw.server.proto.Location;
 import cz.cvut.fel.esw.server.proto.Walk;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
  * Graph where nodes are locations and edges are paths between them.
+ * The graph is changed by a single writer, queries read the {@link GraphSnapshot}s it publishes.
  */
 public class Graph {
     /**
-     * Adjacency list in which locations are represented
+     * Out-edges of the locations, which are represented
      * by their ids(assigned as order number of location as it comes to the server).
      */
-    private List<List<Edge>> adjList;
+    private EdgeStore edges;
+    /**
+     * Reverse adjacency, for every location the ids of the locations having an edge into it.
+     */
+    private VarintRows inSources;
+    /**
+     * In-sources of a location decoded by the writer while building the snapshot.
+     */
+    private int[] sourceBuffer = new int[16];
     /**
      * List of locations to easily retrieve location by its id.
      */
@@ -29,101 +38,384 @@ public class Graph {
      * Hash grid for faster search of identical locations in graph.
      */
     private HashGrid grid = new HashGrid();
+    /**
+     * Compressed snapshot of the adjacency list used by the shortest path queries.
+     * It is brought up to date at every synchronization point.
+     */
+    private CsrGraph csr = CsrGraph.EMPTY;
+    /**
+     * Locations whose out-edges changed since the last snapshot.
+     */
+    private final BitSet dirtyNodes = new BitSet();
+    /**
+     * Locations whose in-edges changed since the last snapshot.
+     */
+    private final BitSet dirtyInNodes = new BitSet();
+    /**
+     * Out-edge rows of the edge store for building the snapshot.
+     */
+    private final CsrRows.Source outRows = new CsrRows.Source() {
+        @Override
+        public int degree(int u) {
+            return edges.degree(u);
+        }
+
+        @Override
+        public int writeRow(int u, int[] neighbours, long[] avgWeight, int e) {
+            edges.readAvgDistances(u, avgWeight, e);
+            return edges.readTargets(u, neighbours, e);
+        }
+
+        @Override
+        public int writeWeights(int u, long[] avgWeight, int e) {
+            return edges.readAvgDistances(u, avgWeight, e);
+        }
+    };
+    /**
+     * In-edge rows of the reverse adjacency for building the snapshot.
+     */
+    private final CsrRows.Source inRows = new CsrRows.Source() {
+        @Override
+        public int degree(int u) {
+            return inSources.size(u);
+        }
+
+        @Override
+        public int writeRow(int u, int[] neighbours, long[] avgWeight, int e) {
+            int end = inSources.read(u, u, neighbours, e);
+            for (int i = e; i < end; i++) {
+                avgWeight[i] = edges.getAvgDistance(neighbours[i], edgeSlot(neighbours[i], u));
+            }
+            return end;
+        }
+
+        @Override
+        public int writeWeights(int u, long[] avgWeight, int e) {
+            if (sourceBuffer.length < inSources.size(u)) {
+                sourceBuffer = new int[Math.max(inSources.size(u), 2 * sourceBuffer.length)];
+            }
+            int count = inSources.read(u, u, sourceBuffer, 0);
+            for (int i = 0; i < count; i++) {
+                avgWeight[e++] = edges.getAvgDistance(sourceBuffer[i], edgeSlot(sourceBuffer[i], u));
+            }
+            return e;
+        }
+    };
+    /**
+     * Index of edges by their origin and destination, so repeated edges are found in constant time.
+     * It is split into shards by origin, so that edges of different shards can be added concurrently.
+     */
+    private final EdgeIndex[] edgeIndexes;
+    /**
+     * Ingestion of large batches on several threads, null if walks are always added by the writer alone.
+     */
+    @Nullable
+    private final ParallelIngestion parallelIngestion;
+    /**
+     * Number of locations of a batch from which it is ingested in parallel.
+     */
+    private final int parallelIngestThreshold;
+    /**
+     * Version of the graph, changes whenever walks are added or the graph is cleared.
+     */
+    private long version;
+    /**
+     * Number of times the graph was cleared or restored. A restored graph may have a lower version
+     * than the one it replaced, so results computed on a version are reused only in the same generation.
+     */
+    private long generation;
+    /**
+     * Edges changed by the recent batches, used to repair cached shortest path trees.
+     */
+    private final EdgeChangeLog changeLog;
+    /**
+     * Number of walks added since the graph was created.
+     */
+    private long ingestedWalks;
+    /**
+     * Distance sums and counts of the edges of a graph restored from a {@link GraphFile},
+     * indexed like the snapshot's out-edges, until the edge store is built from them.
+     */
+    @Nullable
+    private long[] restoredSums;
+    @Nullable
+    private int[] restoredCounts;
 
     public Graph(int expectedLocationsNumber) {
+        this(expectedLocationsNumber, 64);
+    }
+
+    /**
+     * @param expectedLocationsNumber approximate number of locations
+     * @param changeLogBatches number of recent walk batches whose edge changes are remembered
+     */
+    public Graph(int expectedLocationsNumber, int changeLogBatches) {
+        this(expectedLocationsNumber, changeLogBatches, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param expectedLocationsNumber approximate number of locations
+     * @param changeLogBatches number of recent walk batches whose edge changes are remembered
+     * @param ingestParallelism number of threads ingesting large batches, 1 to always ingest on the calling thread
+     * @param parallelIngestThreshold number of locations of a batch from which it is ingested in parallel
+     */
+    public Graph(int expectedLocationsNumber, int changeLogBatches, int ingestParallelism, int parallelIngestThreshold) {
         this.expectedLocationsNumber = expectedLocationsNumber;
-        this.adjList = new ArrayList<>(expectedLocationsNumber);
-        for (int i = 0; i < expectedLocationsNumber; i++){
-            adjList.add(new ArrayList<>());
+        this.edgeIndexes = new EdgeIndex[Math.max(1, ingestParallelism)];
+        for (int i = 0; i < edgeIndexes.length; i++) {
+            edgeIndexes[i] = new EdgeIndex(Math.max(1 << 10, Integer.highestOneBit((1 << 16) / edgeIndexes.length)));
         }
+        this.parallelIngestion = ingestParallelism > 1 ? new ParallelIngestion(this, ingestParallelism) : null;
+        this.parallelIngestThreshold = parallelIngestThreshold;
+        this.changeLog = new EdgeChangeLog(changeLogBatches);
+        this.edges = new EdgeStore(edgeIndexes.length, expectedLocationsNumber);
+        this.inSources = new VarintRows(expectedLocationsNumber);
         this.locations = new ArrayList<>(expectedLocationsNumber);
     }
 
-    public List<List<Edge>> getAdjList() {
-        return adjList;
+    public EdgeStore getEdges() {
+        return edges;
     }
 
     public List<LocationRecord> getLocations() {
         return locations;
     }
 
+    public CsrGraph getCsr() {
+        return csr;
+    }
+
+    /**
+     * Restores an empty graph from the content of a {@link GraphFile}. The snapshot is ready
+     * right away, the edges for adding walks are built by {@link #completeRestore()}.
+     */
+    void restore(long version, long ingestedWalks, CsrGraph csr, long[] sums, int[] counts, HashGrid grid) {
+        this.version = version;
+        this.generation++;
+        this.ingestedWalks = ingestedWalks;
+        this.csr = csr;
+        this.grid = grid;
+        this.restoredSums = sums;
+        this.restoredCounts = counts;
+    }
+
+    /**
+     * Builds the locations, edges and edge index of a restored graph,
+     * it has to be done before the graph is changed.
+     */
+    public void completeRestore() {
+        if (restoredSums == null) return;
+        int nodeCount = csr.getNodeCount();
+        LocationRecord[] byId = new LocationRecord[nodeCount];
+        int[] gridLocations = grid.getLocationArray();
+        for (int i = 0; i < grid.size(); i++) {
+            LocationRecord location = new LocationRecord(gridLocations[4 * i], gridLocations[4 * i + 1]);
+            location.setId(gridLocations[4 * i + 2]);
+            byId[location.getId()] = location;
+        }
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        int[] inOffsets = csr.getInOffsets();
+        int[] sources = csr.getInSources();
+        for (int u = 0; u < nodeCount; u++) {
+            locations.add(byId[u]);
+            edges.addLocation();
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                edgeIndex(u).put(u, targets[e], edges.add(u, targets[e], restoredSums[e], restoredCounts[e]));
+            }
+            inSources.addRow();
+            for (int e = inOffsets[u]; e < inOffsets[u + 1]; e++) {
+                inSources.append(u, u, sources[e]);
+            }
+        }
+        restoredSums = null;
+        restoredCounts = null;
+    }
+
+    /**
+     * @return immutable view of the graph as of the last committed batch
+     */
+    public GraphSnapshot snapshot() {
+        return new GraphSnapshot(csr, version, generation, ingestedWalks, grid, changeLog);
+    }
+
 
     /**
-     * Adding walks into graph and grid.
+     * Adding walks into graph and grid and refreshing the query snapshot.
      * @param walks
      */
     public void addNewWalks(List<Walk> walks){
         for (Walk walk : walks) {
             addWalk(walk);
         }
+        ingestedWalks += walks.size();
+        commitBatch();
     }
 
     /**
-     * Adding walk into graph and grid.
-     * @param walk
+     * Adding walks collected in primitive form into graph and grid and refreshing the query snapshot.
+     * @param walks
      */
-    public void addWalk(Walk walk){
-        /* Wrapping locations(to add id) and lengths(unsigned long(protobuf) to java long). */
-        List<LocationRecord> newLocations = new ArrayList<>();
-        for (Location l: walk.getLocationsList()){
-            newLocations.add(new LocationRecord(l));
-        }
-        List<Long> lengths = new ArrayList<>();
-        for (Integer length: walk.getLengthsList()){
-            lengths.add(UnsignedInts.toLong(length));
-        }
-
-        /* Adding edges one by one. */
-        LocationRecord existingLocationFrom;
-        LocationRecord existingLocationTo = null;
-        for (int i = 0; i < newLocations.size() - 1; i++) {
-            if (i == 0) {
-                existingLocationFrom = this.grid.addLocation(newLocations.get(i));
-                if (existingLocationFrom == newLocations.get(i)) { /* inserted given location as new  */
-                    existingLocationFrom.setId(this.locations.size());
-                    this.locations.add(existingLocationFrom);
-                }
-            } else {
-                existingLocationFrom = existingLocationTo;
+    public void addNewWalks(WalkBuffer walks){
+        addWalks(walks);
+        commitBatch();
+    }
+
+    /**
+     * Adding walks collected in primitive form into graph and grid,
+     * they become visible to queries at the next {@link #commitBatch()}.
+     * @param walks
+     */
+    public void addWalks(WalkBuffer walks){
+        for (int w = 0; w < walks.getWalkCount(); w++) {
+            int end = walks.getWalkEnd(w);
+            int start = walks.getWalkStart(w);
+            if (end - start < 2) continue;
+            int fromId = locationId(walks.getX(start), walks.getY(start));
+            for (int i = start; i < end - 1; i++) {
+                int toId = locationId(walks.getX(i + 1), walks.getY(i + 1));
+                addEdge(fromId, toId, walks.getLength(i));
+                fromId = toId;
             }
+        }
+        ingestedWalks += walks.getWalkCount();
+    }
 
-            existingLocationTo = this.grid.addLocation(newLocations.get(i + 1));
-            if (existingLocationTo == newLocations.get(i + 1)) { /* inserted given location as new  */
-                existingLocationTo.setId(this.locations.size());
-                this.locations.add(existingLocationTo);
+    /**
+     * Adding walks of several clients collected in primitive form into graph and grid,
+     * in parallel if they are many. The graph is the same as if the buffers were added one by one.
+     * They become visible to queries at the next {@link #commitBatch()}.
+     * @param batch
+     */
+    public void addWalks(List<WalkBuffer> batch){
+        int locationCount = 0;
+        for (WalkBuffer walks : batch) {
+            locationCount += walks.getLocationCount();
+        }
+        if (parallelIngestion == null || locationCount < parallelIngestThreshold) {
+            for (WalkBuffer walks : batch) {
+                addWalks(walks);
             }
+            return;
+        }
+        parallelIngestion.ingest(batch);
+        for (WalkBuffer walks : batch) {
+            ingestedWalks += walks.getWalkCount();
+        }
+    }
+
+    /**
+     * Refreshing the query snapshot with all walks added since the last batch and starting a new version.
+     */
+    public void commitBatch() {
+        csr = csr.update(outRows, inRows, locations.size(), dirtyNodes, dirtyInNodes);
+        dirtyNodes.clear();
+        dirtyInNodes.clear();
+        version++;
+        changeLog.commit(version);
+    }
 
-            /* Adding edge. */
-            addEdge(existingLocationFrom, existingLocationTo, lengths.get(i));
+    /**
+     * Adding walk into graph and grid.
+     * @param walk
+     */
+    public void addWalk(Walk walk){
+        if (walk.getLocationsCount() < 2) return;
+        /* Adding edges one by one, lengths are unsigned ints(protobuf) widened to java long. */
+        int fromId = locationId(walk.getLocations(0).getX(), walk.getLocations(0).getY());
+        for (int i = 0; i < walk.getLocationsCount() - 1; i++) {
+            int toId = locationId(walk.getLocations(i + 1).getX(), walk.getLocations(i + 1).getY());
+            addEdge(fromId, toId, UnsignedInts.toLong(walk.getLengths(i)));
+            fromId = toId;
         }
     }
 
+    /**
+     * Finds the id of the same location in the grid, adding the location to graph and grid if there is none.
+     * A location added by itself has no edges until walks pass through it.
+     */
+    public int locationId(int x, int y) {
+        int existingId = grid.locationId(x, y);
+        if (existingId >= 0) {
+            return existingId;
+        }
+        LocationRecord location = new LocationRecord(x, y);
+        addLocation(location);
+        grid.insert(x, y, location.getId());
+        return location.getId();
+    }
+
+    private void addLocation(LocationRecord location) {
+        location.setId(this.locations.size());
+        this.locations.add(location);
+        edges.addLocation();
+        inSources.addRow();
+    }
+
     public void addEdge(LocationRecord from, LocationRecord to, Long length){
-        Edge sameEdge = findEdge(from, to);
-        if (sameEdge == null) { /* if no such edge in graph initialize new */
-            adjList.get(from.getId()).add(new Edge(to.getId(), length, 1));
+        addEdge(from.getId(), to.getId(), length);
+    }
+
+    private void addEdge(int fromId, int toId, long length){
+        recordEdgeChange(fromId, toId, accumulateEdge(fromId, toId, length));
+    }
+
+    /**
+     * Adds a path to the edge between two locations. Touches only the edge store and the edge index
+     * shard of the origin, so paths from origins of different shards may be added concurrently.
+     * @return average distance of the edge before, {@link EdgeChangeLog#NO_EDGE} if the edge is new
+     */
+    long accumulateEdge(int fromId, int toId, long length){
+        EdgeIndex edgeIndex = edgeIndex(fromId);
+        int slot = edgeIndex.get(fromId, toId);
+        if (slot < 0) { /* if no such edge in graph initialize new */
+            edgeIndex.put(fromId, toId, edges.add(fromId, toId, length, 1));
+            return EdgeChangeLog.NO_EDGE;
         } else { /* otherwise accumulate edges for further computation of average distance */
-            sameEdge.incrementEdgesCounter();
-            sameEdge.increaseDistancesSum(length);
+            return edges.accumulate(fromId, slot, length);
         }
+    }
 
+    /**
+     * Marks an edge changed by {@link #accumulateEdge} for the next snapshot and the change log.
+     * @param oldAvg average distance of the edge before the change, {@link EdgeChangeLog#NO_EDGE} for a new edge
+     */
+    void recordEdgeChange(int fromId, int toId, long oldAvg){
+        dirtyNodes.set(fromId);
+        dirtyInNodes.set(toId);
+        if (oldAvg == EdgeChangeLog.NO_EDGE) {
+            inSources.append(toId, toId, fromId);
+        }
+        changeLog.record(fromId, toId, oldAvg);
+    }
+
+    /**
+     * @return slot of the edge among the edges of its origin, -1 if there is no such edge
+     */
+    int edgeSlot(int fromId, int toId) {
+        return edgeIndex(fromId).get(fromId, toId);
+    }
+
+    private EdgeIndex edgeIndex(int fromId) {
+        return edgeIndexes[fromId % edgeIndexes.length];
+    }
+
+    /**
+     * @return number of shards of the edge index, edges of origins in different shards may be added concurrently
+     */
+    int getEdgeShards() {
+        return edgeIndexes.length;
     }
 
     /**
      * Find existing edge in the graph.
      * @param origin origin node of the edge.
      * @param destination destination node of the edge.
-     * @return existing edge in the graph if such exists and null otherwise.
+     * @return slot of the existing edge among the edges of the origin in {@link #getEdges()}
+     *         if such exists and -1 otherwise.
      */
-    @Nullable
-    public Edge findEdge(LocationRecord origin, LocationRecord destination) {
-        List<Edge> neighbours = adjList.get(origin.getId());
-        for (Edge edge : neighbours) {
-            if (destination.getId() == edge.getToId()) {
-                return edge;
-            }
-        }
-        return null;
+    public int findEdge(LocationRecord origin, LocationRecord destination) {
+        return edgeIndex(origin.getId()).get(origin.getId(), destination.getId());
     }
 
 
@@ -131,18 +423,39 @@ public class Graph {
      * Clears whole graph including locations and grid.
      */
     public void reset(){
+        restoredSums = null;
+        restoredCounts = null;
         locations.clear();
-        adjList.clear();
-        for (int i = 0; i < expectedLocationsNumber; i++){
-            adjList.add(new ArrayList<>());
+        edges = new EdgeStore(edgeIndexes.length, expectedLocationsNumber);
+        inSources = new VarintRows(expectedLocationsNumber);
+        grid = new HashGrid(); /* queries on older snapshots may still search the old grid */
+        for (EdgeIndex edgeIndex : edgeIndexes) {
+            edgeIndex.clear();
         }
-        grid.clear();
+        csr = CsrGraph.EMPTY;
+        dirtyNodes.clear();
+        dirtyInNodes.clear();
+        changeLog.clear();
+        version++;
+        generation++;
     }
 
     public HashGrid getGrid() {
         return grid;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public EdgeChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    public long getIngestedWalks() {
+        return ingestedWalks;
+    }
+
     public int getLocationsSize(){
         return locations.size();
     }
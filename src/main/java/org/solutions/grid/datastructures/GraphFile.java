@@ -0,0 +1,222 @@
+package org.solutions.grid.datastructures;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary file with the state of the graph, so that a restarted server serves queries right away
+ * instead of waiting for the clients to send all walks again.
+ * <p>
+ * The file holds a header followed by primitive arrays in little-endian order: the out-edge rows
+ * with the distance sums and counts of the edges, the in-edge rows referring to the out-edges,
+ * and the cell table and locations of the grid. It is read through {@link FileChannel#map}, every
+ * array being a bulk copy of the mapped region, and the query snapshot is built from the arrays
+ * without creating an object per location or edge.
+ */
+public class GraphFile {
+    private static final int MAGIC = 0x48505247;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 56;
+    /**
+     * Files of the first format have no sequence number of the walk log.
+     */
+    private static final int HEADER_BYTES_V1 = 48;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private GraphFile() {
+    }
+
+    /**
+     * Writes the graph as of its last committed batch. It must be called by the writer of the graph
+     * with no walks added since the last commit. The file is replaced atomically.
+     * @param graph graph to be written
+     * @param path file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Graph graph, Path path) throws IOException {
+        write(graph, path, 0L);
+    }
+
+    /**
+     * Writes the graph as of its last committed batch, see {@link #write(Graph, Path)}.
+     * @param walkLogSequence sequence number of the last {@link WalkLog} record contained in the graph
+     */
+    public static void write(Graph graph, Path path, long walkLogSequence) throws IOException {
+        graph.completeRestore();
+        CsrGraph csr = graph.getCsr();
+        HashGrid grid = graph.getGrid();
+        int nodeCount = csr.getNodeCount();
+        int edgeCount = csr.getEdgeCount();
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        int[] inOffsets = csr.getInOffsets();
+        int[] inSources = csr.getInSources();
+        int[] cells = grid.getCells();
+        int locationInts = grid.size() * 4;
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output out = new Output(channel);
+            out.putInt(MAGIC);
+            out.putInt(FORMAT_VERSION);
+            out.putLong(graph.getVersion());
+            out.putLong(graph.getIngestedWalks());
+            out.putInt(nodeCount);
+            out.putInt(edgeCount);
+            out.putInt(cells.length);
+            out.putInt(grid.getCellCount());
+            out.putInt(grid.size());
+            out.putInt(0);
+            out.putLong(walkLogSequence);
+
+            EdgeStore edges = graph.getEdges();
+            for (int u = 0; u < nodeCount; u++) {
+                for (int slot = 0; slot < edges.degree(u); slot++) {
+                    out.putLong(edges.getDistancesSum(u, slot));
+                }
+            }
+            out.putInts(offsets, nodeCount + 1);
+            out.putInts(targets, edgeCount);
+            for (int u = 0; u < nodeCount; u++) {
+                for (int slot = 0; slot < edges.degree(u); slot++) {
+                    out.putInt(edges.getEdgesCounter(u, slot));
+                }
+            }
+            out.putInts(inOffsets, nodeCount + 1);
+            out.putInts(inSources, edgeCount);
+            /* Every in-edge refers to the same edge among the out-edges, whose weight it shares. */
+            for (int u = 0; u < nodeCount; u++) {
+                for (int e = inOffsets[u]; e < inOffsets[u + 1]; e++) {
+                    int fromId = inSources[e];
+                    out.putInt(offsets[fromId] + graph.edgeSlot(fromId, u));
+                }
+            }
+            out.putInts(cells, cells.length);
+            out.putInts(grid.getLocationArray(), locationInts);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores a graph from a file.
+     * @param graph empty graph to be restored
+     * @param path file to be read
+     * @return sequence number of the last {@link WalkLog} record contained in the file,
+     *         0 if it contains none and -1 if there is no such file
+     * @throws IOException if the file cannot be read or is not a graph file, the graph is left empty then
+     */
+    public static long read(Graph graph, Path path) throws IOException {
+        if (!Files.exists(path)) return -1L;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES_V1 || size > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected size of graph file " + path + ": " + size);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer in = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = in.getInt();
+            int format = in.getInt();
+            if (magic != MAGIC || (format != FORMAT_VERSION && format != 1)) {
+                throw new IOException("Not a graph file: " + path);
+            }
+            long version = in.getLong();
+            long ingestedWalks = in.getLong();
+            int nodeCount = in.getInt();
+            int edgeCount = in.getInt();
+            int cellCapacity = in.getInt();
+            int cellCount = in.getInt();
+            int locationCount = in.getInt();
+            in.getInt();
+            long walkLogSequence = format == 1 ? 0L : in.getLong();
+            long expectedSize = (format == 1 ? HEADER_BYTES_V1 : HEADER_BYTES) + 8L * edgeCount + 4L * (nodeCount + 1) * 2
+                    + 4L * edgeCount * 4 + 4L * cellCapacity + 16L * locationCount;
+            if (size != expectedSize || Integer.bitCount(cellCapacity) != 1) {
+                throw new IOException("Corrupted graph file " + path);
+            }
+
+            long[] sums = new long[edgeCount];
+            in.asLongBuffer().get(sums);
+            in.position(in.position() + 8 * edgeCount);
+            int[] offsets = ints(in, nodeCount + 1);
+            int[] targets = ints(in, edgeCount);
+            int[] counts = ints(in, edgeCount);
+            int[] inOffsets = ints(in, nodeCount + 1);
+            int[] inSources = ints(in, edgeCount);
+            int[] inEdges = ints(in, edgeCount);
+            int[] cells = ints(in, cellCapacity);
+            int[] locations = new int[Math.max(16, locationCount * 4)];
+            in.asIntBuffer().get(locations, 0, locationCount * 4);
+
+            long[] avgWeight = new long[edgeCount];
+            for (int e = 0; e < edgeCount; e++) {
+                avgWeight[e] = sums[e] / counts[e];
+            }
+            long[] inAvgWeight = new long[edgeCount];
+            for (int e = 0; e < edgeCount; e++) {
+                inAvgWeight[e] = avgWeight[inEdges[e]];
+            }
+            CsrGraph csr = CsrGraph.of(nodeCount, offsets, targets, avgWeight, inOffsets, inSources, inAvgWeight);
+            graph.restore(version, ingestedWalks, csr, sums, counts,
+                    new HashGrid(cells, cellCount, locations, locationCount));
+            return walkLogSequence;
+        }
+    }
+
+    private static int[] ints(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * count);
+        return values;
+    }
+
+    /**
+     * Little-endian output buffered in a direct buffer.
+     */
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        private Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) flush();
+            buffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            if (buffer.remaining() < 8) flush();
+            buffer.putLong(value);
+        }
+
+        private void putInts(int[] values, int count) throws IOException {
+            int written = 0;
+            while (written < count) {
+                if (buffer.remaining() < 4) flush();
+                int chunk = Math.min(buffer.remaining() / 4, count - written);
+                buffer.asIntBuffer().put(values, written, chunk);
+                buffer.position(buffer.position() + 4 * chunk);
+                written += chunk;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
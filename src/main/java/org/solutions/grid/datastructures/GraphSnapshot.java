@@ -0,0 +1,75 @@
+package org.solutions.grid.datastructures;
+
+/**
+ * Immutable version of the graph published for queries. It is searched without locking
+ * while the writer already builds newer versions; the grid and the change log are shared
+ * with the writer, so lookups in them are limited to this version.
+ */
+public class GraphSnapshot {
+    private final CsrGraph csr;
+    private final long version;
+    private final long generation;
+    private final long ingestedWalks;
+    private final HashGrid grid;
+    private final EdgeChangeLog changeLog;
+
+    GraphSnapshot(CsrGraph csr, long version, long generation, long ingestedWalks, HashGrid grid,
+                  EdgeChangeLog changeLog) {
+        this.csr = csr;
+        this.version = version;
+        this.generation = generation;
+        this.ingestedWalks = ingestedWalks;
+        this.grid = grid;
+        this.changeLog = changeLog;
+    }
+
+    /**
+     * Finds the id of the same location in this version of the graph.
+     * @return id of the location, -1 if there is no such location
+     */
+    public int locationId(int x, int y) {
+        return grid.locationId(x, y, csr.getNodeCount());
+    }
+
+    /**
+     * @return x coordinate of the location of the id in this version of the graph
+     */
+    public int getX(int locationId) {
+        return grid.getX(locationId);
+    }
+
+    /**
+     * @return y coordinate of the location of the id in this version of the graph
+     */
+    public int getY(int locationId) {
+        return grid.getY(locationId);
+    }
+
+    /**
+     * Collects the edges changed between an older version and this one.
+     * @see EdgeChangeLog#changesSince(long, long)
+     */
+    public EdgeChangeLog.EdgeChanges changesSince(long fromVersion) {
+        return changeLog.changesSince(fromVersion, version);
+    }
+
+    public CsrGraph getCsr() {
+        return csr;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of times the graph was cleared or restored before this version; versions of
+     *         different generations may repeat and belong to different graphs
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getIngestedWalks() {
+        return ingestedWalks;
+    }
+}
@@ -0,0 +1,405 @@
+package org.solutions.grid.datastructures;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owner of the graph: a single writer thread ingests walks and resets, and publishes
+ * an immutable {@link GraphSnapshot} after every batch through an atomic reference.
+ * Queries read the latest snapshot without locking; a client that added walks waits only
+ * until the batch containing them is published. Walks queued by several clients while the
+ * writer was busy are ingested as one batch.
+ * <p>
+ * The writer may also save the graph into a {@link GraphFile}, on request and periodically,
+ * and a graph restored from such a file is published before its edge store is rebuilt.
+ * With a {@link WalkLog} the walks and resets of every batch are logged before the batch is published,
+ * the log being truncated whenever the graph is saved.
+ * <p>
+ * A {@link Listener} receives every change in the order the writer applies it, which is how the graph
+ * is replicated: a replica applying the same changes one by one gets the same versions, and it may be
+ * started from a copy of the graph written by the writer between two changes.
+ */
+public class GraphStore {
+    private final Graph graph;
+    private final AtomicReference<GraphSnapshot> current;
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+    /**
+     * File the graph is saved to, null if it is never saved.
+     */
+    @Nullable
+    private final Path graphFile;
+    /**
+     * Version of the graph last saved to the file, touched only by the writer.
+     */
+    private long savedVersion;
+    /**
+     * Log of the walks and resets, null if they are not logged.
+     */
+    @Nullable
+    private final WalkLog walkLog;
+    /**
+     * Receiver of the changes of the graph, null if there is none.
+     */
+    @Nullable
+    private volatile Listener listener;
+    /**
+     * Signalled whenever a snapshot is published, for those waiting for a version.
+     */
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private final Condition publishedCondition = publishLock.newCondition();
+
+    private enum Kind {
+        WALKS, RESET, SAVE, COPY, RESTORE
+    }
+
+    /**
+     * Walks to be added, a reset of the graph, a save of the graph, or a copy of the graph
+     * written to or restored from another file.
+     */
+    private static class Task {
+        private final Kind kind;
+        private final WalkBuffer walks;
+        private final Path file;
+        private final CompletableFuture<GraphSnapshot> published = new CompletableFuture<>();
+        /**
+         * Version of the graph written by a copy.
+         */
+        private long copiedVersion;
+
+        private Task(Kind kind, WalkBuffer walks) {
+            this(kind, walks, null);
+        }
+
+        private Task(Kind kind, WalkBuffer walks, Path file) {
+            this.kind = kind;
+            this.walks = walks;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Receiver of the changes of the graph, called by the writer thread.
+     */
+    public interface Listener {
+        /**
+         * Walks were added to the graph as one batch. The buffers are valid only during the call.
+         * @param fromVersion version of the graph the walks were added to
+         * @param version version of the graph with the walks
+         */
+        void committed(List<WalkBuffer> walks, long fromVersion, long version);
+
+        /**
+         * The graph was cleared.
+         */
+        void reset(long fromVersion, long version);
+
+        /**
+         * The snapshot with all changes reported before was published.
+         */
+        void published(long version);
+    }
+
+    /**
+     * @param graph graph to be changed only by the writer thread from now on
+     */
+    public GraphStore(Graph graph) {
+        this(graph, null, 0, null);
+    }
+
+    /**
+     * @param graph graph to be changed only by the writer thread from now on, possibly restored from the file
+     * @param graphFile file the graph is saved to, null if it is never saved
+     * @param saveIntervalSeconds period of saving a changed graph, 0 to save only on request
+     * @param walkLog replayed log of walks and resets, null if they are not logged
+     */
+    public GraphStore(Graph graph, @Nullable Path graphFile, long saveIntervalSeconds, @Nullable WalkLog walkLog) {
+        this.graph = graph;
+        this.graphFile = graphFile;
+        this.walkLog = walkLog;
+        this.savedVersion = graph.getVersion();
+        this.current = new AtomicReference<>(graph.snapshot());
+        Thread writer = new Thread(this::write, "graph-writer");
+        writer.setDaemon(true);
+        writer.start();
+        if (graphFile != null && saveIntervalSeconds > 0) {
+            Thread saver = new Thread(() -> saveEvery(saveIntervalSeconds), "graph-saver");
+            saver.setDaemon(true);
+            saver.start();
+        }
+    }
+
+    /**
+     * @return the latest published snapshot
+     */
+    public GraphSnapshot current() {
+        return current.get();
+    }
+
+    /**
+     * @return number of tasks waiting for the writer thread
+     */
+    public int getPendingTasks() {
+        return tasks.size();
+    }
+
+    /**
+     * Adds walks to the graph and waits until they are published.
+     * The buffer must not be changed until the call returns.
+     * @return snapshot containing the walks
+     */
+    public GraphSnapshot addWalks(WalkBuffer walks) {
+        return submit(new Task(Kind.WALKS, walks));
+    }
+
+    /**
+     * Clears the graph and waits until the empty graph is published.
+     * @return snapshot of the cleared graph
+     */
+    public GraphSnapshot reset() {
+        return submit(new Task(Kind.RESET, null));
+    }
+
+    /**
+     * Sets the receiver of the changes applied from now on.
+     * @param listener receiver of the changes, null for none
+     */
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Waits until a snapshot of at least the given version is published.
+     * @return the latest published snapshot, null if the version was not published in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    @Nullable
+    public GraphSnapshot awaitVersion(long version, long timeoutMillis) throws InterruptedException {
+        GraphSnapshot snapshot = current.get();
+        if (snapshot.getVersion() >= version) {
+            return snapshot;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        publishLock.lock();
+        try {
+            while ((snapshot = current.get()).getVersion() < version) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                publishedCondition.awaitNanos(remaining);
+            }
+            return snapshot;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the graph into another file, see {@link GraphFile#write(Graph, Path)}, and waits until
+     * the batch it was written in is published and reported to the listener.
+     * @return version of the written graph
+     * @throws UncheckedIOException if the file cannot be written
+     */
+    public long copy(Path file) {
+        Task task = new Task(Kind.COPY, null, file);
+        try {
+            submit(task);
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException cause ? cause : e;
+        }
+        return task.copiedVersion;
+    }
+
+    /**
+     * Replaces the graph by the one of a {@link GraphFile} and waits until it is published.
+     * @return snapshot of the restored graph
+     * @throws UncheckedIOException if the file cannot be read, the graph is left empty then
+     */
+    public GraphSnapshot restore(Path file) {
+        try {
+            return submit(new Task(Kind.RESTORE, null, file));
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException cause ? cause : e;
+        }
+    }
+
+    /**
+     * Saves the graph into the file unless it has not changed since the last save, and waits until it is written.
+     * @return snapshot of the saved graph
+     * @throws IllegalStateException if the store has no file
+     * @throws UncheckedIOException if the file cannot be written
+     */
+    public GraphSnapshot save() {
+        if (graphFile == null) {
+            throw new IllegalStateException("No graph file configured");
+        }
+        try {
+            return submit(new Task(Kind.SAVE, null));
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException cause ? cause : e;
+        }
+    }
+
+    private void saveEvery(long intervalSeconds) {
+        while (true) {
+            try {
+                Thread.sleep(intervalSeconds * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                save();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private GraphSnapshot submit(Task task) {
+        tasks.add(task);
+        return task.published.join();
+    }
+
+    private void write() {
+        graph.completeRestore();
+        List<Task> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(tasks.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            tasks.drainTo(batch);
+            try {
+                ingest(batch);
+                if (walkLog != null) {
+                    walkLog.sync();
+                }
+                GraphSnapshot snapshot = graph.snapshot();
+                current.set(snapshot);
+                signalPublished();
+                Listener listener = this.listener;
+                if (listener != null) {
+                    listener.published(snapshot.getVersion());
+                }
+                for (Task task : batch) {
+                    task.published.complete(snapshot);
+                }
+            } catch (RuntimeException | IOException e) {
+                for (Task task : batch) {
+                    task.published.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Applies the tasks in the order they were submitted and commits the walks added after the last reset.
+     * Walks of consecutive tasks are added together, so a large batch may be ingested in parallel.
+     * The log is written before the walks are ingested and forced to disk by the caller afterwards.
+     */
+    private void ingest(List<Task> batch) throws IOException {
+        List<WalkBuffer> walks = new ArrayList<>();
+        for (Task task : batch) {
+            switch (task.kind) {
+                case WALKS:
+                    walks.add(task.walks);
+                    if (walkLog != null) {
+                        walkLog.append(task.walks);
+                    }
+                    break;
+                case RESET: /* walks submitted before a reset are cleared by it */
+                    walks.clear();
+                    clear();
+                    if (walkLog != null) {
+                        walkLog.appendReset();
+                    }
+                    break;
+                case SAVE:
+                    commit(walks);
+                    try {
+                        saveGraph();
+                    } catch (IOException e) {
+                        task.published.completeExceptionally(new UncheckedIOException(e));
+                    }
+                    break;
+                case COPY:
+                    commit(walks);
+                    try {
+                        GraphFile.write(graph, task.file);
+                        task.copiedVersion = graph.getVersion();
+                    } catch (IOException e) {
+                        task.published.completeExceptionally(new UncheckedIOException(e));
+                    }
+                    break;
+                case RESTORE: /* like a reset, the restored graph replaces walks submitted before */
+                    walks.clear();
+                    clear();
+                    try {
+                        GraphFile.read(graph, task.file);
+                        graph.completeRestore();
+                    } catch (IOException e) {
+                        task.published.completeExceptionally(new UncheckedIOException(e));
+                    }
+                    break;
+            }
+        }
+        if (walkLog != null) {
+            walkLog.write();
+        }
+        commit(walks);
+    }
+
+    private void commit(List<WalkBuffer> walks) {
+        if (walks.isEmpty()) return;
+        long fromVersion = graph.getVersion();
+        graph.addWalks(walks);
+        graph.commitBatch();
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.committed(walks, fromVersion, graph.getVersion());
+        }
+        walks.clear();
+    }
+
+    private void clear() {
+        long fromVersion = graph.getVersion();
+        graph.reset();
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.reset(fromVersion, graph.getVersion());
+        }
+    }
+
+    private void signalPublished() {
+        publishLock.lock();
+        try {
+            publishedCondition.signalAll();
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    private void saveGraph() throws IOException {
+        /* Records replayed on start are not in the file even though the version has not changed since. */
+        if (graph.getVersion() == savedVersion && (walkLog == null || walkLog.isEmpty())) return;
+        GraphFile.write(graph, graphFile, walkLog == null ? 0L : walkLog.getSequence());
+        savedVersion = graph.getVersion();
+        if (walkLog != null) {
+            walkLog.truncate();
+        }
+    }
+}
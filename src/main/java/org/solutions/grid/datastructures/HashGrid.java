@@ -1,68 +1,312 @@
 package org.solutions.grid.datastructures;
 
-import javax.annotation.Nullable;
-import java.util.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Class for the fast search for same locations within a graph.
+ * Locations are added by the single writer of the graph while queries search the grid concurrently.
+ * <p>
+ * Cells are kept in an open-addressing table hashed by both cell coordinates,
+ * every cell holds the chain of all its locations, so dense areas with several locations per cell
+ * are resolved correctly. Locations are stored in one primitive array, nothing is boxed.
+ * Searches are optimistic reads of a {@link StampedLock}, repeated under the read lock only
+ * if the writer added a location meanwhile.
  */
 public class HashGrid {
-    private final Map<GridCell, LocationRecord> grid = new HashMap<>();
     public static final int CELL_SIZE = 650;
+    /**
+     * Two locations are the same if their distance rounded down is at most 500,
+     * that is if their squared distance is below 501 * 501.
+     */
+    private static final long SAME_LOCATION_SQUARED_DISTANCE = 501L * 501L - 1;
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    /**
+     * Every location takes four ints: its coordinates, id and the previous location of its cell.
+     */
+    private static final int LOCATION_STRIDE = 4;
+
+    private final StampedLock lock = new StampedLock();
+    /**
+     * Open-addressing table of cells holding the newest location of every cell, -1 in empty slots.
+     * The cell of a slot is known from the coordinates of its location, so no keys are stored.
+     */
+    private int[] cells;
+    private int cellCount;
+    /**
+     * Cell count at which the table is doubled, keeps the load factor at most 1/2.
+     */
+    private int resizeThreshold;
+    private int[] locations;
+    private int locationCount;
+
+    public HashGrid() {
+        allocate();
+    }
+
+    /**
+     * Grid of the arrays of another grid, such as those read from a {@link GraphFile}.
+     * @param cells table of cells, its length a power of two
+     * @param cellCount number of occupied cells
+     * @param locations locations of the grid, four ints each
+     * @param locationCount number of locations
+     */
+    HashGrid(int[] cells, int cellCount, int[] locations, int locationCount) {
+        this.cells = cells;
+        this.cellCount = cellCount;
+        this.resizeThreshold = cells.length >> 1;
+        this.locations = locations;
+        this.locationCount = locationCount;
+    }
+
+    /**
+     * Searches for the same location in the grid by its coordinates.
+     * @param x x coordinate of the location to search for.
+     * @param y y coordinate of the location to search for.
+     * @return id of the nearest same location in the grid, -1 if there is none
+     */
+    public int locationId(int x, int y) {
+        return locationId(x, y, Integer.MAX_VALUE);
+    }
 
     /**
-     * Searches for the same location in the grid.
-     * @param location location to search for.
-     * @return existing location in the grid and null otherwise
-     */
-    @Nullable
-    public LocationRecord locationIsInGrid(LocationRecord location){
-        int cellX = location.x() / CELL_SIZE;
-        int cellY = location.y() / CELL_SIZE;
-        GridCell gridCell = new GridCell(0, 0);
-        for (int i = cellX - 1; i <= cellX + 1; i++) {
-            for (int j = cellY - 1; j <= cellY + 1; j++) {
-                gridCell.setX(i);
-                gridCell.setY(j);
-                LocationRecord locationsInNeighbourCell = grid.get(gridCell);
-                if (locationsInNeighbourCell != null
-                        && euclideanDistance(location, locationsInNeighbourCell) <= 500){
-                    return locationsInNeighbourCell; /* returning a gridCell coordinates where we have found cluster location */
+     * Searches for the same location among the locations with id below the limit,
+     * so that a query sees only the locations of its graph snapshot.
+     * @param x x coordinate of the location to search for.
+     * @param y y coordinate of the location to search for.
+     * @param idLimit number of locations of the snapshot.
+     * @return id of the nearest same location in the grid, -1 if there is none
+     */
+    public int locationId(int x, int y, int idLimit) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int id = search(x, y, idLimit);
+            if (lock.validate(stamp)) {
+                return id;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return search(x, y, idLimit);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Searches the cell of the location and those of its eight neighbours which are close enough
+     * to hold a same location, the cell is larger than the distance of same locations.
+     * During an optimistic read the arrays may be changed by the writer, so every index is checked
+     * and every loop is bounded; the result is then thrown away by the caller.
+     */
+    private int search(int x, int y, int idLimit) {
+        int[] cells = this.cells;
+        int[] locations = this.locations;
+        int mask = cells.length - 1;
+        int storedLocations = locations.length / LOCATION_STRIDE;
+        int cellX = Math.floorDiv(x, CELL_SIZE);
+        int cellY = Math.floorDiv(y, CELL_SIZE);
+        /* Distances from the location to the borders of its cell, a neighbour cell is searched
+           only if its nearest point may be a same location. */
+        long toLeft = x - (long) cellX * CELL_SIZE + 1;
+        long toRight = (long) (cellX + 1) * CELL_SIZE - x;
+        long toBottom = y - (long) cellY * CELL_SIZE + 1;
+        long toTop = (long) (cellY + 1) * CELL_SIZE - y;
+        long bestDistance = Long.MAX_VALUE;
+        int bestId = NONE;
+        for (int i = -1; i <= 1; i++) {
+            long dx = i < 0 ? toLeft : i > 0 ? toRight : 0;
+            if (dx * dx > SAME_LOCATION_SQUARED_DISTANCE) continue;
+            for (int j = -1; j <= 1; j++) {
+                long dy = j < 0 ? toBottom : j > 0 ? toTop : 0;
+                if (dx * dx + dy * dy > SAME_LOCATION_SQUARED_DISTANCE) continue;
+                int location = NONE;
+                for (int probe = 0, slot = hash(cellX + i, cellY + j) & mask; probe < cells.length;
+                     probe++, slot = (slot + 1) & mask) {
+                    int head = cells[slot];
+                    if (head < 0 || head >= storedLocations) break;
+                    if (Math.floorDiv(locations[head * LOCATION_STRIDE], CELL_SIZE) == cellX + i
+                            && Math.floorDiv(locations[head * LOCATION_STRIDE + 1], CELL_SIZE) == cellY + j) {
+                        location = head;
+                        break;
+                    }
                 }
+                for (int steps = 0; location >= 0 && location < storedLocations && steps < storedLocations; steps++) {
+                    int base = location * LOCATION_STRIDE;
+                    int id = locations[base + 2];
+                    if (id < idLimit) {
+                        long distanceX = x - locations[base];
+                        long distanceY = y - locations[base + 1];
+                        long distance = distanceX * distanceX + distanceY * distanceY;
+                        if (distance <= SAME_LOCATION_SQUARED_DISTANCE
+                                && (distance < bestDistance || (distance == bestDistance && id < bestId))) {
+                            bestDistance = distance;
+                            bestId = id;
+                        }
+                    }
+                    location = locations[base + 3];
+                }
+            }
+        }
+        return bestId;
+    }
+
+    /**
+     * Adds a location which has no same location in the grid yet.
+     * Concurrent searches may find it right away, so its id must not be used by other locations of the grid.
+     * @param x x coordinate of the location.
+     * @param y y coordinate of the location.
+     * @param id id of the location in the graph.
+     */
+    public void insert(int x, int y, int id) {
+        long stamp = lock.writeLock();
+        try {
+            if (cellCount >= resizeThreshold) {
+                rehash(cells.length * 2);
+            }
+            if ((locationCount + 1) * LOCATION_STRIDE > locations.length) {
+                locations = Arrays.copyOf(locations, locations.length * 2);
+            }
+            int location = locationCount++;
+            int base = location * LOCATION_STRIDE;
+            locations[base] = x;
+            locations[base + 1] = y;
+            locations[base + 2] = id;
+            int slot = findSlot(cells, Math.floorDiv(x, CELL_SIZE), Math.floorDiv(y, CELL_SIZE));
+            if (cells[slot] == NONE) {
+                cellCount++;
             }
+            locations[base + 3] = cells[slot];
+            cells[slot] = location;
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        return null;
     }
 
     /**
-     * Adds a location to the grid.
-     *
-     * @param location the location to add
-     * @return the existing location if there is a same location in the grid,
-     *         otherwise the provided {@code location}
+     * @return slot of the cell in the table, or the empty slot where it belongs
      */
-    public LocationRecord addLocation(LocationRecord location) {
-        LocationRecord existingLocation = locationIsInGrid(location);
-        if (existingLocation == null) {
-            GridCell gridCell = new GridCell(location);
-            grid.put(gridCell, location);
-            return location;
-        } else {
-            return existingLocation;
+    private int findSlot(int[] cells, int cellX, int cellY) {
+        int mask = cells.length - 1;
+        int slot = hash(cellX, cellY) & mask;
+        while (cells[slot] != NONE) {
+            int base = cells[slot] * LOCATION_STRIDE;
+            if (Math.floorDiv(locations[base], CELL_SIZE) == cellX
+                    && Math.floorDiv(locations[base + 1], CELL_SIZE) == cellY) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        int[] newCells = emptyCells(capacity);
+        for (int head : cells) {
+            if (head != NONE) {
+                int base = head * LOCATION_STRIDE;
+                int slot = findSlot(newCells, Math.floorDiv(locations[base], CELL_SIZE),
+                        Math.floorDiv(locations[base + 1], CELL_SIZE));
+                newCells[slot] = head;
+            }
+        }
+        cells = newCells;
+        resizeThreshold = capacity >> 1;
+    }
+
+    private void allocate() {
+        cells = emptyCells(INITIAL_CAPACITY);
+        cellCount = 0;
+        resizeThreshold = INITIAL_CAPACITY >> 1;
+        locations = new int[INITIAL_CAPACITY * LOCATION_STRIDE];
+        locationCount = 0;
+    }
+
+    private static int[] emptyCells(int capacity) {
+        int[] cells = new int[capacity];
+        Arrays.fill(cells, NONE);
+        return cells;
+    }
+
+    /**
+     * @return number of locations in the grid
+     */
+    public int size() {
+        return locationCount;
+    }
+
+    /**
+     * @param location index of the location in the order of insertion, which is its id in the grid of a {@link Graph}
+     * @return x coordinate of the location
+     */
+    public int getX(int location) {
+        return read(location * LOCATION_STRIDE);
+    }
+
+    /**
+     * @param location index of the location in the order of insertion, which is its id in the grid of a {@link Graph}
+     * @return y coordinate of the location
+     */
+    public int getY(int location) {
+        return read(location * LOCATION_STRIDE + 1);
+    }
+
+    /**
+     * Reads an int of the locations, which may be replaced by a larger array meanwhile.
+     */
+    private int read(int index) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int[] array = locations;
+            int value = index < array.length ? array[index] : 0;
+            if (lock.validate(stamp)) {
+                return value;
+            }
         }
+        stamp = lock.readLock();
+        try {
+            return locations[index];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    int[] getCells() {
+        return cells;
+    }
+
+    int getCellCount() {
+        return cellCount;
     }
 
     /**
-     * Counts Euclidean distance between two locations
+     * @return coordinates, id and previous location of the same cell of every location, four ints each
      */
-    public long euclideanDistance(LocationRecord l1, LocationRecord l2){
-        double x = l1.x() - l2.x();
-        double y = l1.y() - l2.y();
-        return (long)Math.sqrt(x * x + y * y);
+    int[] getLocationArray() {
+        return locations;
     }
 
-    public void clear(){
-        grid.clear();
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            allocate();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
+    /**
+     * Finalizer of MurmurHash3 applied to both cell coordinates packed into one long,
+     * spreads them over the low bits used for probing.
+     */
+    private static int hash(int cellX, int cellY) {
+        long key = ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
 }
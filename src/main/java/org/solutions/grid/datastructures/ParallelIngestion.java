@@ -0,0 +1,162 @@
+package org.solutions.grid.datastructures;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Ingestion of large walk batches on several threads. The resulting graph is the same as if the walks
+ * were added one after another, whatever the interleaving of the threads.
+ * <p>
+ * Phase one resolves the locations of all walks. They are searched in the grid in parallel; those
+ * not found are then searched again and added one by one in walk order, so new locations get the ids
+ * sequential ingestion would give them. A location found in the first search is searched once more,
+ * in parallel, only if a location added earlier in the batch is close to it and may be nearer.
+ * Phase two accumulates the paths into edges on one thread per shard of origin locations; a shard owns
+ * the edge store and the edge index of its origins, so no locking is needed. Phase three records
+ * the changed edges in walk order for the next snapshot and the change log.
+ */
+class ParallelIngestion {
+    /**
+     * Number of locations resolved by one task.
+     */
+    private static final int CHUNK = 4096;
+    /**
+     * Length stored after the last location of a walk, where no path starts.
+     */
+    private static final long WALK_END = -1L;
+
+    private final Graph graph;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param graph graph the walks are added to
+     * @param parallelism number of threads
+     */
+    ParallelIngestion(Graph graph, int parallelism) {
+        this.graph = graph;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Adds the walks of all buffers in their order.
+     */
+    void ingest(List<WalkBuffer> batch) {
+        /* Locations of all walks with at least one path one after another, walks of one location are ignored. */
+        int size = 0;
+        for (WalkBuffer walks : batch) {
+            for (int w = 0; w < walks.getWalkCount(); w++) {
+                int walkSize = walks.getWalkEnd(w) - walks.getWalkStart(w);
+                if (walkSize >= 2) size += walkSize;
+            }
+        }
+        int[] xs = new int[size];
+        int[] ys = new int[size];
+        long[] lengths = new long[size];
+        int i = 0;
+        for (WalkBuffer walks : batch) {
+            for (int w = 0; w < walks.getWalkCount(); w++) {
+                int start = walks.getWalkStart(w);
+                int end = walks.getWalkEnd(w);
+                if (end - start < 2) continue;
+                for (int l = start; l < end; l++, i++) {
+                    xs[i] = walks.getX(l);
+                    ys[i] = walks.getY(l);
+                    lengths[i] = l < end - 1 ? walks.getLength(l) : WALK_END;
+                }
+            }
+        }
+
+        int[] ids = resolveLocations(xs, ys);
+        int shards = graph.getEdgeShards();
+        long[] oldAvg = new long[size];
+        forEach(shards, 1, (from, to) -> {
+            for (int shard = from; shard < to; shard++) {
+                for (int p = 0; p < ids.length; p++) {
+                    if (lengths[p] != WALK_END && ids[p] % shards == shard) {
+                        oldAvg[p] = graph.accumulateEdge(ids[p], ids[p + 1], lengths[p]);
+                    }
+                }
+            }
+        });
+        for (int p = 0; p < ids.length; p++) {
+            if (lengths[p] != WALK_END) {
+                graph.recordEdgeChange(ids[p], ids[p + 1], oldAvg[p]);
+            }
+        }
+    }
+
+    /**
+     * @return ids of the locations, new locations are added to the graph
+     */
+    private int[] resolveLocations(int[] xs, int[] ys) {
+        HashGrid grid = graph.getGrid();
+        int[] ids = new int[xs.length];
+        forEach(xs.length, CHUNK, (from, to) -> {
+            for (int p = from; p < to; p++) {
+                ids[p] = grid.locationId(xs[p], ys[p]);
+            }
+        });
+
+        /* Number of locations when the location is reached in walk order, new ones are also kept apart. */
+        int existing = graph.getLocationsSize();
+        int[] idLimits = new int[xs.length];
+        HashGrid added = null;
+        for (int p = 0; p < xs.length; p++) {
+            idLimits[p] = graph.getLocationsSize();
+            if (ids[p] < 0) {
+                ids[p] = graph.locationId(xs[p], ys[p]);
+                if (ids[p] >= idLimits[p]) {
+                    if (added == null) added = new HashGrid();
+                    added.insert(xs[p], ys[p], ids[p]);
+                }
+            }
+        }
+        if (added == null) return ids;
+
+        HashGrid addedLocations = added;
+        forEach(xs.length, CHUNK, (from, to) -> {
+            for (int p = from; p < to; p++) {
+                if (ids[p] < existing && addedLocations.locationId(xs[p], ys[p], idLimits[p]) >= 0) {
+                    ids[p] = grid.locationId(xs[p], ys[p], idLimits[p]);
+                }
+            }
+        });
+        return ids;
+    }
+
+    private void forEach(int size, int chunk, RangeBody body) {
+        pool.invoke(new RangeTask(body, 0, size, chunk));
+    }
+
+    private interface RangeBody {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the body on parts of a range of at most chunk elements.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private final RangeBody body;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        private RangeTask(RangeBody body, int from, int to, int chunk) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                body.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, middle, chunk), new RangeTask(body, middle, to, chunk));
+        }
+    }
+}
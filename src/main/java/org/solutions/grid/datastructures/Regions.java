@@ -0,0 +1,117 @@
+package org.solutions.grid.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * Allocator of regions in a pool of chunks, for rows that grow by moving into a region twice as large.
+ * The arrays of the chunks are kept by the caller, only their sizes are known here.
+ * <p>
+ * Region sizes are powers of two, a region is addressed by the index of its chunk and its position
+ * in the chunk packed into one int. Regions are cut one after another from a shared chunk, a region
+ * larger than a chunk gets a chunk of its own. Regions given up by grown rows are reused for rows
+ * of the same size.
+ */
+final class Regions {
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << (Integer.SIZE - 1 - CHUNK_BITS);
+
+    private int[] chunkSizes = new int[16];
+    private int chunkCount;
+    private long units;
+    /**
+     * Chunk the regions are cut from and the position of its next region, {@link #CHUNK_SIZE} if there is none.
+     */
+    private int sharedChunk;
+    private int top = CHUNK_SIZE;
+    /**
+     * Stacks of the released regions of every size class.
+     */
+    private final int[][] released = new int[Integer.SIZE][];
+    private final int[] releasedCounts = new int[Integer.SIZE];
+
+    /**
+     * @return smallest size class whose regions hold the number of units
+     */
+    static int sizeClass(int units) {
+        return units <= 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(units - 1);
+    }
+
+    static int chunk(int region) {
+        return region >>> CHUNK_BITS;
+    }
+
+    static int position(int region) {
+        return region & (CHUNK_SIZE - 1);
+    }
+
+    /**
+     * @return region of {@code 1 << sizeClass} units, its chunk may be a new one
+     * @throws IllegalStateException if the pool has no room for another chunk
+     */
+    int allocate(int sizeClass) {
+        int count = releasedCounts[sizeClass];
+        if (count > 0) {
+            releasedCounts[sizeClass] = count - 1;
+            return released[sizeClass][count - 1];
+        }
+        int size = 1 << sizeClass;
+        if (size > CHUNK_SIZE) {
+            return newChunk(size) << CHUNK_BITS;
+        }
+        if (top + size > CHUNK_SIZE) {
+            /* The rest of the shared chunk is kept for smaller regions. */
+            while (top < CHUNK_SIZE) {
+                int piece = Integer.highestOneBit(CHUNK_SIZE - top);
+                release((sharedChunk << CHUNK_BITS) | top, Integer.numberOfTrailingZeros(piece));
+                top += piece;
+            }
+            sharedChunk = newChunk(CHUNK_SIZE);
+            top = 0;
+        }
+        int region = (sharedChunk << CHUNK_BITS) | top;
+        top += size;
+        return region;
+    }
+
+    /**
+     * Makes the region available to later allocations of the same size class.
+     */
+    void release(int region, int sizeClass) {
+        int[] stack = released[sizeClass];
+        int count = releasedCounts[sizeClass];
+        if (stack == null) {
+            stack = released[sizeClass] = new int[16];
+        } else if (count == stack.length) {
+            stack = released[sizeClass] = Arrays.copyOf(stack, count * 2);
+        }
+        stack[count] = region;
+        releasedCounts[sizeClass] = count + 1;
+    }
+
+    private int newChunk(int size) {
+        if (chunkCount == MAX_CHUNKS) {
+            throw new IllegalStateException("No room for another chunk of " + size + " units");
+        }
+        if (chunkCount == chunkSizes.length) {
+            chunkSizes = Arrays.copyOf(chunkSizes, chunkCount * 2);
+        }
+        chunkSizes[chunkCount] = size;
+        units += size;
+        return chunkCount++;
+    }
+
+    /**
+     * @return number of units of the chunk
+     */
+    int getChunkSize(int chunk) {
+        return chunkSizes[chunk];
+    }
+
+    /**
+     * @return number of units of all chunks
+     */
+    long getUnits() {
+        return units;
+    }
+}
@@ -0,0 +1,158 @@
+package org.solutions.grid.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * Rows of location ids appended one at a time, every id stored as the zigzag varint of its difference
+ * to the id before it, the first one to a base given by the caller. Locations are numbered in the order
+ * walks reach them, so neighbouring locations have close ids and most ids take one or two bytes.
+ * A row lives in a region of a chunked byte pool and moves into a region twice as large when it is full.
+ */
+final class VarintRows {
+    /**
+     * Smallest region, holds a few ids.
+     */
+    private static final int MIN_SIZE_CLASS = 3;
+
+    private final Regions regions = new Regions();
+    private byte[][] chunks = new byte[4][];
+    private int rowCount;
+    private int[] rowRegions;
+    private int[] byteCounts;
+    private int[] sizes;
+    private int[] lastValues;
+
+    /**
+     * @param expectedRows approximate number of rows
+     */
+    VarintRows(int expectedRows) {
+        int capacity = Math.max(16, expectedRows);
+        rowRegions = new int[capacity];
+        byteCounts = new int[capacity];
+        sizes = new int[capacity];
+        lastValues = new int[capacity];
+    }
+
+    /**
+     * Adds an empty row after the last one.
+     */
+    void addRow() {
+        if (rowCount == sizes.length) {
+            int capacity = rowCount + (rowCount >> 1);
+            rowRegions = Arrays.copyOf(rowRegions, capacity);
+            byteCounts = Arrays.copyOf(byteCounts, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            lastValues = Arrays.copyOf(lastValues, capacity);
+        }
+        rowCount++;
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return number of values of the row
+     */
+    int size(int row) {
+        return sizes[row];
+    }
+
+    /**
+     * Appends a value to the row.
+     * @param base value the first value of the row is encoded against
+     */
+    void append(int row, int base, int value) {
+        int delta = value - (sizes[row] == 0 ? base : lastValues[row]);
+        int zigzag = (delta << 1) ^ (delta >> 31);
+        int length = (38 - Integer.numberOfLeadingZeros(zigzag | 1)) / 7;
+        int used = byteCounts[row];
+        int region;
+        if (used == 0) {
+            region = allocate(MIN_SIZE_CLASS);
+        } else {
+            region = rowRegions[row];
+            if (used + length > capacity(used)) {
+                region = grow(region, used, used + length);
+            }
+        }
+        rowRegions[row] = region;
+        byte[] chunk = chunks[Regions.chunk(region)];
+        int p = Regions.position(region) + used;
+        while ((zigzag & ~0x7F) != 0) {
+            chunk[p++] = (byte) (zigzag | 0x80);
+            zigzag >>>= 7;
+        }
+        chunk[p] = (byte) zigzag;
+        byteCounts[row] = used + length;
+        sizes[row]++;
+        lastValues[row] = value;
+    }
+
+    /**
+     * Decodes the row into the array.
+     * @param base value the first value of the row was encoded against
+     * @param pos index of the first value in the array
+     * @return index after the last value
+     */
+    int read(int row, int base, int[] values, int pos) {
+        int size = sizes[row];
+        if (size == 0) return pos;
+        int region = rowRegions[row];
+        byte[] chunk = chunks[Regions.chunk(region)];
+        int p = Regions.position(region);
+        int value = base;
+        for (int i = 0; i < size; i++) {
+            int zigzag = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = chunk[p++];
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[pos++] = value;
+        }
+        return pos;
+    }
+
+    /**
+     * @return bytes taken by the rows, their pool and the regions given up by grown rows included
+     */
+    long getByteCount() {
+        return regions.getUnits() + 16L * sizes.length;
+    }
+
+    /**
+     * Capacity of the region of a row with the number of bytes, the row always taking the smallest
+     * region that holds them.
+     */
+    private static int capacity(int used) {
+        return 1 << Math.max(MIN_SIZE_CLASS, Regions.sizeClass(used));
+    }
+
+    /**
+     * Moves the bytes of a row into a region holding the larger number of bytes.
+     * @return new region of the row
+     */
+    private int grow(int region, int used, int needed) {
+        int grown = allocate(Math.max(MIN_SIZE_CLASS, Regions.sizeClass(needed)));
+        System.arraycopy(chunks[Regions.chunk(region)], Regions.position(region),
+                chunks[Regions.chunk(grown)], Regions.position(grown), used);
+        regions.release(region, Math.max(MIN_SIZE_CLASS, Regions.sizeClass(used)));
+        return grown;
+    }
+
+    private int allocate(int sizeClass) {
+        int region = regions.allocate(sizeClass);
+        int chunk = Regions.chunk(region);
+        if (chunk >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new byte[regions.getChunkSize(chunk)];
+        }
+        return region;
+    }
+}
@@ -0,0 +1,142 @@
+package org.solutions.grid.datastructures;
+
+import com.google.common.primitives.UnsignedInts;
+import cz.cvut.fel.esw.server.proto.Walk;
+
+import java.util.Arrays;
+
+/**
+ * Walks of one client collected for the next synchronization point, kept in primitive arrays.
+ * Locations of all walks are stored one after another; the length stored at a location
+ * is the length of the path from it to the next location of the same walk.
+ */
+public class WalkBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int[] xs = new int[INITIAL_CAPACITY];
+    private int[] ys = new int[INITIAL_CAPACITY];
+    private long[] lengths = new long[INITIAL_CAPACITY];
+    /**
+     * Index after the last location of every walk.
+     */
+    private int[] walkEnds = new int[16];
+    private int walkCount;
+    private int locationCount;
+    /**
+     * Index of the first location and number of lengths of the walk being added.
+     */
+    private int walkStart;
+    private int walkLengths;
+
+    /**
+     * Starts a new walk, its locations and lengths may then be added in any order.
+     * Locations of a walk started before and never finished are dropped.
+     */
+    public void beginWalk() {
+        walkStart = getWalkStart(walkCount);
+        locationCount = walkStart;
+        walkLengths = 0;
+    }
+
+    public void addLocation(int x, int y) {
+        ensureCapacity(locationCount + 1);
+        xs[locationCount] = x;
+        ys[locationCount] = y;
+        locationCount++;
+    }
+
+    /**
+     * @param length unsigned length of the next path of the walk
+     */
+    public void addLength(int length) {
+        ensureCapacity(walkStart + walkLengths + 1);
+        lengths[walkStart + walkLengths] = UnsignedInts.toLong(length);
+        walkLengths++;
+    }
+
+    /**
+     * Finishes the walk started by {@link #beginWalk()}.
+     * @throws IllegalArgumentException if the walk has fewer lengths than paths between its locations,
+     *                                  the walk is dropped then
+     */
+    public void endWalk() {
+        int walkLocations = locationCount - walkStart;
+        if (walkLocations > 1 && walkLengths < walkLocations - 1) {
+            locationCount = walkStart;
+            throw new IllegalArgumentException("Walk of " + walkLocations + " locations has only "
+                    + walkLengths + " lengths");
+        }
+        if (walkCount == walkEnds.length) {
+            walkEnds = Arrays.copyOf(walkEnds, walkCount * 2);
+        }
+        walkEnds[walkCount++] = locationCount;
+    }
+
+    /**
+     * Adds a walk from its protobuf message.
+     */
+    public void addWalk(Walk walk) {
+        beginWalk();
+        for (int i = 0; i < walk.getLocationsCount(); i++) {
+            addLocation(walk.getLocations(i).getX(), walk.getLocations(i).getY());
+        }
+        for (int i = 0; i < walk.getLengthsCount(); i++) {
+            addLength(walk.getLengths(i));
+        }
+        endWalk();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= xs.length) return;
+        int newCapacity = Math.max(capacity, xs.length * 2);
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+        lengths = Arrays.copyOf(lengths, newCapacity);
+    }
+
+    public int getWalkCount() {
+        return walkCount;
+    }
+
+    /**
+     * @return number of locations of all finished walks
+     */
+    public int getLocationCount() {
+        return walkCount == 0 ? 0 : walkEnds[walkCount - 1];
+    }
+
+    public int getWalkStart(int walk) {
+        return walk == 0 ? 0 : walkEnds[walk - 1];
+    }
+
+    public int getWalkEnd(int walk) {
+        return walkEnds[walk];
+    }
+
+    public int getX(int location) {
+        return xs[location];
+    }
+
+    public int getY(int location) {
+        return ys[location];
+    }
+
+    /**
+     * @return length of the path from the location to the next one of its walk
+     */
+    public long getLength(int location) {
+        return lengths[location];
+    }
+
+    public boolean isEmpty() {
+        return walkCount == 0;
+    }
+
+    /**
+     * Forgets all walks, keeping the arrays for reuse.
+     */
+    public void clear() {
+        walkCount = 0;
+        locationCount = 0;
+    }
+}
@@ -0,0 +1,310 @@
+package org.solutions.grid.datastructures;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the walks and resets applied to the graph, so that a crash does not lose
+ * the walks ingested since the graph was last saved into its {@link GraphFile}.
+ * <p>
+ * The log is an append-only file of length-prefixed records, each with a checksum and a sequence
+ * number. Records of all tasks the writer of the graph takes at once are written together and,
+ * in the synchronous mode, forced to disk by a single call before the batch is published, so many
+ * clients share one disk flush. In the asynchronous mode a background thread forces the log
+ * periodically and a crash of the machine loses at most that period.
+ * The log is truncated whenever the graph is saved, the graph file remembering the last sequence
+ * number it contains.
+ */
+public class WalkLog implements Closeable {
+    private static final byte WALKS = 0;
+    private static final byte RESET = 1;
+    /**
+     * Length and checksum before the payload of every record.
+     */
+    private static final int RECORD_HEADER_BYTES = 8;
+    /**
+     * Sequence number and kind at the start of the payload.
+     */
+    private static final int PAYLOAD_HEADER_BYTES = 9;
+    private static final long REPLAY_WINDOW_BYTES = 1L << 28;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean sync;
+    /**
+     * Records appended since the last write, touched only by the writer of the graph.
+     */
+    private ByteBuffer pending = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private long sequence;
+
+    /**
+     * Opens the log, it has to be replayed before records are appended.
+     * @param path file of the log, created if there is none
+     * @param sync whether every batch is forced to disk before it is published
+     * @param syncIntervalMillis period of forcing the log to disk in the asynchronous mode
+     * @throws IOException if the file cannot be opened
+     */
+    public WalkLog(Path path, boolean sync, long syncIntervalMillis) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.sync = sync;
+        if (!sync && syncIntervalMillis > 0) {
+            Thread syncer = new Thread(() -> syncEvery(syncIntervalMillis), "walk-log-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    /**
+     * Applies the records logged after the graph was saved and commits them. A record cut short
+     * by a crash, and everything after it, is dropped from the file.
+     * Walks between two resets are added together, so a long log is ingested in parallel.
+     * @param graph graph restored from its file, or an empty graph
+     * @param savedSequence sequence number of the last record contained in the graph file, 0 if none
+     * @return number of replayed records
+     * @throws IOException if the file cannot be read
+     */
+    public int replay(Graph graph, long savedSequence) throws IOException {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        List<Integer> checksums = new ArrayList<>();
+        long size = channel.size();
+        long position = 0;
+        /* Record boundaries are found in windows of the mapped file, a window starts at a record. */
+        while (position + RECORD_HEADER_BYTES <= size) {
+            long windowBytes = Math.min(size - position, REPLAY_WINDOW_BYTES);
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int offset = 0;
+            while (offset + RECORD_HEADER_BYTES <= windowBytes) {
+                int length = window.getInt(offset);
+                if (length < PAYLOAD_HEADER_BYTES || position + offset + RECORD_HEADER_BYTES + length > size) {
+                    size = position + offset; /* cut short */
+                    break;
+                }
+                if (offset + RECORD_HEADER_BYTES + length > windowBytes) {
+                    if (offset == 0) { /* a record larger than the window gets a window of its own */
+                        window = channel.map(FileChannel.MapMode.READ_ONLY, position, RECORD_HEADER_BYTES + length)
+                                .order(ByteOrder.LITTLE_ENDIAN);
+                        windowBytes = RECORD_HEADER_BYTES + length;
+                        continue;
+                    }
+                    break;
+                }
+                positions.add(position + offset);
+                checksums.add(window.getInt(offset + 4));
+                payloads.add(window.slice(offset + RECORD_HEADER_BYTES, length).order(ByteOrder.LITTLE_ENDIAN));
+                offset += RECORD_HEADER_BYTES + length;
+            }
+            position += offset;
+            if (offset == 0) break;
+        }
+
+        /* Checksums are verified and walks decoded in parallel, the records are applied in their order. */
+        WalkBuffer[] decoded = new WalkBuffer[payloads.size()];
+        boolean[] valid = new boolean[payloads.size()];
+        IntStream.range(0, payloads.size()).parallel().forEach(i -> {
+            ByteBuffer payload = payloads.get(i);
+            CRC32 checksum = new CRC32();
+            checksum.update(payload.duplicate());
+            valid[i] = (int) checksum.getValue() == checksums.get(i);
+            if (valid[i] && payload.get(8) == WALKS) {
+                decoded[i] = decodeWalks(payload);
+            }
+        });
+        int records = 0;
+        while (records < payloads.size() && valid[records]) {
+            records++;
+        }
+        long validEnd = records < payloads.size() ? positions.get(records) : position;
+        if (validEnd < channel.size()) {
+            System.out.println("Dropping " + (channel.size() - validEnd) + " bytes of incomplete records from " + path);
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+
+        int replayed = 0;
+        List<WalkBuffer> walks = new ArrayList<>();
+        sequence = savedSequence;
+        for (int i = 0; i < records; i++) {
+            long recordSequence = payloads.get(i).getLong(0);
+            if (recordSequence <= savedSequence) continue;
+            if (replayed == 0) graph.completeRestore();
+            sequence = recordSequence;
+            replayed++;
+            if (decoded[i] != null) {
+                walks.add(decoded[i]);
+            } else {
+                commit(graph, walks);
+                graph.reset();
+            }
+        }
+        commit(graph, walks);
+        if (replayed == 0 && validEnd > 0) { /* all records are in the graph file already */
+            truncate();
+        }
+        return replayed;
+    }
+
+    private static void commit(Graph graph, List<WalkBuffer> walks) {
+        if (walks.isEmpty()) return;
+        graph.addWalks(walks);
+        graph.commitBatch();
+        walks.clear();
+    }
+
+    private static WalkBuffer decodeWalks(ByteBuffer payload) {
+        ByteBuffer in = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        in.position(PAYLOAD_HEADER_BYTES);
+        int walkCount = in.getInt();
+        int locationCount = in.getInt();
+        int[] walkEnds = new int[walkCount];
+        in.asIntBuffer().get(walkEnds);
+        int base = in.position() + 4 * walkCount;
+        WalkBuffer walks = new WalkBuffer();
+        int start = 0;
+        for (int w = 0; w < walkCount; w++) {
+            walks.beginWalk();
+            for (int l = start; l < walkEnds[w]; l++) {
+                walks.addLocation(in.getInt(base + 4 * l), in.getInt(base + 4 * (locationCount + l)));
+            }
+            for (int l = start; l < walkEnds[w] - 1; l++) {
+                walks.addLength(in.getInt(base + 4 * (2 * locationCount + l)));
+            }
+            walks.endWalk();
+            start = walkEnds[w];
+        }
+        return walks;
+    }
+
+    /**
+     * Appends the walks of a buffer, they are written by the next {@link #write()}.
+     */
+    public void append(WalkBuffer walks) {
+        int walkCount = walks.getWalkCount();
+        int locationCount = walks.getLocationCount();
+        int payloadStart = begin(WALKS, 8 + 4 * walkCount + 12 * locationCount);
+        pending.putInt(walkCount);
+        pending.putInt(locationCount);
+        for (int w = 0; w < walkCount; w++) {
+            pending.putInt(walks.getWalkEnd(w));
+        }
+        for (int l = 0; l < locationCount; l++) {
+            pending.putInt(walks.getX(l));
+        }
+        for (int l = 0; l < locationCount; l++) {
+            pending.putInt(walks.getY(l));
+        }
+        for (int l = 0; l < locationCount; l++) {
+            pending.putInt((int) walks.getLength(l));
+        }
+        end(payloadStart);
+    }
+
+    /**
+     * Appends a reset of the graph, it is written by the next {@link #write()}.
+     */
+    public void appendReset() {
+        end(begin(RESET, 0));
+    }
+
+    private int begin(byte kind, int dataBytes) {
+        int recordBytes = RECORD_HEADER_BYTES + PAYLOAD_HEADER_BYTES + dataBytes;
+        if (pending.remaining() < recordBytes) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(pending.capacity() * 2, pending.position() + recordBytes))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.putInt(PAYLOAD_HEADER_BYTES + dataBytes);
+        pending.putInt(0);
+        int payloadStart = pending.position();
+        pending.putLong(++sequence);
+        pending.put(kind);
+        return payloadStart;
+    }
+
+    private void end(int payloadStart) {
+        crc.reset();
+        crc.update(pending.slice(payloadStart, pending.position() - payloadStart));
+        pending.putInt(payloadStart - 4, (int) crc.getValue());
+    }
+
+    /**
+     * Writes the appended records to the file, without waiting for the disk.
+     * @throws IOException if the file cannot be written
+     */
+    public void write() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Waits until the written records are on disk if the log is synchronous.
+     * @throws IOException if the file cannot be forced to disk
+     */
+    public void sync() throws IOException {
+        if (sync) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Drops all records, both written and appended, once the graph containing them is saved.
+     * @throws IOException if the file cannot be truncated
+     */
+    public void truncate() throws IOException {
+        pending.clear();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+    }
+
+    /**
+     * @return whether the log holds no records, written or appended
+     * @throws IOException if the size of the file cannot be read
+     */
+    public boolean isEmpty() throws IOException {
+        return pending.position() == 0 && channel.size() == 0;
+    }
+
+    /**
+     * @return sequence number of the last appended record
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    private void syncEvery(long intervalMillis) {
+        while (channel.isOpen()) {
+            try {
+                Thread.sleep(intervalMillis);
+                channel.force(false);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (channel.isOpen()) e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,106 @@
+package org.solutions.grid.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Plain-text scrape endpoint of the metrics at {@code /metrics}, in the Prometheus text format.
+ * It listens on the loopback interface only and runs on a single thread of its own,
+ * so scraping never takes threads from the clients.
+ */
+public class MetricsEndpoint {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ServerMetrics metrics;
+    private final HttpServer server;
+
+    /**
+     * Starts the endpoint.
+     * @param metrics metrics to be served
+     * @param port local port of the endpoint
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsEndpoint(ServerMetrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    String render() {
+        StringBuilder text = new StringBuilder(8192);
+        text.append("# TYPE grid_requests_total counter\n");
+        for (ServerMetrics.RequestType type : ServerMetrics.RequestType.values()) {
+            line(text, "grid_requests_total", "type", ServerMetrics.name(type), metrics.getRequests(type));
+        }
+        text.append("# TYPE grid_request_errors_total counter\n");
+        for (ServerMetrics.RequestType type : ServerMetrics.RequestType.values()) {
+            line(text, "grid_request_errors_total", "type", ServerMetrics.name(type), metrics.getErrors(type));
+        }
+        for (ServerMetrics.Counter counter : ServerMetrics.Counter.values()) {
+            String name = "grid_" + ServerMetrics.name(counter) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(metrics.getCount(counter)).append('\n');
+        }
+        text.append("# TYPE grid_request_latency_seconds summary\n");
+        for (ServerMetrics.RequestType type : ServerMetrics.RequestType.values()) {
+            summary(text, "grid_request_latency_seconds", "type", ServerMetrics.name(type),
+                    metrics.getRequestLatency(type));
+        }
+        text.append("# TYPE grid_phase_latency_seconds summary\n");
+        for (ServerMetrics.Phase phase : ServerMetrics.Phase.values()) {
+            summary(text, "grid_phase_latency_seconds", "phase", ServerMetrics.name(phase),
+                    metrics.getPhaseLatency(phase));
+        }
+        for (ServerMetrics.Gauge gauge : metrics.getGauges()) {
+            String name = "grid_" + gauge.name();
+            text.append("# TYPE ").append(name).append(" gauge\n");
+            text.append(name).append(' ').append(gauge.value().getAsLong()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, String label, String value, long count) {
+        text.append(name).append('{').append(label).append("=\"").append(value).append("\"} ").append(count).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String label, String value,
+                                LatencyHistogram.Snapshot snapshot) {
+        for (double quantile : QUANTILES) {
+            text.append(name).append('{').append(label).append("=\"").append(value)
+                    .append("\",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(snapshot.valueAt(quantile * 100))).append('\n');
+        }
+        text.append(name).append("_sum{").append(label).append("=\"").append(value).append("\"} ")
+                .append(seconds(snapshot.getMean() * snapshot.getCount())).append('\n');
+        text.append(name).append("_count{").append(label).append("=\"").append(value).append("\"} ")
+                .append(snapshot.getCount()).append('\n');
+    }
+
+    private static String seconds(double nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,204 @@
+package org.solutions.grid.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Runtime metrics of the server, recorded on the request path without locking.
+ * <p>
+ * Counters are {@link LongAdder}s, striped so that connection threads counting at once do not contend,
+ * and latencies go to {@link LatencyHistogram}s per request type and per phase of a request. Gauges,
+ * such as the size of the graph, are read only when the metrics are scraped. The metrics are exposed
+ * through JMX as {@link ServerMetricsMXBean} and as plain text by {@link MetricsEndpoint}.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    public enum RequestType {
+        WALK, ONE_TO_ONE, ONE_TO_ALL, RESET
+    }
+
+    /**
+     * Phases of processing a request.
+     */
+    public enum Phase {
+        /**
+         * Waiting for the scheduler to admit the request.
+         */
+        ADMISSION,
+        /**
+         * Waiting until the writer publishes a snapshot with the walks of the client.
+         */
+        WALK_MERGE,
+        /**
+         * Searching the queried locations in the grid.
+         */
+        LOCATION_RESOLVE,
+        /**
+         * Answering the query from the cache or by a shortest path search.
+         */
+        SEARCH,
+        /**
+         * Encoding the response into the output buffer of the connection.
+         */
+        SERIALIZE
+    }
+
+    /**
+     * Counted events other than requests.
+     */
+    public enum Counter {
+        WALKS_RECEIVED, LOCATIONS_RECEIVED, CACHE_HITS, TREE_REPAIRS, SEARCHES, SETTLED_LOCATIONS,
+        /**
+         * OneToAll origins searched together with other origins by one vectorized search.
+         */
+        BATCHED_SEARCHES,
+        /**
+         * Queries answered by the search of an identical concurrent query, together with
+         * {@link #SEARCHES} they give the share of the searches saved.
+         */
+        COALESCED_QUERIES,
+        /**
+         * Reads delayed because too many walks were waiting for synchronization.
+         */
+        DELAYED_READS,
+        /**
+         * Queries of a primary answered by one of its replicas.
+         */
+        REPLICA_QUERIES,
+        /**
+         * Queries of a primary searched by the primary because the replica asked was behind or failed.
+         */
+        REPLICA_FALLBACKS
+    }
+
+    private final LongAdder[] requests = adders(RequestType.values().length);
+    private final LongAdder[] errors = adders(RequestType.values().length);
+    private final LongAdder[] counters = adders(Counter.values().length);
+    private final LatencyHistogram[] requestLatencies = histograms(RequestType.values().length);
+    private final LatencyHistogram[] phaseLatencies = histograms(Phase.values().length);
+    private final CopyOnWriteArrayList<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * Records a processed request.
+     * @param type type of the request
+     * @param nanos time from the decoded request to its response message
+     * @param error whether the response reports an error
+     */
+    public void request(RequestType type, long nanos, boolean error) {
+        requests[type.ordinal()].increment();
+        if (error) {
+            errors[type.ordinal()].increment();
+        }
+        requestLatencies[type.ordinal()].record(nanos);
+    }
+
+    public void phase(Phase phase, long nanos) {
+        phaseLatencies[phase.ordinal()].record(nanos);
+    }
+
+    public void count(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public void count(Counter counter, long amount) {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    /**
+     * Adds a value read whenever the metrics are scraped.
+     * @param name name of the gauge in snake case
+     * @param value supplier of the current value, called by the scraping thread
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.add(new Gauge(name, value));
+    }
+
+    public long getRequests(RequestType type) {
+        return requests[type.ordinal()].sum();
+    }
+
+    public long getErrors(RequestType type) {
+        return errors[type.ordinal()].sum();
+    }
+
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public LatencyHistogram.Snapshot getRequestLatency(RequestType type) {
+        return requestLatencies[type.ordinal()].snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getPhaseLatency(Phase phase) {
+        return phaseLatencies[phase.ordinal()].snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (RequestType type : RequestType.values()) {
+            values.put(name(type) + "_requests", getRequests(type));
+            values.put(name(type) + "_errors", getErrors(type));
+        }
+        for (Counter counter : Counter.values()) {
+            values.put(name(counter), getCount(counter));
+        }
+        for (Gauge gauge : gauges) {
+            values.put(gauge.name, gauge.value.getAsLong());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatenciesMillis() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (RequestType type : RequestType.values()) {
+            putLatencies(values, name(type), getRequestLatency(type));
+        }
+        for (Phase phase : Phase.values()) {
+            putLatencies(values, name(phase), getPhaseLatency(phase));
+        }
+        return values;
+    }
+
+    private static void putLatencies(Map<String, Double> values, String name, LatencyHistogram.Snapshot snapshot) {
+        values.put(name + "_mean", snapshot.getMean() / 1e6);
+        values.put(name + "_p50", snapshot.valueAt(50) / 1e6);
+        values.put(name + "_p99", snapshot.valueAt(99) / 1e6);
+        values.put(name + "_p999", snapshot.valueAt(99.9) / 1e6);
+        values.put(name + "_max", snapshot.getMax() / 1e6);
+    }
+
+    /**
+     * @return gauges in the order they were added
+     */
+    Iterable<Gauge> getGauges() {
+        return gauges;
+    }
+
+    static String name(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static LatencyHistogram[] histograms(int count) {
+        LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    record Gauge(String name, LongSupplier value) {
+    }
+}
@@ -0,0 +1,19 @@
+package org.solutions.grid.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ServerMetrics}, registered as {@code org.solutions.grid:type=ServerMetrics}.
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * @return requests and errors per request type, counted events and gauges by their names
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return mean, median, 99th and 99.9th percentile and maximum latency in milliseconds
+     *         of every request type and phase
+     */
+    Map<String, Double> getLatenciesMillis();
+}
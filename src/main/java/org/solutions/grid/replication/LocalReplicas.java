@@ -0,0 +1,50 @@
+package org.solutions.grid.replication;
+
+import org.solutions.grid.cluster.LocalCluster;
+import org.solutions.grid.server.ConfigLoader;
+import org.solutions.grid.server.Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Primary and read replicas on this host for running and testing the replication: starts
+ * {@code replication.local_replicas} replica servers, the first serving clients on port
+ * {@code replication.local_port} and receiving the changes on the next one, every further replica two
+ * ports higher, then the server of the configuration as their primary. If {@code metrics.port} is
+ * configured, the replicas serve their metrics on the ports after it. The replicas are stopped
+ * when this process exits.
+ */
+public class LocalReplicas {
+    /**
+     * @param args optionally the number of replicas, overriding {@code replication.local_replicas}, and properties
+     *             overriding those of the configuration file, each as {@code key=value}
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ConfigLoader config = new ConfigLoader("src/main/resources/config.properties");
+        config.setProperties(args);
+        int replicas = args.length > 0 && args[0].indexOf('=') < 0
+                ? Integer.parseInt(args[0]) : config.getIntProperty("replication.local_replicas", 2);
+        int firstPort = config.getIntProperty("replication.local_port", config.getIntProperty("server.port") + 1);
+        int metricsPort = config.getIntProperty("metrics.port", 0);
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String classPath = LocalCluster.classPath();
+
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy), "stop-replicas"));
+        List<String> addresses = new ArrayList<>();
+        for (int r = 0; r < replicas; r++) {
+            int clientPort = firstPort + 2 * r;
+            processes.add(new ProcessBuilder(java, "-cp", classPath, Server.class.getName(),
+                    "server.port=" + clientPort, "replication.port=" + (clientPort + 1),
+                    "metrics.port=" + (metricsPort > 0 ? metricsPort + 1 + r : 0)).inheritIO().start());
+            addresses.add("localhost:" + (clientPort + 1));
+        }
+        for (int r = 0; r < replicas; r++) {
+            LocalCluster.awaitListening(processes.get(r), firstPort + 2 * r + 1);
+        }
+        config.setProperty("replication.replicas", String.join(",", addresses));
+        Server.run(config);
+    }
+}
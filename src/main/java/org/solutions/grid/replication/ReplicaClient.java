@@ -0,0 +1,95 @@
+package org.solutions.grid.replication;
+
+import org.solutions.grid.cluster.ShardClient;
+import org.solutions.grid.replication.proto.ReplicaRequest;
+import org.solutions.grid.replication.proto.ReplicaResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connections of the primary to one replica. Every call takes an idle connection, or opens a new one
+ * if all of them are busy, so the stream of changes and the forwarded queries do not wait for each other.
+ */
+public class ReplicaClient {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+    private static class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @param address host and port of the replica separated by a colon
+     */
+    public ReplicaClient(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Replica address " + address + " has no port");
+        }
+        this.host = address.substring(0, colon).trim();
+        this.port = Integer.parseInt(address.substring(colon + 1).trim());
+    }
+
+    /**
+     * Sends the request and waits for the response of the replica.
+     * @throws UncheckedIOException if the replica cannot be reached
+     */
+    public ReplicaResponse call(ReplicaRequest request) {
+        Connection connection = idle.poll();
+        try {
+            if (connection == null) {
+                connection = new Connection(new Socket(host, port));
+            }
+            ShardClient.writeFrame(connection.out, request);
+            connection.out.flush();
+            ReplicaResponse response = ReplicaResponse.parseFrom(ShardClient.readFrame(connection.in));
+            idle.offer(connection);
+            return response;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            throw new UncheckedIOException("Replica " + this + " failed", e);
+        }
+    }
+
+    /**
+     * Closes the idle connections.
+     */
+    public void close() {
+        for (Connection connection = idle.poll(); connection != null; connection = idle.poll()) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,257 @@
+package org.solutions.grid.replication;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.solutions.grid.algorithms.QueryEngine;
+import org.solutions.grid.cluster.ShardClient;
+import org.solutions.grid.datastructures.GraphSnapshot;
+import org.solutions.grid.datastructures.GraphStore;
+import org.solutions.grid.datastructures.WalkBuffer;
+import org.solutions.grid.replication.proto.ReplicaQuery;
+import org.solutions.grid.replication.proto.ReplicaRecord;
+import org.solutions.grid.replication.proto.ReplicaRequest;
+import org.solutions.grid.replication.proto.ReplicaResponse;
+import org.solutions.grid.replication.proto.ReplicaWalks;
+import org.solutions.grid.server.GraphBackend;
+import org.solutions.grid.server.LocalGraphBackend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Read replica of a primary server's graph, kept in a {@link GraphStore} of its own.
+ * <p>
+ * The primary streams the changes of its graph in the order it applied them, each tagged with the
+ * version it applies to and the version it results in. The replica applies them one at a time, so its
+ * writer commits exactly the batches of the primary and reaches the same versions; a change that does not
+ * apply to the replica's version, or ends at another version, is refused and the primary sends the whole
+ * graph again. The epoch identifies the primary's history, a replica of another epoch is always sent
+ * the whole graph first.
+ * <p>
+ * Queries forwarded by the primary carry the version holding the walks of the client that asked, and wait
+ * for the replica to reach it; one not reached in time is answered as behind and the primary searches it
+ * itself. Clients connected to the replica directly may query its latest version but not change the graph.
+ */
+public class ReplicaServer implements GraphBackend {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final GraphStore store;
+    private final QueryEngine queryEngine;
+    private final LocalGraphBackend local;
+    private final long maxWaitMillis;
+    /**
+     * Epoch of the primary whose history the graph follows, 0 before the first graph arrives
+     * and while a graph is being replaced.
+     */
+    private volatile long epoch;
+
+    /**
+     * @param store store of the replica, changed only by the replication from now on
+     * @param queryEngine queries on the store
+     * @param maxWaitMillis longest wait of a query for the version it asks for
+     */
+    public ReplicaServer(GraphStore store, QueryEngine queryEngine, long maxWaitMillis) {
+        this.store = store;
+        this.queryEngine = queryEngine;
+        this.local = new LocalGraphBackend(store, queryEngine);
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public Version current() {
+        return local.current();
+    }
+
+    @Override
+    public Version addWalks(WalkBuffer walks) {
+        throw new UnsupportedOperationException("Read-only replica");
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("Read-only replica");
+    }
+
+    @Override
+    public boolean acceptsChanges() {
+        return false;
+    }
+
+    /**
+     * Serves the connections of the primary, each on its own virtual thread.
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Replica listening for its primary on port " + port);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().start(() -> handle(socket));
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE))) {
+            socket.setTcpNoDelay(true);
+            while (true) {
+                ReplicaRequest request;
+                try {
+                    request = ReplicaRequest.parseFrom(ShardClient.readFrame(in));
+                } catch (InvalidProtocolBufferException e) {
+                    ShardClient.writeFrame(out, error(e));
+                    out.flush();
+                    return;
+                }
+                ShardClient.writeFrame(out, process(request));
+                out.flush();
+            }
+        } catch (IOException e) {
+            /* the primary closed the connection */
+        }
+    }
+
+    /**
+     * @return response to the request of the primary
+     */
+    ReplicaResponse process(ReplicaRequest request) {
+        try {
+            switch (request.getMsgCase()) {
+                case HELLO:
+                    return status(ReplicaResponse.Status.OK).setVersion(store.current().getVersion()).build();
+                case RECORD:
+                    return apply(request.getRecord());
+                case QUERY:
+                    return query(request.getQuery());
+                default:
+                    return ReplicaResponse.newBuilder()
+                            .setStatus(ReplicaResponse.Status.ERROR)
+                            .setErrMsg("Unknown request")
+                            .build();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return error(e);
+        }
+    }
+
+    /**
+     * Applies a change of the primary's graph, the only writer of the store being this method.
+     */
+    private synchronized ReplicaResponse apply(ReplicaRecord record) {
+        GraphSnapshot snapshot;
+        if (record.getChangeCase() == ReplicaRecord.ChangeCase.GRAPH_FILE) {
+            epoch = 0L;
+            snapshot = restore(record);
+            epoch = record.getEpoch();
+        } else {
+            if (record.getEpoch() != epoch || record.getFromVersion() != store.current().getVersion()) {
+                return status(ReplicaResponse.Status.OUT_OF_SYNC)
+                        .setVersion(store.current().getVersion())
+                        .setErrMsg("Change from version " + record.getFromVersion() + " does not apply")
+                        .build();
+            }
+            if (record.getChangeCase() == ReplicaRecord.ChangeCase.WALKS) {
+                snapshot = store.addWalks(walks(record.getWalks()));
+            } else {
+                queryEngine.reset();
+                snapshot = store.current();
+            }
+        }
+        if (snapshot.getVersion() != record.getVersion()) {
+            epoch = 0L;
+            return status(ReplicaResponse.Status.OUT_OF_SYNC)
+                    .setVersion(snapshot.getVersion())
+                    .setErrMsg("Reached version " + snapshot.getVersion() + " instead of " + record.getVersion())
+                    .build();
+        }
+        return status(ReplicaResponse.Status.OK).setVersion(snapshot.getVersion()).build();
+    }
+
+    private GraphSnapshot restore(ReplicaRecord record) {
+        Path file = null;
+        try {
+            file = Files.createTempFile("replica", ".graph");
+            Files.write(file, record.getGraphFile().toByteArray());
+            return queryEngine.restore(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Graph of the primary could not be stored", e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static WalkBuffer walks(ReplicaWalks message) {
+        WalkBuffer walks = new WalkBuffer();
+        int start = 0;
+        for (int w = 0; w < message.getWalkEndsCount(); w++) {
+            int end = message.getWalkEnds(w);
+            walks.beginWalk();
+            for (int l = start; l < end; l++) {
+                walks.addLocation(message.getXs(l), message.getYs(l));
+            }
+            for (int l = start; l < end - 1; l++) {
+                walks.addLength(message.getLengths(l));
+            }
+            walks.endWalk();
+            start = end;
+        }
+        return walks;
+    }
+
+    /**
+     * Answers a query of the primary once the replica reached its version.
+     */
+    private ReplicaResponse query(ReplicaQuery query) {
+        if (query.getEpoch() != epoch) {
+            return status(ReplicaResponse.Status.BEHIND).setErrMsg("Replica of another epoch").build();
+        }
+        GraphSnapshot snapshot;
+        try {
+            snapshot = store.awaitVersion(query.getMinVersion(), maxWaitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            snapshot = null;
+        }
+        /* The epoch is checked again, a graph replaced meanwhile may be another history. */
+        if (snapshot == null || query.getEpoch() != epoch) {
+            return status(ReplicaResponse.Status.BEHIND)
+                    .setErrMsg("Version " + query.getMinVersion() + " not reached")
+                    .build();
+        }
+        int originId = snapshot.locationId(query.getOriginX(), query.getOriginY());
+        int destinationId = query.getHasDestination()
+                ? snapshot.locationId(query.getDestinationX(), query.getDestinationY()) : 0;
+        if (originId < 0 || destinationId < 0) {
+            return status(ReplicaResponse.Status.ERROR).setErrMsg("Unknown location").build();
+        }
+        long result = query.getHasDestination()
+                ? queryEngine.oneToOne(snapshot, originId, destinationId)
+                : queryEngine.oneToAll(snapshot, originId);
+        return status(ReplicaResponse.Status.OK).setVersion(snapshot.getVersion()).setResult(result).build();
+    }
+
+    private ReplicaResponse.Builder status(ReplicaResponse.Status status) {
+        return ReplicaResponse.newBuilder().setStatus(status).setEpoch(epoch);
+    }
+
+    private static ReplicaResponse error(Exception e) {
+        return ReplicaResponse.newBuilder()
+                .setStatus(ReplicaResponse.Status.ERROR)
+                .setErrMsg(String.valueOf(e.getMessage()))
+                .build();
+    }
+}
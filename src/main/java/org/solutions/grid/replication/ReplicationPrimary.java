@@ -0,0 +1,385 @@
+package org.solutions.grid.replication;
+
+import com.google.protobuf.UnsafeByteOperations;
+import org.solutions.grid.algorithms.QueryEngine;
+import org.solutions.grid.datastructures.GraphSnapshot;
+import org.solutions.grid.datastructures.GraphStore;
+import org.solutions.grid.datastructures.WalkBuffer;
+import org.solutions.grid.metrics.ServerMetrics;
+import org.solutions.grid.replication.proto.ReplicaHello;
+import org.solutions.grid.replication.proto.ReplicaQuery;
+import org.solutions.grid.replication.proto.ReplicaRecord;
+import org.solutions.grid.replication.proto.ReplicaRequest;
+import org.solutions.grid.replication.proto.ReplicaResponse;
+import org.solutions.grid.replication.proto.ReplicaWalks;
+import org.solutions.grid.server.GraphBackend;
+import org.solutions.grid.server.LocalGraphBackend;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Graph of this process replicated to {@link ReplicaServer} processes, which take over its queries.
+ * <p>
+ * Walks and resets go to the {@link GraphStore} as without replicas. Its writer reports every change,
+ * which is encoded once as a record and, when its batch is published, kept in a backlog of the recent
+ * records and queued for every replica. A thread per replica sends the records of its queue one at a time.
+ * On connecting it asks the replica for its epoch and version: a replica of this epoch whose version
+ * the backlog still continues from gets the records after it, any other replica first gets the whole graph,
+ * written by the writer between two changes, and then the records from that version on.
+ * A replica whose queue grows longer than the backlog is dropped and connected again.
+ * <p>
+ * Queries are taken in turns by the replicas and, unless disabled, this process. A query sent to a
+ * replica carries the version holding the walks of its client, the replica waits until it reaches it,
+ * so the client always sees its own walks; a query the replica cannot answer is searched here.
+ */
+public class ReplicationPrimary implements GraphBackend, GraphStore.Listener {
+    private static final long RETRY_MILLIS = 1000;
+    /**
+     * Marks the end of the queue of a dropped replica.
+     */
+    private static final ReplicaRequest DROPPED = ReplicaRequest.getDefaultInstance();
+
+    private final GraphStore store;
+    private final QueryEngine queryEngine;
+    private final LocalGraphBackend local;
+    private final Replica[] replicas;
+    private final int backlogRecords;
+    private final boolean serveLocally;
+    private final ServerMetrics metrics;
+    /**
+     * History of the graph since this process started, random so replicas of an earlier run are replaced.
+     */
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final AtomicInteger turn = new AtomicInteger();
+
+    /* Records of the published batches and their version, guarded by this. */
+    private final ArrayDeque<Record> backlog = new ArrayDeque<>();
+    private long publishedVersion;
+    /**
+     * Records of the batch being ingested, touched only by the writer.
+     */
+    private final List<Record> pending = new ArrayList<>();
+
+    private record Record(long fromVersion, ReplicaRequest request) {
+    }
+
+    private class Replica {
+        private final ReplicaClient client;
+        /**
+         * Records for the replica, null while it is not connected.
+         */
+        private BlockingQueue<ReplicaRequest> queue;
+        private volatile boolean streaming;
+        private volatile long version;
+
+        private Replica(String address) {
+            this.client = new ReplicaClient(address);
+        }
+    }
+
+    /**
+     * @param store store of the graph, whose changes are replicated from now on
+     * @param queryEngine queries on the store, used when no replica answers
+     * @param addresses host and port of every replica
+     * @param backlogRecords number of recent records kept for replicas that reconnect
+     * @param serveLocally whether this process takes its turn in answering queries
+     */
+    public ReplicationPrimary(GraphStore store, QueryEngine queryEngine, List<String> addresses, int backlogRecords,
+                              boolean serveLocally, ServerMetrics metrics) {
+        this.store = store;
+        this.queryEngine = queryEngine;
+        this.local = new LocalGraphBackend(store, queryEngine);
+        this.backlogRecords = Math.max(1, backlogRecords);
+        this.serveLocally = serveLocally;
+        this.metrics = metrics;
+        this.replicas = new Replica[addresses.size()];
+        synchronized (this) {
+            publishedVersion = store.current().getVersion();
+        }
+        store.setListener(this);
+        for (int r = 0; r < replicas.length; r++) {
+            Replica replica = new Replica(addresses.get(r));
+            replicas[r] = replica;
+            Thread.ofVirtual().name("replicate-" + replica.client).start(() -> replicate(replica));
+        }
+    }
+
+    @Override
+    public Version current() {
+        return new ReplicatedVersion(store.current());
+    }
+
+    @Override
+    public Version addWalks(WalkBuffer walks) {
+        return new ReplicatedVersion(store.addWalks(walks));
+    }
+
+    @Override
+    public void reset() {
+        local.reset();
+    }
+
+    /**
+     * @return number of replicas receiving the changes
+     */
+    public int getStreamingReplicas() {
+        int streaming = 0;
+        for (Replica replica : replicas) {
+            if (replica.streaming) streaming++;
+        }
+        return streaming;
+    }
+
+    /**
+     * @return number of versions the furthest behind of the streaming replicas lags
+     */
+    public long getReplicaLag() {
+        long latest = store.current().getVersion();
+        long lag = 0;
+        for (Replica replica : replicas) {
+            if (replica.streaming) {
+                lag = Math.max(lag, latest - replica.version);
+            }
+        }
+        return lag;
+    }
+
+    @Override
+    public void committed(List<WalkBuffer> walks, long fromVersion, long version) {
+        ReplicaWalks.Builder message = ReplicaWalks.newBuilder();
+        int base = 0;
+        for (WalkBuffer buffer : walks) {
+            for (int w = 0; w < buffer.getWalkCount(); w++) {
+                int end = buffer.getWalkEnd(w);
+                for (int l = buffer.getWalkStart(w); l < end; l++) {
+                    message.addXs(buffer.getX(l)).addYs(buffer.getY(l))
+                            .addLengths(l < end - 1 ? (int) buffer.getLength(l) : 0);
+                }
+                message.addWalkEnds(base + end);
+            }
+            base += buffer.getLocationCount();
+        }
+        pending.add(new Record(fromVersion, request(ReplicaRecord.newBuilder()
+                .setFromVersion(fromVersion).setVersion(version).setWalks(message))));
+    }
+
+    @Override
+    public void reset(long fromVersion, long version) {
+        pending.add(new Record(fromVersion, request(ReplicaRecord.newBuilder()
+                .setFromVersion(fromVersion).setVersion(version).setReset(true))));
+    }
+
+    @Override
+    public synchronized void published(long version) {
+        for (Record record : pending) {
+            backlog.addLast(record);
+            if (backlog.size() > backlogRecords) {
+                backlog.removeFirst();
+            }
+            for (Replica replica : replicas) {
+                if (replica.queue == null) continue;
+                if (replica.queue.size() >= backlogRecords) {
+                    replica.queue.clear();
+                    replica.queue.add(DROPPED);
+                    replica.queue = null;
+                } else {
+                    replica.queue.add(record.request);
+                }
+            }
+        }
+        pending.clear();
+        publishedVersion = version;
+    }
+
+    private ReplicaRequest request(ReplicaRecord.Builder record) {
+        return ReplicaRequest.newBuilder().setRecord(record.setEpoch(epoch)).build();
+    }
+
+    /**
+     * Keeps the replica up to date while this process runs, connecting it again whenever it fails.
+     */
+    private void replicate(Replica replica) {
+        boolean connected = true;
+        while (true) {
+            try {
+                ReplicaResponse hello = replica.client.call(ReplicaRequest.newBuilder()
+                        .setHello(ReplicaHello.getDefaultInstance()).build());
+                BlockingQueue<ReplicaRequest> queue = subscribe(replica, hello.getEpoch(), hello.getVersion());
+                if (queue == null) {
+                    queue = bootstrap(replica);
+                }
+                if (!connected) {
+                    System.out.println("Replica " + replica.client + " connected");
+                }
+                connected = true;
+                replica.streaming = true;
+                while (true) {
+                    ReplicaRequest request = queue.take();
+                    if (request == DROPPED) break;
+                    ReplicaResponse response = replica.client.call(request);
+                    if (response.getStatus() != ReplicaResponse.Status.OK) {
+                        System.out.println("Replica " + replica.client + " refused a change: " + response.getErrMsg());
+                        break;
+                    }
+                    replica.version = response.getVersion();
+                }
+            } catch (UncheckedIOException | IllegalStateException e) {
+                if (connected) {
+                    System.out.println("Replica " + replica.client + " disconnected: " + e.getMessage());
+                }
+                connected = false;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                unsubscribe(replica);
+            }
+            if (!connected) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the whole graph to the replica.
+     * @return queue of the records after the sent graph
+     * @throws IllegalStateException if the graph cannot be sent
+     */
+    private BlockingQueue<ReplicaRequest> bootstrap(Replica replica) {
+        Path file = null;
+        try {
+            file = Files.createTempFile("primary", ".graph");
+            long version = store.copy(file);
+            BlockingQueue<ReplicaRequest> queue = subscribe(replica, epoch, version);
+            if (queue == null) {
+                throw new IllegalStateException("Graph of version " + version + " is older than the backlog");
+            }
+            ReplicaResponse response = replica.client.call(request(ReplicaRecord.newBuilder()
+                    .setVersion(version)
+                    .setGraphFile(UnsafeByteOperations.unsafeWrap(Files.readAllBytes(file)))));
+            if (response.getStatus() != ReplicaResponse.Status.OK) {
+                throw new IllegalStateException("Graph refused: " + response.getErrMsg());
+            }
+            replica.version = response.getVersion();
+            return queue;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the records from the version of the replica on, if it follows this epoch and the backlog
+     * continues from its version.
+     * @return queue of the replica, null if it has to be sent the whole graph
+     */
+    private synchronized BlockingQueue<ReplicaRequest> subscribe(Replica replica, long replicaEpoch, long version) {
+        if (replicaEpoch != epoch) return null;
+        BlockingQueue<ReplicaRequest> queue = new LinkedBlockingQueue<>();
+        if (version != publishedVersion) {
+            boolean found = false;
+            for (Record record : backlog) {
+                found |= record.fromVersion == version;
+                if (found) {
+                    queue.add(record.request);
+                }
+            }
+            if (!found) return null;
+        }
+        replica.queue = queue;
+        return queue;
+    }
+
+    private synchronized void unsubscribe(Replica replica) {
+        replica.queue = null;
+        replica.streaming = false;
+    }
+
+    /**
+     * @return replica taking the next query, null if it is this process's turn or no replica is streaming
+     */
+    private Replica nextReplica() {
+        int members = replicas.length + (serveLocally ? 1 : 0);
+        if (members == 0) return null;
+        int index = Math.floorMod(turn.getAndIncrement(), members);
+        if (index == replicas.length || !replicas[index].streaming) return null;
+        return replicas[index];
+    }
+
+    /**
+     * Version of this process's graph whose queries are forwarded to the replicas.
+     */
+    private class ReplicatedVersion implements Version {
+        private final GraphSnapshot snapshot;
+
+        private ReplicatedVersion(GraphSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public int locationId(int x, int y) {
+            return snapshot.locationId(x, y);
+        }
+
+        @Override
+        public long oneToOne(int originId, int destinationId) {
+            ReplicaResponse response = forward(query(originId)
+                    .setHasDestination(true)
+                    .setDestinationX(snapshot.getX(destinationId))
+                    .setDestinationY(snapshot.getY(destinationId)));
+            return response != null ? response.getResult() : queryEngine.oneToOne(snapshot, originId, destinationId);
+        }
+
+        @Override
+        public long oneToAll(int originId) {
+            ReplicaResponse response = forward(query(originId));
+            return response != null ? response.getResult() : queryEngine.oneToAll(snapshot, originId);
+        }
+
+        private ReplicaQuery.Builder query(int originId) {
+            return ReplicaQuery.newBuilder()
+                    .setEpoch(epoch)
+                    .setMinVersion(snapshot.getVersion())
+                    .setOriginX(snapshot.getX(originId))
+                    .setOriginY(snapshot.getY(originId));
+        }
+
+        /**
+         * @return answer of the replica whose turn it is, null if the query is to be searched here
+         */
+        private ReplicaResponse forward(ReplicaQuery.Builder query) {
+            Replica replica = nextReplica();
+            if (replica == null) return null;
+            try {
+                ReplicaResponse response = replica.client.call(ReplicaRequest.newBuilder().setQuery(query).build());
+                if (response.getStatus() == ReplicaResponse.Status.OK) {
+                    metrics.count(ServerMetrics.Counter.REPLICA_QUERIES);
+                    return response;
+                }
+            } catch (UncheckedIOException e) {
+                /* searched here, the replica is connected again by its replication thread */
+            }
+            metrics.count(ServerMetrics.Counter.REPLICA_FALLBACKS);
+            return null;
+        }
+    }
+}
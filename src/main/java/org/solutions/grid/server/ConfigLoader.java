@@ -20,8 +20,37 @@ public class ConfigLoader {
         return properties.getProperty(key);
     }
 
+    /**
+     * Overrides a property of the file, such as one known only once the server is being started.
+     */
+    public void setProperty(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    /**
+     * Overrides properties of the file by arguments of the form {@code key=value}, other arguments are skipped.
+     */
+    public void setProperties(String[] args) {
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+            }
+        }
+    }
+
     public int getIntProperty(String key) {
         return Integer.parseInt(properties.getProperty(key));
     }
 
+    public int getIntProperty(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public long getLongProperty(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
 }
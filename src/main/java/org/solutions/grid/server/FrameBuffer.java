@@ -0,0 +1,46 @@
+package org.solutions.grid.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Growable buffer receiving the request frames of one connection.
+ * Buffers are pooled, so new connections reuse the arrays of closed ones.
+ */
+public class FrameBuffer {
+    private static final int INITIAL_CAPACITY = 4096;
+    /**
+     * Buffers grown beyond this size are not kept in the pool.
+     */
+    private static final int MAX_POOLED_CAPACITY = 1 << 20;
+    private static final ArrayBlockingQueue<FrameBuffer> POOL = new ArrayBlockingQueue<>(256);
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+
+    /**
+     * Takes a buffer from the pool, or creates one if the pool is empty.
+     */
+    public static FrameBuffer acquire() {
+        FrameBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : new FrameBuffer();
+    }
+
+    /**
+     * Returns the buffer to the pool, dropping it if the pool is full or the buffer grew too large.
+     */
+    public void release() {
+        if (bytes.length <= MAX_POOLED_CAPACITY) {
+            POOL.offer(this);
+        }
+    }
+
+    /**
+     * @param size size of the next frame
+     * @return array of at least the given size, its content is undefined
+     */
+    public byte[] ensureCapacity(int size) {
+        if (size > bytes.length) {
+            bytes = new byte[Math.max(size, bytes.length * 2)];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,54 @@
+package org.solutions.grid.server;
+
+import org.solutions.grid.datastructures.WalkBuffer;
+
+/**
+ * Graph the {@link RequestProcessor} merges the walks of the clients into and answers their queries on,
+ * either the graph of this process or one partitioned across shard processes.
+ */
+public interface GraphBackend {
+    /**
+     * Published version of the graph, it never changes while it is queried.
+     */
+    interface Version {
+        /**
+         * Finds the id of the same location in this version of the graph.
+         * @return id of the location, -1 if there is no such location
+         */
+        int locationId(int x, int y);
+
+        /**
+         * @return length of the shortest path, {@link Long#MAX_VALUE} if the destination is unreachable
+         */
+        long oneToOne(int originId, int destinationId);
+
+        /**
+         * @return sum of the shortest path lengths to all reachable locations
+         */
+        long oneToAll(int originId);
+    }
+
+    /**
+     * @return the latest published version
+     */
+    Version current();
+
+    /**
+     * Adds walks to the graph and waits until they are published.
+     * The buffer must not be changed until the call returns.
+     * @return version containing the walks
+     */
+    Version addWalks(WalkBuffer walks);
+
+    /**
+     * Clears the graph and waits until the empty graph is published.
+     */
+    void reset();
+
+    /**
+     * @return whether clients may change the graph, false for a read-only replica
+     */
+    default boolean acceptsChanges() {
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package org.solutions.grid.server;
+
+import org.solutions.grid.algorithms.QueryEngine;
+import org.solutions.grid.datastructures.GraphSnapshot;
+import org.solutions.grid.datastructures.GraphStore;
+import org.solutions.grid.datastructures.WalkBuffer;
+
+/**
+ * Graph held by this process: walks go to the single writer of the {@link GraphStore}
+ * and queries run on its snapshots through the {@link QueryEngine}.
+ */
+public class LocalGraphBackend implements GraphBackend {
+    private final GraphStore store;
+    private final QueryEngine queryEngine;
+
+    public LocalGraphBackend(GraphStore store, QueryEngine queryEngine) {
+        this.store = store;
+        this.queryEngine = queryEngine;
+    }
+
+    @Override
+    public Version current() {
+        return new SnapshotVersion(store.current());
+    }
+
+    @Override
+    public Version addWalks(WalkBuffer walks) {
+        return new SnapshotVersion(store.addWalks(walks));
+    }
+
+    @Override
+    public void reset() {
+        queryEngine.reset();
+    }
+
+    private class SnapshotVersion implements Version {
+        private final GraphSnapshot snapshot;
+
+        private SnapshotVersion(GraphSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public int locationId(int x, int y) {
+            return snapshot.locationId(x, y);
+        }
+
+        @Override
+        public long oneToOne(int originId, int destinationId) {
+            return queryEngine.oneToOne(snapshot, originId, destinationId);
+        }
+
+        @Override
+        public long oneToAll(int originId) {
+            return queryEngine.oneToAll(snapshot, originId);
+        }
+    }
+}
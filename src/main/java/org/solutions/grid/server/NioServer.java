@@ -0,0 +1,316 @@
+package org.solutions.grid.server;
+
+import com.google.protobuf.CodedOutputStream;
+import cz.cvut.fel.esw.server.proto.Request;
+import cz.cvut.fel.esw.server.proto.Response;
+import org.solutions.grid.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking transport serving all connections from a single selector thread.
+ * <p>
+ * Length-prefixed frames are decoded straight from a direct buffer of the connection and handed
+ * to a bounded compute pool; requests of one connection are processed one at a time in the order
+ * they arrived. Responses are encoded into a direct output buffer of the connection, which the
+ * selector thread writes out once no more requests of the connection are pending, so pipelined
+ * requests are answered by a single write. When the compute queue is full, the selector thread processes
+ * the request itself, which stops it from reading more until the pool catches up.
+ */
+public class NioServer {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Number of decoded requests of one connection waiting for processing after which reading from it pauses.
+     */
+    private static final int MAX_PENDING_REQUESTS = 64;
+    /**
+     * Number of buffered response bytes which are written out even if more requests are pending.
+     */
+    private static final int FLUSH_THRESHOLD = 32 * 1024;
+
+    private final int port;
+    private final RequestProcessor processor;
+    private final ExecutorService computePool;
+    /**
+     * Connections whose interest set must be updated by the selector thread.
+     */
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    /**
+     * @param port port to listen on
+     * @param processor processor of the decoded requests
+     * @param computeThreads number of threads processing requests
+     * @param computeQueue number of connections with requests that may wait for a compute thread
+     */
+    public NioServer(int port, RequestProcessor processor, int computeThreads, int computeQueue) {
+        this.port = port;
+        this.processor = processor;
+        this.computePool = new ThreadPoolExecutor(computeThreads, computeThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(computeQueue), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Accepts connections and serves them until the selector thread is interrupted.
+     * @throws IOException if the server channel cannot be opened
+     */
+    public void run() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Connection connection;
+                while ((connection = changed.poll()) != null) {
+                    connection.updateInterest();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.write();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            selector.close();
+            computePool.shutdown();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        System.out.println("Connection accepted: " + channel);
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * State of one client connection.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        /**
+         * Received bytes in write mode, owned by the selector thread.
+         */
+        private ByteBuffer in = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        /**
+         * Encoded responses in write mode, guarded by the buffer lock of the connection.
+         */
+        private ByteBuffer out = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        private final Object outLock = new Object();
+        /**
+         * Decoded requests waiting for processing, guarded by the connection.
+         */
+        private final Queue<Request> pending = new ArrayDeque<>();
+        private boolean processing;
+        private volatile boolean closed;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads available bytes and dispatches all complete frames, called by the selector thread.
+         */
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= Integer.BYTES) {
+                int start = in.position();
+                int messageSize = in.getInt(start);
+                if (messageSize < 0) throw new IOException("Negative frame length " + messageSize);
+                int end = start + Integer.BYTES + messageSize;
+                if (end > in.limit()) {
+                    if (Integer.BYTES + messageSize > in.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(Integer.BYTES + messageSize) << 1);
+                        larger.put(in);
+                        in = larger;
+                        return;
+                    }
+                    break;
+                }
+                int limit = in.limit();
+                in.position(start + Integer.BYTES).limit(end);
+                Request request = Request.parseFrom(in);
+                in.limit(limit).position(end);
+                dispatch(request);
+            }
+            in.compact();
+        }
+
+        private void dispatch(Request request) {
+            boolean submit;
+            synchronized (this) {
+                pending.add(request);
+                submit = !processing;
+                processing = true;
+                if (pending.size() >= MAX_PENDING_REQUESTS) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            if (submit) {
+                computePool.execute(this::processNext);
+            }
+        }
+
+        /**
+         * Processes the oldest pending request and schedules the next one, called by a compute thread.
+         */
+        private void processNext() {
+            Request request;
+            synchronized (this) {
+                request = pending.poll();
+            }
+            int buffered = 0;
+            try {
+                if (!closed) {
+                    Response response = processor.process(this, request);
+                    long start = System.nanoTime();
+                    buffered = respond(response);
+                    processor.getMetrics().phase(ServerMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+                }
+            } catch (RuntimeException e) {
+                closed = true;
+            }
+            if (closed) {
+                processor.disconnect(this);
+            }
+            boolean more;
+            synchronized (this) {
+                more = !pending.isEmpty() && !closed;
+                processing = more;
+                if (closed) pending.clear();
+            }
+            if (!more || buffered >= FLUSH_THRESHOLD) {
+                changed.add(this);
+                selector.wakeup();
+            }
+            if (more) {
+                computePool.execute(this::processNext);
+            }
+        }
+
+        /**
+         * Encodes the response into the output buffer.
+         * @return number of bytes waiting in the output buffer
+         */
+        private int respond(Response response) {
+            int messageSize = response.getSerializedSize();
+            synchronized (outLock) {
+                if (out.remaining() < Integer.BYTES + messageSize) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(
+                            Integer.highestOneBit(out.position() + Integer.BYTES + messageSize) << 1);
+                    out.flip();
+                    larger.put(out);
+                    out = larger;
+                }
+                out.putInt(messageSize);
+                try {
+                    CodedOutputStream output = CodedOutputStream.newInstance(out);
+                    response.writeTo(output);
+                    output.flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Response does not fit into the output buffer", e);
+                }
+                return out.position();
+            }
+        }
+
+        /**
+         * Writes as much of the encoded responses as the socket takes, called by the selector thread.
+         */
+        private void write() throws IOException {
+            synchronized (outLock) {
+                out.flip();
+                try {
+                    channel.write(out);
+                } finally {
+                    out.compact();
+                }
+            }
+            updateInterest();
+        }
+
+        /**
+         * Flushes new responses and resumes reading once the pending requests drained, called by the selector thread.
+         */
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            if (closed) {
+                close();
+                return;
+            }
+            boolean hasOutput;
+            try {
+                synchronized (outLock) {
+                    if (out.position() > 0) {
+                        out.flip();
+                        try {
+                            channel.write(out);
+                        } finally {
+                            out.compact();
+                        }
+                    }
+                    hasOutput = out.position() > 0;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            int ops = hasOutput ? SelectionKey.OP_WRITE : 0;
+            synchronized (this) {
+                if (pending.size() < MAX_PENDING_REQUESTS) ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close() {
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (!processing) pending.clear();
+            }
+            processor.disconnect(this);
+            System.out.println("Client disconnected");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.solutions.grid.server;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import cz.cvut.fel.esw.server.proto.Request;
+import org.solutions.grid.datastructures.WalkBuffer;
+
+import java.io.IOException;
+
+/**
+ * Decoder of request frames reading the protobuf wire format directly, without building messages.
+ * Walk locations and lengths are appended straight to the walk buffer of the client,
+ * the coordinates of queried locations are kept in the decoder until the next frame.
+ * One decoder belongs to one connection.
+ */
+public class RequestDecoder {
+    /* Field numbers of data.proto. */
+    private static final int REQUEST_WALK = 1;
+    private static final int REQUEST_ONE_TO_ONE = 2;
+    private static final int REQUEST_ONE_TO_ALL = 3;
+    private static final int REQUEST_RESET = 4;
+    private static final int WALK_LOCATIONS = 1;
+    private static final int WALK_LENGTHS = 2;
+    private static final int ONE_TO_ONE_ORIGIN = 1;
+    private static final int ONE_TO_ONE_DESTINATION = 2;
+    private static final int ONE_TO_ALL_ORIGIN = 1;
+    private static final int LOCATION_X = 1;
+    private static final int LOCATION_Y = 2;
+
+    private Request.MsgCase type;
+    private int originX;
+    private int originY;
+    private int destinationX;
+    private int destinationY;
+    /**
+     * Coordinates of the last decoded location.
+     */
+    private int locationX;
+    private int locationY;
+
+    /**
+     * Decodes one request frame.
+     * @param input stream limited to the frame
+     * @param walks buffer receiving the walk if the request is a walk
+     * @return type of the decoded request
+     * @throws IOException if the frame is not a valid request
+     */
+    public Request.MsgCase decode(CodedInputStream input, WalkBuffer walks) throws IOException {
+        type = Request.MsgCase.MSG_NOT_SET;
+        originX = originY = destinationX = destinationY = 0;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case REQUEST_WALK:
+                    type = Request.MsgCase.WALK;
+                    decodeWalk(input, walks);
+                    break;
+                case REQUEST_ONE_TO_ONE:
+                    type = Request.MsgCase.ONETOONE;
+                    decodeOneToOne(input);
+                    break;
+                case REQUEST_ONE_TO_ALL:
+                    type = Request.MsgCase.ONETOALL;
+                    decodeOneToAll(input);
+                    break;
+                case REQUEST_RESET:
+                    type = Request.MsgCase.RESET;
+                    input.skipField(tag);
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        return type;
+    }
+
+    private void decodeWalk(CodedInputStream input, WalkBuffer walks) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+        walks.beginWalk();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == WALK_LOCATIONS && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                decodeLocation(input);
+                walks.addLocation(locationX, locationY);
+            } else if (field == WALK_LENGTHS && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                int packedLimit = input.pushLimit(input.readRawVarint32());
+                while (input.getBytesUntilLimit() > 0) {
+                    walks.addLength(input.readUInt32());
+                }
+                input.popLimit(packedLimit);
+            } else if (field == WALK_LENGTHS && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                walks.addLength(input.readUInt32());
+            } else {
+                input.skipField(tag);
+            }
+        }
+        input.popLimit(oldLimit);
+        try {
+            walks.endWalk();
+        } catch (IllegalArgumentException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+    }
+
+    private void decodeOneToOne(CodedInputStream input) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case ONE_TO_ONE_ORIGIN:
+                    decodeLocation(input);
+                    originX = locationX;
+                    originY = locationY;
+                    break;
+                case ONE_TO_ONE_DESTINATION:
+                    decodeLocation(input);
+                    destinationX = locationX;
+                    destinationY = locationY;
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        input.popLimit(oldLimit);
+    }
+
+    private void decodeOneToAll(CodedInputStream input) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == ONE_TO_ALL_ORIGIN) {
+                decodeLocation(input);
+                originX = locationX;
+                originY = locationY;
+            } else {
+                input.skipField(tag);
+            }
+        }
+        input.popLimit(oldLimit);
+    }
+
+    private void decodeLocation(CodedInputStream input) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+        locationX = 0;
+        locationY = 0;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case LOCATION_X:
+                    locationX = input.readInt32();
+                    break;
+                case LOCATION_Y:
+                    locationY = input.readInt32();
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        input.popLimit(oldLimit);
+    }
+
+    public Request.MsgCase getType() {
+        return type;
+    }
+
+    public int getOriginX() {
+        return originX;
+    }
+
+    public int getOriginY() {
+        return originY;
+    }
+
+    public int getDestinationX() {
+        return destinationX;
+    }
+
+    public int getDestinationY() {
+        return destinationY;
+    }
+}
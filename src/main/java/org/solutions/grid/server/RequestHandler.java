@@ -1,223 +1,153 @@
 package org.solutions.grid.server;
 
-import com.sun.jdi.request.InvalidRequestStateException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import cz.cvut.fel.esw.server.proto.*;
-import org.solutions.grid.algorithms.Dijkstra;
-import org.solutions.grid.datastructures.Graph;
-import org.solutions.grid.datastructures.LocationRecord;
+import org.solutions.grid.datastructures.WalkBuffer;
+import org.solutions.grid.metrics.ServerMetrics;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import static cz.cvut.fel.esw.server.proto.Request.MsgCase.*;
 
 /**
- * Handler thread of the requests coming from client.
+ * Handler thread of the requests coming from client, used by the blocking transport
+ * with one virtual thread per connection.
+ * <p>
+ * Requests may be pipelined: while a request is processed, the following ones keep arriving into the
+ * socket and input buffers. Responses are buffered and flushed only once no further frame is waiting,
+ * so a burst of requests is answered by a single write. Decoded requests are processed once
+ * the {@link RequestScheduler} admits them.
  */
 public class RequestHandler implements Runnable {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private final Socket clientSocket;
     /**
-     * Stream for receiving requests from client.
-     */
-    private final InputStream in;
-    /**
-     * Stream for sending responses to client.
+     * Buffered stream for receiving requests from client.
      */
-    private final DataOutputStream out;
-    private final Graph graph;
-    private final ReentrantReadWriteLock lock;
+    private final FrameInputStream in;
     /**
-     * Map of new coming walk requests from particular client.
+     * Buffered stream for sending responses to client.
      */
-    private static final Map<Socket, List<Walk>> clientWalks = new ConcurrentHashMap<>();
+    private final CodedOutputStream out;
+    private final RequestProcessor processor;
+    private final RequestScheduler scheduler;
+    private final RequestDecoder decoder = new RequestDecoder();
 
 
-    public RequestHandler(Socket clientSocket, Graph graph, ReentrantReadWriteLock lock)
+    public RequestHandler(Socket clientSocket, RequestProcessor processor, RequestScheduler scheduler)
             throws IOException {
         this.clientSocket = clientSocket;
-        this.in = clientSocket.getInputStream();
-        this.out = new DataOutputStream(clientSocket.getOutputStream());
-        this.graph = graph;
-        this.lock = lock;
+        this.in = new FrameInputStream(clientSocket.getInputStream());
+        this.out = CodedOutputStream.newInstance(clientSocket.getOutputStream(), STREAM_BUFFER_SIZE);
+        this.processor = processor;
+        this.scheduler = scheduler;
     }
 
     @Override
     public void run() {
+        /* Frames are decoded from a pooled buffer, walks go straight into the walk buffer of the client. */
+        FrameBuffer frame = FrameBuffer.acquire();
+        WalkBuffer walks = processor.walkBuffer(clientSocket);
         try (DataInputStream din = new DataInputStream(in)) {
             while (!clientSocket.isClosed()) {
                 int messageSize = din.readInt();
-                byte[] data = new byte[messageSize];
-                din.readFully(data);
-                Request request = Request.parseFrom(data);
-                /* Handling requests in form of protobuf messages from clients. */
-                switch (request.getMsgCase()) {
-                    case WALK:
-                        handleWalk(request.getWalk());
-                        break;
-                    case RESET:
-                        handleReset();
-                        break;
-                    case ONETOONE:
-                        handleOneToOne(request.getOneToOne());
-                        break;
-                    case ONETOALL:
-                        handleOneToAll(request.getOneToAll());
-                        break;
-                    default:
-                        throw new InvalidRequestStateException("Unknown request was received from client.");
+                byte[] data = frame.ensureCapacity(messageSize);
+                din.readFully(data, 0, messageSize);
+                decoder.decode(CodedInputStream.newInstance(data, 0, messageSize), walks);
+                Response response = scheduler.execute(decoder.getType(),
+                        () -> processor.process(clientSocket, decoder));
+                long start = System.nanoTime();
+                sendResponseTCP(response, out);
+                processor.getMetrics().phase(ServerMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+                if (decoder.getType() == Request.MsgCase.WALK) {
+                    scheduler.throttleWalks();
+                }
+                if (!in.hasPendingInput()) {
+                    out.flush();
                 }
             }
         } catch (IOException e) {
             System.out.println("Client disconnected");
+        } finally {
+            processor.disconnect(clientSocket);
+            frame.release();
         }
     }
 
     /**
-     * Handling oneToAll request from the client.
-     * @param oneToAll request of finding sum of all shortest paths in the graph
-     *                 from the given location
+     * Writing response to request into the buffered output, it is sent to the client once flushed.
+     * @param response protobuf response message.
+     * @param out buffered client socket stream
      * @throws IOException
      */
-    private void handleOneToAll(OneToAll oneToAll) throws IOException {
-        /* Adding relevant walks to the graph after synchronisation point. */
-        lock.writeLock().lock();
-        try {
-            addNewWalks();
-        }
-        catch (Exception e){
-            e.printStackTrace();
-            throw e;
-        }finally {
-            lock.writeLock().unlock();
-        }
-
-        /* Finding the shortest paths sum in graph with relevant walks. */
-        lock.readLock().lock();
-        try {
-            LocationRecord origin = new LocationRecord(oneToAll.getOrigin());
-            LocationRecord existingOrigin = graph.getGrid().locationIsInGrid(origin);
-            long shortestPathsSum = Dijkstra.findShortestPathOneToAll(graph, existingOrigin);
-            Response response = Response.newBuilder()
-                    .setStatus(Response.Status.OK)
-                    .setTotalLength(shortestPathsSum)
-                    .build();
-            System.out.println("OneToMany request: " + shortestPathsSum);
-            sendResponseTCP(response, out);
-        } catch (Exception e){
-            e.printStackTrace();
-            throw e;
-        }
-        finally {
-            lock.readLock().unlock();
-        }
+    public void sendResponseTCP(Response response, CodedOutputStream out) throws IOException {
+        int messageSize = response.getSerializedSize();
+        out.writeRawByte((byte) (messageSize >>> 24));
+        out.writeRawByte((byte) (messageSize >>> 16));
+        out.writeRawByte((byte) (messageSize >>> 8));
+        out.writeRawByte((byte) messageSize);
+        response.writeTo(out);
     }
 
     /**
-     * Handling oneToOne request from the client.
-     * @param oneToOne request of finding the shortest path from given origin to destination location.
-     * @throws IOException
+     * Buffered input telling whether more received bytes are waiting.
+     * It does not extend {@link java.io.BufferedInputStream}, whose subclasses hold a monitor while reading:
+     * a virtual thread waiting for its client inside the monitor would stay pinned to its carrier thread,
+     * and with as few carriers as processors the other connections would stall behind an idle one.
      */
-    private void handleOneToOne(OneToOne oneToOne) throws IOException {
-        /* Adding relevant walks to the graph after synchronisation point. */
-        lock.writeLock().lock();
-        try {
-            addNewWalks();
-        }
-        catch (Exception e){
-            e.printStackTrace();
-            throw e;
-        }
-        finally {
-            lock.writeLock().unlock();
+    private static class FrameInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        private int pos;
+        private int count;
+
+        private FrameInputStream(InputStream in) {
+            this.in = in;
         }
 
-        /* Finding the shortest paths sum in graph with relevant walks. */
-        lock.readLock().lock();
-        try {
-            LocationRecord origin = new LocationRecord(oneToOne.getOrigin());
-            LocationRecord destination = new LocationRecord(oneToOne.getDestination());
-            LocationRecord existingOrigin = graph.getGrid().locationIsInGrid(origin);
-            LocationRecord existingDestination = graph.getGrid().locationIsInGrid(destination);
-            long shortestPath = Dijkstra.findShortestPathOneToOne(graph, existingOrigin, existingDestination);
-
-            Response response = Response.newBuilder()
-                    .setStatus(Response.Status.OK)
-                    .setShortestPathLength(shortestPath)
-                    .build();
-            System.out.println("OneToOne request: " + shortestPath);
-            sendResponseTCP(response, out);
+        @Override
+        public int read() throws IOException {
+            if (pos == count && !fill()) return -1;
+            return buffer[pos++] & 0xFF;
         }
-        catch (Exception e){
-            e.printStackTrace();
-            throw e;
-        }
-        finally {
-            lock.readLock().unlock();
-        }
-    }
 
-    /**
-     * Clearing whole graph and grid.
-     * @throws IOException
-     */
-    private void handleReset() throws IOException {
-        lock.writeLock().lock();
-        try {
-            graph.reset();
-            Response response = Response.newBuilder()
-                    .setStatus(Response.Status.OK)
-                    .build();
-            sendResponseTCP(response, out);
-        }
-        catch (Exception e){
-            e.printStackTrace();
-            throw e;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == count) {
+                if (len >= buffer.length) return in.read(b, off, len); /* large frames bypass the buffer */
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
         }
-        finally {
-            lock.writeLock().unlock();
+
+        @Override
+        public int available() throws IOException {
+            return count - pos + in.available();
         }
-    }
 
-    /**
-     * Collecting relevant walks for the next synchronization point.
-     * @param walk Sequence of locations and sequence of edges which connect them.
-     * @throws IOException
-     */
-    private void handleWalk(Walk walk) throws IOException {
-        clientWalks.computeIfAbsent(this.clientSocket, k -> new ArrayList<>()).add(walk);
-        Response response = Response.newBuilder()
-                .setStatus(Response.Status.OK)
-                .build();
-        sendResponseTCP(response, out);
-    }
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
 
-    /**
-     * Adding collected relevant walks into graph and grid.
-     */
-    public void addNewWalks() {
-        List<Walk> walks = clientWalks.remove(this.clientSocket);
-        if (walks == null) return;
-        graph.addNewWalks(walks);
-    }
+        private boolean fill() throws IOException {
+            pos = 0;
+            count = Math.max(0, in.read(buffer, 0, buffer.length));
+            return count > 0;
+        }
 
-    /**
-     * Sending response to request to the client.
-     * @param response protobuf response message.
-     * @param out client socket data stream
-     * @throws IOException
-     */
-    public void sendResponseTCP(Response response, DataOutputStream out) throws IOException {
-        int messageSize = response.getSerializedSize();
-        out.writeInt(messageSize);
-        response.writeTo(out);
-        out.flush();
+        /**
+         * Asks the socket only when the buffer is empty, so a burst already in the buffer costs no system call.
+         */
+        private boolean hasPendingInput() throws IOException {
+            return count > pos || in.available() > 0;
+        }
     }
 }
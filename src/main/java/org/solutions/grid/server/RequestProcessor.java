@@ -0,0 +1,311 @@
+package org.solutions.grid.server;
+
+import com.sun.jdi.request.InvalidRequestStateException;
+import cz.cvut.fel.esw.server.proto.*;
+import org.solutions.grid.algorithms.QueryEngine;
+import org.solutions.grid.datastructures.GraphStore;
+import org.solutions.grid.datastructures.WalkBuffer;
+import org.solutions.grid.metrics.ServerMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processing of the requests coming from clients, independent of the transport that carries them.
+ * Requests of one connection must be processed in the order they were received, one at a time.
+ * <p>
+ * At its synchronization point a client hands its collected walks to the single writer of the graph
+ * and waits for the version that contains them; queries then run on that version without locking,
+ * so they neither wait for nor block the synchronization points of other clients. The graph is held
+ * by a {@link GraphBackend}, in this process or partitioned across a cluster of shards.
+ * <p>
+ * Every request is timed into the {@link ServerMetrics}, together with its phases: waiting for the walks
+ * to be merged, resolving the queried locations and searching.
+ */
+public class RequestProcessor {
+    private static final Response OK_RESPONSE = Response.newBuilder()
+            .setStatus(Response.Status.OK)
+            .build();
+    private static final Response READ_ONLY_RESPONSE = Response.newBuilder()
+            .setStatus(Response.Status.ERROR)
+            .setErrMsg("Read-only replica, walks and resets go to the primary")
+            .build();
+
+    private final GraphBackend backend;
+    /**
+     * Map of new coming walks from particular client connection.
+     */
+    private final Map<Object, WalkBuffer> clientWalks = new ConcurrentHashMap<>();
+    /**
+     * Number of walks in the buffers of all connections.
+     */
+    private final LongAdder pendingWalks = new LongAdder();
+    private final ServerMetrics metrics;
+
+    public RequestProcessor(GraphStore store, QueryEngine queryEngine) {
+        this(store, queryEngine, new ServerMetrics());
+    }
+
+    public RequestProcessor(GraphStore store, QueryEngine queryEngine, ServerMetrics metrics) {
+        this(new LocalGraphBackend(store, queryEngine), metrics);
+    }
+
+    public RequestProcessor(GraphBackend backend, ServerMetrics metrics) {
+        this.backend = backend;
+        this.metrics = metrics;
+        metrics.gauge("pending_walks", pendingWalks::sum);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Handling request in form of protobuf message from client.
+     * @param connection object identifying the client connection the request came from
+     * @param request request of the client
+     * @return response to be sent back to the client
+     */
+    public Response process(Object connection, Request request) {
+        long start = System.nanoTime();
+        Response response = null;
+        try {
+            switch (request.getMsgCase()) {
+                case WALK:
+                    if (!backend.acceptsChanges()) {
+                        response = READ_ONLY_RESPONSE;
+                        break;
+                    }
+                    walkBuffer(connection).addWalk(request.getWalk());
+                    metrics.count(ServerMetrics.Counter.WALKS_RECEIVED);
+                    pendingWalks.increment();
+                    metrics.count(ServerMetrics.Counter.LOCATIONS_RECEIVED, request.getWalk().getLocationsCount());
+                    response = OK_RESPONSE;
+                    break;
+                case RESET:
+                    response = handleReset();
+                    break;
+                case ONETOONE:
+                    OneToOne oneToOne = request.getOneToOne();
+                    response = handleOneToOne(connection, oneToOne.getOrigin().getX(), oneToOne.getOrigin().getY(),
+                            oneToOne.getDestination().getX(), oneToOne.getDestination().getY());
+                    break;
+                case ONETOALL:
+                    OneToAll oneToAll = request.getOneToAll();
+                    response = handleOneToAll(connection, oneToAll.getOrigin().getX(), oneToAll.getOrigin().getY());
+                    break;
+                default:
+                    throw new InvalidRequestStateException("Unknown request was received from client.");
+            }
+            return response;
+        } finally {
+            record(request.getMsgCase(), start, response);
+        }
+    }
+
+    /**
+     * Handling request decoded by {@link RequestDecoder} from client,
+     * a walk has already been added to the walk buffer of the connection during decoding.
+     * @param connection object identifying the client connection the request came from
+     * @param request decoder holding the last decoded request of the connection
+     * @return response to be sent back to the client
+     */
+    public Response process(Object connection, RequestDecoder request) {
+        long start = System.nanoTime();
+        Response response = null;
+        try {
+            switch (request.getType()) {
+                case WALK:
+                    WalkBuffer walks = walkBuffer(connection);
+                    if (!backend.acceptsChanges()) { /* the buffer never holds more than the decoded walk */
+                        walks.clear();
+                        response = READ_ONLY_RESPONSE;
+                        break;
+                    }
+                    int last = walks.getWalkCount() - 1;
+                    metrics.count(ServerMetrics.Counter.WALKS_RECEIVED);
+                    pendingWalks.increment();
+                    metrics.count(ServerMetrics.Counter.LOCATIONS_RECEIVED,
+                            walks.getWalkEnd(last) - walks.getWalkStart(last));
+                    response = OK_RESPONSE;
+                    break;
+                case RESET:
+                    response = handleReset();
+                    break;
+                case ONETOONE:
+                    response = handleOneToOne(connection, request.getOriginX(), request.getOriginY(),
+                            request.getDestinationX(), request.getDestinationY());
+                    break;
+                case ONETOALL:
+                    response = handleOneToAll(connection, request.getOriginX(), request.getOriginY());
+                    break;
+                default:
+                    throw new InvalidRequestStateException("Unknown request was received from client.");
+            }
+            return response;
+        } finally {
+            record(request.getType(), start, response);
+        }
+    }
+
+    /**
+     * Records the processing time of a request, a request without response failed with an exception.
+     */
+    private void record(Request.MsgCase type, long start, Response response) {
+        ServerMetrics.RequestType requestType;
+        switch (type) {
+            case WALK:
+                requestType = ServerMetrics.RequestType.WALK;
+                break;
+            case RESET:
+                requestType = ServerMetrics.RequestType.RESET;
+                break;
+            case ONETOONE:
+                requestType = ServerMetrics.RequestType.ONE_TO_ONE;
+                break;
+            case ONETOALL:
+                requestType = ServerMetrics.RequestType.ONE_TO_ALL;
+                break;
+            default:
+                return;
+        }
+        boolean error = response == null || response.getStatus() != Response.Status.OK;
+        metrics.request(requestType, System.nanoTime() - start, error);
+    }
+
+    /**
+     * Buffer collecting walks of the client connection for the next synchronization point.
+     * @param connection object identifying the client connection
+     */
+    public WalkBuffer walkBuffer(Object connection) {
+        return clientWalks.computeIfAbsent(connection, k -> new WalkBuffer());
+    }
+
+    /**
+     * Forgetting walks of the client connection which were not synchronized before it closed.
+     * @param connection object identifying the client connection
+     */
+    public void disconnect(Object connection) {
+        WalkBuffer walks = clientWalks.remove(connection);
+        if (walks != null) {
+            pendingWalks.add(-walks.getWalkCount());
+        }
+    }
+
+    /**
+     * @return number of walks collected by all connections and not synchronized yet
+     */
+    public long getPendingWalks() {
+        return pendingWalks.sum();
+    }
+
+    /**
+     * Handling oneToAll request from the client, finding sum of all shortest paths in the graph
+     * from the given location.
+     */
+    private Response handleOneToAll(Object connection, int originX, int originY) {
+        /* Adding relevant walks to the graph after synchronisation point. */
+        GraphBackend.Version version = synchronize(connection);
+
+        /* Finding the shortest paths sum in graph with relevant walks. */
+        try {
+            long start = System.nanoTime();
+            int originId = version.locationId(originX, originY);
+            long resolved = System.nanoTime();
+            metrics.phase(ServerMetrics.Phase.LOCATION_RESOLVE, resolved - start);
+            if (originId < 0) {
+                return unknownLocation();
+            }
+            long shortestPathsSum = version.oneToAll(originId);
+            metrics.phase(ServerMetrics.Phase.SEARCH, System.nanoTime() - resolved);
+            return Response.newBuilder()
+                    .setStatus(Response.Status.OK)
+                    .setTotalLength(shortestPathsSum)
+                    .build();
+        } catch (Exception e){
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Handling oneToOne request from the client, finding the shortest path from given origin to destination location.
+     */
+    private Response handleOneToOne(Object connection, int originX, int originY,
+                                    int destinationX, int destinationY) {
+        /* Adding relevant walks to the graph after synchronisation point. */
+        GraphBackend.Version version = synchronize(connection);
+
+        /* Finding the shortest paths sum in graph with relevant walks. */
+        try {
+            long start = System.nanoTime();
+            int originId = version.locationId(originX, originY);
+            int destinationId = version.locationId(destinationX, destinationY);
+            long resolved = System.nanoTime();
+            metrics.phase(ServerMetrics.Phase.LOCATION_RESOLVE, resolved - start);
+            if (originId < 0 || destinationId < 0) {
+                return unknownLocation();
+            }
+            long shortestPath = version.oneToOne(originId, destinationId);
+            metrics.phase(ServerMetrics.Phase.SEARCH, System.nanoTime() - resolved);
+            return Response.newBuilder()
+                    .setStatus(Response.Status.OK)
+                    .setShortestPathLength(shortestPath)
+                    .build();
+        }
+        catch (Exception e){
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Clearing whole graph and grid.
+     */
+    private Response handleReset() {
+        if (!backend.acceptsChanges()) {
+            return READ_ONLY_RESPONSE;
+        }
+        try {
+            backend.reset();
+            return OK_RESPONSE;
+        }
+        catch (Exception e){
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Adding collected relevant walks of the client into graph and grid.
+     * @return version of the graph containing all walks of the client
+     */
+    private GraphBackend.Version synchronize(Object connection) {
+        WalkBuffer walks = clientWalks.get(connection);
+        if (walks == null || walks.isEmpty()) return backend.current();
+        long start = System.nanoTime();
+        try {
+            return backend.addWalks(walks);
+        }
+        catch (Exception e){
+            e.printStackTrace();
+            throw e;
+        }
+        finally {
+            pendingWalks.add(-walks.getWalkCount());
+            walks.clear();
+            metrics.phase(ServerMetrics.Phase.WALK_MERGE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Response to a query about a location the graph does not contain.
+     */
+    private static Response unknownLocation() {
+        return Response.newBuilder()
+                .setStatus(Response.Status.ERROR)
+                .setErrMsg("Unknown location")
+                .build();
+    }
+}
@@ -0,0 +1,129 @@
+package org.solutions.grid.server;
+
+import cz.cvut.fel.esw.server.proto.Request;
+import cz.cvut.fel.esw.server.proto.Response;
+import org.solutions.grid.metrics.ServerMetrics;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Admission of decoded requests to processing, between the decoding and the execution of a request
+ * by the handler thread of its connection.
+ * <p>
+ * Walks, OneToOne and OneToAll queries each go through a lane with its own limit of concurrently
+ * processed requests; a request waits for a permit of its lane in the order of arrival. Virtual threads
+ * are not preempted, so a OneToAll search keeps its carrier thread until it finishes: limiting the
+ * OneToAll lane below the number of carriers keeps carriers free for the cheap requests. Short work also
+ * goes first: before waiting for its permit, a OneToAll request yields its carrier while walks or OneToOne
+ * queries are in progress, a bounded number of times so that it cannot starve. Resets are rare and are not limited.
+ * <p>
+ * The walks collected by the connections until their synchronization points are bounded softly: while
+ * more than the given number are waiting, every connection sending a walk is delayed before its next frame
+ * is read, which lets TCP slow the clients down until queries merge the backlog. A hard stop could leave
+ * every connection waiting for another one to synchronize.
+ */
+public class RequestScheduler {
+    /**
+     * Number of times a OneToAll request lets short work run before it starts anyway.
+     */
+    private static final int MAX_YIELDS = 16;
+
+    private enum Lane {
+        WALK, ONE_TO_ONE, ONE_TO_ALL
+    }
+
+    private final Semaphore[] permits = new Semaphore[Lane.values().length];
+    /**
+     * Walks and OneToOne queries waiting for a permit or being processed.
+     */
+    private final AtomicInteger shortWork = new AtomicInteger();
+    private final RequestProcessor processor;
+    private final long maxPendingWalks;
+    private final long walkDelayNanos;
+    private final ServerMetrics metrics;
+
+    /**
+     * @param processor processor of the requests, tracking the walks waiting for synchronization
+     * @param walkLimit maximum number of walks processed at once
+     * @param oneToOneLimit maximum number of OneToOne queries processed at once
+     * @param oneToAllLimit maximum number of OneToAll queries processed at once
+     * @param maxPendingWalks number of walks waiting for synchronization above which reads are delayed
+     * @param walkDelayMillis delay of a connection sending a walk while there are too many waiting
+     */
+    public RequestScheduler(RequestProcessor processor, int walkLimit, int oneToOneLimit, int oneToAllLimit,
+                            long maxPendingWalks, long walkDelayMillis) {
+        this.processor = processor;
+        this.permits[Lane.WALK.ordinal()] = new Semaphore(walkLimit, true);
+        this.permits[Lane.ONE_TO_ONE.ordinal()] = new Semaphore(oneToOneLimit, true);
+        this.permits[Lane.ONE_TO_ALL.ordinal()] = new Semaphore(oneToAllLimit, true);
+        this.maxPendingWalks = maxPendingWalks;
+        this.walkDelayNanos = TimeUnit.MILLISECONDS.toNanos(walkDelayMillis);
+        this.metrics = processor.getMetrics();
+    }
+
+    /**
+     * Processes the request once its lane admits it.
+     * @param type type of the request
+     * @param request processing of the request
+     * @return response to the request
+     */
+    public Response execute(Request.MsgCase type, Supplier<Response> request) {
+        Lane lane = lane(type);
+        if (lane == null) {
+            return request.get();
+        }
+        boolean cheap = lane != Lane.ONE_TO_ALL;
+        if (cheap) {
+            shortWork.incrementAndGet();
+        }
+        Semaphore semaphore = permits[lane.ordinal()];
+        try {
+            long start = System.nanoTime();
+            if (!cheap) {
+                /* Before taking a permit, so that deferring to short work leaves the lane to other searches. */
+                for (int i = 0; i < MAX_YIELDS && shortWork.get() > 0; i++) {
+                    Thread.yield();
+                }
+            }
+            semaphore.acquireUninterruptibly();
+            metrics.phase(ServerMetrics.Phase.ADMISSION, System.nanoTime() - start);
+            try {
+                return request.get();
+            } finally {
+                semaphore.release();
+            }
+        } finally {
+            if (cheap) {
+                shortWork.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Delays the connection before its next frame is read if too many walks wait for synchronization,
+     * called after the connection has sent a walk.
+     */
+    public void throttleWalks() {
+        if (processor.getPendingWalks() > maxPendingWalks) {
+            metrics.count(ServerMetrics.Counter.DELAYED_READS);
+            LockSupport.parkNanos(walkDelayNanos);
+        }
+    }
+
+    private static Lane lane(Request.MsgCase type) {
+        switch (type) {
+            case WALK:
+                return Lane.WALK;
+            case ONETOONE:
+                return Lane.ONE_TO_ONE;
+            case ONETOALL:
+                return Lane.ONE_TO_ALL;
+            default:
+                return null;
+        }
+    }
+}
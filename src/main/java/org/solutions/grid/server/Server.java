@@ -1,40 +1,332 @@
 package org.solutions.grid.server;
 
+import org.solutions.grid.algorithms.DeltaStepping;
+import org.solutions.grid.algorithms.LandmarkIndex;
+import org.solutions.grid.algorithms.OneToAllBatcher;
+import org.solutions.grid.algorithms.QueryEngine;
+import org.solutions.grid.algorithms.ShortestPathCache;
+import org.solutions.grid.cluster.ClusterCoordinator;
+import org.solutions.grid.cluster.ShardMap;
 import org.solutions.grid.datastructures.Graph;
+import org.solutions.grid.datastructures.GraphFile;
+import org.solutions.grid.datastructures.GraphStore;
+import org.solutions.grid.datastructures.WalkLog;
+import org.solutions.grid.metrics.MetricsEndpoint;
+import org.solutions.grid.metrics.ServerMetrics;
+import org.solutions.grid.replication.ReplicaServer;
+import org.solutions.grid.replication.ReplicationPrimary;
 
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Server {
     private static int port;
     private static boolean running = true;
-    /**
-     * Read-Write Lock for the shared data(graph and grid).
-     */
-    private final static ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     /**
      * Service for utilizing virtual threads.
      */
     private static ExecutorService executor;
     /**
-     * Locations graph utilizing hash grid for faster detection of equivalent locations.
+     * Locations graph utilizing hash grid for faster detection of equivalent locations,
+     * changed by a single writer which publishes snapshots for the queries.
+     */
+    private static GraphStore graphStore;
+    /**
+     * Shortest path queries over the graph with cached OneToAll results.
+     */
+    private static QueryEngine queryEngine;
+    /**
+     * Coordinator of the shards holding the graph in cluster mode, null if the graph is held by this process.
+     */
+    private static ClusterCoordinator coordinator;
+    /**
+     * Processing of the decoded requests shared by all connections.
+     */
+    private static RequestProcessor processor;
+    /**
+     * Admission of the requests of the virtual thread transport.
      */
-    private static Graph graph;
+    private static RequestScheduler scheduler;
+    /**
+     * Runtime metrics recorded by the request path.
+     */
+    private static ServerMetrics metrics;
 
+    /**
+     * @param args properties overriding those of the configuration file, each as {@code key=value}
+     */
     public static void main(String[] args) throws InterruptedException {
         /* Loading configuration data. */
         ConfigLoader config = new ConfigLoader("src/main/resources/config.properties");
+        config.setProperties(args);
+        run(config);
+    }
+
+    /**
+     * Starts the server and serves the clients until it stops. With {@code cluster.shards} set, the graph
+     * is held by those shard processes and this server is their coordinator. With {@code replication.port}
+     * set, the server is a read replica of the primary connecting to that port; with {@code replication.replicas}
+     * set, it is the primary of those replicas.
+     */
+    public static void run(ConfigLoader config) {
         port = config.getIntProperty("server.port");
-        int expectedLocationsNumber = config.getIntProperty("server.expected_locations_number");
-        graph = new Graph(expectedLocationsNumber);
-        executor = Executors.newVirtualThreadPerTaskExecutor();
+        String shards = config.getProperty("cluster.shards");
+        GraphBackend backend;
+        if (shards != null && !shards.isBlank()) {
+            coordinator = createCoordinator(config, shards);
+            metrics = createMetrics(config);
+            backend = coordinator;
+        } else {
+            int replicationPort = config.getIntProperty("replication.port", 0);
+            graphStore = createGraphStore(config, replicationPort == 0);
+            metrics = createMetrics(config);
+            ShortestPathCache cache = new ShortestPathCache(
+                    config.getIntProperty("cache.max_entries", 256),
+                    config.getLongProperty("cache.max_tree_bytes", 256L << 20));
+            LandmarkIndex landmarks = new LandmarkIndex(
+                    config.getIntProperty("landmarks.count", 8),
+                    config.getLongProperty("landmarks.recompute_after_walks", 2000L));
+            queryEngine = createQueryEngine(config, cache, landmarks);
+            String replicas = config.getProperty("replication.replicas");
+            if (replicationPort > 0) {
+                backend = startReplica(config, replicationPort);
+            } else if (replicas != null && !replicas.isBlank()) {
+                backend = createPrimary(config, replicas);
+            } else {
+                backend = new LocalGraphBackend(graphStore, queryEngine);
+            }
+        }
+        processor = new RequestProcessor(backend, metrics);
 
-        /* Starting up the server. */
-        startServer();
+        /* Starting up the server with the configured transport. */
+        String transport = config.getProperty("server.transport");
+        if (transport != null && transport.trim().equals("nio")) {
+            startNioServer(config.getIntProperty("server.compute_threads", Runtime.getRuntime().availableProcessors()),
+                    config.getIntProperty("server.compute_queue", 1024));
+        } else {
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            scheduler = createScheduler(config);
+            startServer();
+        }
+    }
+
+    /**
+     * Creates the graph store, restoring the graph from {@code graph.file} if it is configured and exists.
+     * The graph is then saved into the file every {@code graph.save_interval_seconds} if it changed,
+     * and when the server shuts down.
+     * With {@code wal.file} the walks are also logged ahead, and those not saved yet are replayed on start.
+     * @param persistent whether the graph is kept in those files, a replica gets its graph from the primary
+     */
+    private static GraphStore createGraphStore(ConfigLoader config, boolean persistent) {
+        Graph graph = new Graph(config.getIntProperty("server.expected_locations_number"),
+                config.getIntProperty("repair.change_log_batches", 64),
+                config.getIntProperty("ingest.parallelism", Runtime.getRuntime().availableProcessors()),
+                config.getIntProperty("ingest.parallel_threshold", 50000));
+        if (!persistent) {
+            return new GraphStore(graph);
+        }
+        String file = config.getProperty("graph.file");
+        Path graphFile = file == null || file.isBlank() ? null : Path.of(file.trim());
+        long savedSequence = 0;
+        if (graphFile != null) {
+            try {
+                long start = System.nanoTime();
+                long sequence = GraphFile.read(graph, graphFile);
+                if (sequence >= 0) {
+                    savedSequence = sequence;
+                    System.out.println("Graph restored from " + graphFile + " in "
+                            + (System.nanoTime() - start) / 1_000_000 + " ms: "
+                            + graph.getCsr().getNodeCount() + " locations, " + graph.getCsr().getEdgeCount() + " edges");
+                }
+            } catch (IOException e) {
+                System.out.println("Graph could not be restored, starting empty: " + e.getMessage());
+            }
+        }
+        WalkLog walkLog = createWalkLog(config, graph, savedSequence);
+        if (graphFile == null) {
+            return new GraphStore(graph, null, 0, walkLog);
+        }
+        GraphStore store = new GraphStore(graph, graphFile,
+                config.getLongProperty("graph.save_interval_seconds", 60L), walkLog);
+        Runtime.getRuntime().addShutdownHook(new Thread(store::save, "graph-save-on-exit"));
+        return store;
+    }
+
+    /**
+     * Opens the log of walks configured by {@code wal.file} and replays the records the graph does not contain.
+     * {@code wal.durability} is {@code sync} to force every batch to disk before it is published,
+     * {@code async} to force the log every {@code wal.sync_interval_ms}, or {@code none} for no log.
+     * @return the replayed log, null if the walks are not logged
+     */
+    @Nullable
+    private static WalkLog createWalkLog(ConfigLoader config, Graph graph, long savedSequence) {
+        String file = config.getProperty("wal.file");
+        String durability = config.getProperty("wal.durability");
+        durability = durability == null ? "async" : durability.trim();
+        if (file == null || file.isBlank() || durability.equals("none")) {
+            return null;
+        }
+        Path logFile = Path.of(file.trim());
+        try {
+            WalkLog walkLog = new WalkLog(logFile, durability.equals("sync"),
+                    config.getLongProperty("wal.sync_interval_ms", 1000L));
+            long start = System.nanoTime();
+            int replayed = walkLog.replay(graph, savedSequence);
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " records of " + logFile + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+            return walkLog;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Walk log " + logFile + " could not be opened", e);
+        }
+    }
+
+    /**
+     * Connects the coordinator to the shards listed by {@code cluster.shards} as comma separated host:port
+     * addresses, which must run already. The plane is partitioned among them in square blocks of
+     * {@code cluster.block_cells} grid cells; all shards must be listed in the same order on every start.
+     */
+    private static ClusterCoordinator createCoordinator(ConfigLoader config, String shards) {
+        String[] addresses = shards.split(",");
+        ShardMap shardMap = new ShardMap(addresses.length, config.getIntProperty("cluster.block_cells", 128));
+        ClusterCoordinator coordinator = new ClusterCoordinator(shardMap, Arrays.asList(addresses));
+        System.out.println("Coordinating " + addresses.length + " shards: " + shards.trim());
+        return coordinator;
+    }
+
+    /**
+     * Starts the replica of the graph, receiving the changes from its primary on the port. Queries forwarded
+     * by the primary wait up to {@code replication.max_wait_ms} for the replica to reach their version.
+     */
+    private static ReplicaServer startReplica(ConfigLoader config, int replicationPort) {
+        ReplicaServer replica = new ReplicaServer(graphStore, queryEngine,
+                config.getLongProperty("replication.max_wait_ms", 1000L));
+        Thread listener = new Thread(() -> {
+            try {
+                replica.serve(replicationPort);
+            } catch (IOException e) {
+                System.out.println("Replica could not listen on port " + replicationPort + ": " + e.getMessage());
+            }
+        }, "replica-listener");
+        listener.setDaemon(true);
+        listener.start();
+        return replica;
+    }
+
+    /**
+     * Makes this server the primary of the replicas listed by {@code replication.replicas} as comma separated
+     * host:port addresses of their replication ports. They are sent the changes of the graph, the last
+     * {@code replication.backlog_records} being kept for replicas that reconnect, and take the queries
+     * in turns with this server unless {@code replication.serve_locally} is false.
+     */
+    private static ReplicationPrimary createPrimary(ConfigLoader config, String replicas) {
+        String[] addresses = replicas.split(",");
+        String serveLocally = config.getProperty("replication.serve_locally");
+        ReplicationPrimary primary = new ReplicationPrimary(graphStore, queryEngine, Arrays.asList(addresses),
+                config.getIntProperty("replication.backlog_records", 1024),
+                serveLocally == null || Boolean.parseBoolean(serveLocally.trim()), metrics);
+        metrics.gauge("replication_replicas", primary::getStreamingReplicas);
+        metrics.gauge("replication_lag_versions", primary::getReplicaLag);
+        System.out.println("Replicating to " + addresses.length + " replicas: " + replicas.trim());
+        return primary;
+    }
+
+    /**
+     * Creates the query engine with the OneToAll engine selected by {@code search.engine}:
+     * {@code dijkstra}, {@code delta_stepping}, or {@code auto} which switches to delta-stepping
+     * from {@code search.parallel_threshold} locations when more than one thread is available.
+     * Searches below the threshold are batched by up to {@code search.batch_origins} origins
+     * on {@code search.batch_threads} threads; batching is off unless at least two origins are configured.
+     */
+    private static QueryEngine createQueryEngine(ConfigLoader config, ShortestPathCache cache,
+                                                 LandmarkIndex landmarks) {
+        String engine = config.getProperty("search.engine");
+        engine = engine == null ? "dijkstra" : engine.trim();
+        int parallelism = config.getIntProperty("search.parallelism", Runtime.getRuntime().availableProcessors());
+        int batchOrigins = config.getIntProperty("search.batch_origins", 0);
+        OneToAllBatcher batcher = null;
+        if (batchOrigins > 1) {
+            batcher = new OneToAllBatcher(
+                    config.getIntProperty("search.batch_threads", Runtime.getRuntime().availableProcessors()),
+                    batchOrigins, metrics);
+            System.out.println("OneToAll searches batched by up to " + batchOrigins + " origins"
+                    + (batcher.isVectorized() ? "" : ", without the vector module one after another"));
+        }
+        if (engine.equals("dijkstra") || (engine.equals("auto") && parallelism < 2)) {
+            return new QueryEngine(graphStore, cache, landmarks, null, Integer.MAX_VALUE, batcher, metrics);
+        }
+        DeltaStepping parallelSearch = new DeltaStepping(parallelism, config.getLongProperty("search.delta", 0L));
+        int threshold = engine.equals("delta_stepping")
+                ? 0 : config.getIntProperty("search.parallel_threshold", 200000);
+        return new QueryEngine(graphStore, cache, landmarks, parallelSearch, threshold, batcher, metrics);
+    }
+
+    /**
+     * Creates the scheduler of the virtual thread transport. By default OneToAll queries may occupy all
+     * but one of the carrier threads, OneToOne queries all of them, and connections sending walks are delayed
+     * by {@code scheduler.walk_delay_ms} while more than {@code scheduler.max_pending_walks} wait for their
+     * synchronization points.
+     */
+    private static RequestScheduler createScheduler(ConfigLoader config) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return new RequestScheduler(processor,
+                config.getIntProperty("scheduler.walk_limit", 1024),
+                config.getIntProperty("scheduler.one_to_one_limit", processors),
+                config.getIntProperty("scheduler.one_to_all_limit", Math.max(1, processors - 1)),
+                config.getLongProperty("scheduler.max_pending_walks", 100000L),
+                config.getLongProperty("scheduler.walk_delay_ms", 1L));
+    }
+
+    /**
+     * Creates the runtime metrics with gauges of the graph, registers them with the platform MBean server
+     * and, if {@code metrics.port} is configured, serves them as text on that local port.
+     * A coordinator reports the size of the overlay of the shards instead of the edges it does not hold.
+     */
+    private static ServerMetrics createMetrics(ConfigLoader config) {
+        ServerMetrics metrics = new ServerMetrics();
+        if (coordinator != null) {
+            metrics.gauge("graph_locations", coordinator::getLocationCount);
+            metrics.gauge("graph_version", coordinator::getVersion);
+            metrics.gauge("graph_ingested_walks", coordinator::getIngestedWalks);
+            metrics.gauge("writer_pending_tasks", coordinator::getPendingTasks);
+            metrics.gauge("cluster_shards", coordinator::getShards);
+            metrics.gauge("overlay_nodes", coordinator::getOverlayNodes);
+            metrics.gauge("overlay_edges", coordinator::getOverlayEdges);
+        } else {
+            metrics.gauge("graph_locations", () -> graphStore.current().getCsr().getNodeCount());
+            metrics.gauge("graph_edges", () -> graphStore.current().getCsr().getEdgeCount());
+            metrics.gauge("graph_version", () -> graphStore.current().getVersion());
+            metrics.gauge("graph_ingested_walks", () -> graphStore.current().getIngestedWalks());
+            metrics.gauge("writer_pending_tasks", graphStore::getPendingTasks);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(metrics, new ObjectName("org.solutions.grid:type=ServerMetrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics could not be registered with JMX: " + e.getMessage());
+        }
+        int metricsPort = config.getIntProperty("metrics.port", 0);
+        if (metricsPort > 0) {
+            try {
+                new MetricsEndpoint(metrics, metricsPort);
+                System.out.println("Metrics served on http://localhost:" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                System.out.println("Metrics endpoint could not be started on port " + metricsPort
+                        + ": " + e.getMessage());
+            }
+        }
+        return metrics;
     }
 
     public static void startServer(){
@@ -42,7 +334,7 @@ public class Server {
             while (running) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("Connection accepted: " + clientSocket);
-                Runnable task = new RequestHandler(clientSocket, graph, lock);
+                Runnable task = new RequestHandler(clientSocket, processor, scheduler);
                 executor.submit(task);
             }
         } catch (IOException e) {
@@ -51,4 +343,19 @@ public class Server {
             System.out.println(e.getMessage());
         }
     }
+
+    /**
+     * Serves all connections from one selector thread, requests are processed by a bounded pool.
+     * @param computeThreads number of threads processing requests
+     * @param computeQueue number of connections with requests that may wait for a compute thread
+     */
+    public static void startNioServer(int computeThreads, int computeQueue){
+        try {
+            new NioServer(port, processor, computeThreads, computeQueue).run();
+        } catch (IOException e) {
+            System.out.println("Exception caught when trying to listen on port "
+                    + port + " or listening for a connection");
+            System.out.println(e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package org.solutions.grid.algorithms;
+
+import org.junit.jupiter.api.Test;
+import org.solutions.grid.datastructures.CsrGraph;
+import org.solutions.grid.datastructures.EdgeChangeLog;
+import org.solutions.grid.datastructures.Graph;
+import org.solutions.grid.datastructures.GraphSnapshot;
+import org.solutions.grid.datastructures.LocationRecord;
+import org.solutions.grid.datastructures.WalkBuffer;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Repaired shortest path trees compared with a new Dijkstra search of the changed graph, on random walks
+ * over a lattice.
+ */
+class TreeRepairTest {
+    private static final int SIDE = 40;
+    /**
+     * Distance of neighbouring lattice points, locations closer than 500 are the same.
+     */
+    private static final int SPACING = 1000;
+    private static final int SEEDS = 40;
+
+    private enum Change {
+        LENGTHEN, SHORTEN, INSERT
+    }
+
+    @Test
+    void repairsLengthenedEdges() {
+        check(Change.LENGTHEN);
+    }
+
+    @Test
+    void repairsShortenedEdges() {
+        check(Change.SHORTEN);
+    }
+
+    @Test
+    void repairsInsertedEdges() {
+        check(Change.INSERT);
+    }
+
+    @Test
+    void repairsMixedChangesOverSeveralBatches() {
+        check(Change.values());
+    }
+
+    /**
+     * Changes a few edges of random graphs in one batch per kind of change and compares the repaired trees.
+     */
+    private static void check(Change... kinds) {
+        int repaired = 0;
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            Graph graph = new Graph(SIDE * SIDE);
+            WalkBuffer walks = new WalkBuffer();
+            for (int w = 0; w < 600; w++) {
+                addLatticeWalk(walks, random);
+            }
+            graph.addNewWalks(walks);
+
+            GraphSnapshot before = graph.snapshot();
+            assertTrue(before.getCsr().getNodeCount() > SIDE * SIDE / 2);
+            int originId = random.nextInt(before.getCsr().getNodeCount());
+            long[] oldDistances = dijkstra(before.getCsr(), originId);
+            long oldSum = TreeRepair.reachableSum(oldDistances);
+
+            for (Change kind : kinds) {
+                WalkBuffer batch = new WalkBuffer();
+                for (int i = 0; i < 1 + random.nextInt(5); i++) {
+                    change(graph, oldDistances, originId, kind, batch, random);
+                }
+                graph.addNewWalks(batch);
+            }
+
+            GraphSnapshot after = graph.snapshot();
+            EdgeChangeLog.EdgeChanges changes = after.changesSince(before.getVersion());
+            assertNotNull(changes, "seed " + seed);
+            TreeRepair.Result result = TreeRepair.repair(after.getCsr(), originId, oldDistances, oldSum, changes);
+            if (result == null) continue;
+            long[] expected = dijkstra(after.getCsr(), originId);
+            assertArrayEquals(expected, result.getDistances(), "seed " + seed);
+            assertEquals(TreeRepair.reachableSum(expected), result.getSum(), "seed " + seed);
+            repaired++;
+        }
+        assertTrue(repaired > SEEDS / 2, "only " + repaired + " of " + SEEDS + " trees were repaired");
+    }
+
+    /**
+     * Adds a walk changing one edge: an edge of the old shortest path tree made longer or shorter,
+     * or a new edge, half of them to a new location.
+     */
+    private static void change(Graph graph, long[] oldDistances, int originId, Change kind, WalkBuffer batch,
+                               Random random) {
+        CsrGraph csr = graph.getCsr();
+        int[] offsets = csr.getOffsets();
+        int[] targets = csr.getTargets();
+        long[] avgWeight = csr.getAvgWeight();
+        if (kind == Change.INSERT) {
+            int from = random.nextInt(csr.getNodeCount());
+            int to = random.nextInt(csr.getNodeCount());
+            if (random.nextBoolean()) {
+                addWalk(batch, location(graph, from), new int[]{(SIDE + random.nextInt(SIDE)) * SPACING, random.nextInt(SIDE) * SPACING},
+                        random.nextInt(2000));
+            } else if (from != to && csr.weight(from, to) == Long.MAX_VALUE) {
+                addWalk(batch, location(graph, from), location(graph, to), random.nextInt(200));
+            }
+            return;
+        }
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int from = random.nextInt(csr.getNodeCount());
+            if (oldDistances[from] == Long.MAX_VALUE) continue;
+            for (int e = offsets[from]; e < offsets[from + 1]; e++) {
+                int to = targets[e];
+                if (to == originId || oldDistances[from] + avgWeight[e] != oldDistances[to]) continue;
+                long length = kind == Change.LENGTHEN ? avgWeight[e] * 4 + 1 + random.nextInt(500) : 0;
+                addWalk(batch, location(graph, from), location(graph, to), (int) length);
+                return;
+            }
+        }
+    }
+
+    private static void addLatticeWalk(WalkBuffer walks, Random random) {
+        int x = random.nextInt(SIDE);
+        int y = random.nextInt(SIDE);
+        walks.beginWalk();
+        walks.addLocation(x * SPACING, y * SPACING);
+        int steps = 1 + random.nextInt(8);
+        for (int s = 0; s < steps; s++) {
+            switch (random.nextInt(4)) {
+                case 0 -> x = Math.min(SIDE - 1, x + 1);
+                case 1 -> x = Math.max(0, x - 1);
+                case 2 -> y = Math.min(SIDE - 1, y + 1);
+                default -> y = Math.max(0, y - 1);
+            }
+            walks.addLocation(x * SPACING, y * SPACING);
+            walks.addLength(1 + random.nextInt(100));
+        }
+        walks.endWalk();
+    }
+
+    private static void addWalk(WalkBuffer walks, int[] from, int[] to, int length) {
+        walks.beginWalk();
+        walks.addLocation(from[0], from[1]);
+        walks.addLocation(to[0], to[1]);
+        walks.addLength(length);
+        walks.endWalk();
+    }
+
+    private static int[] location(Graph graph, int id) {
+        LocationRecord location = graph.getLocations().get(id);
+        return new int[]{location.x(), location.y()};
+    }
+
+    private static long[] dijkstra(CsrGraph csr, int originId) {
+        SearchWorkspace workspace = SearchWorkspace.acquire();
+        try {
+            Dijkstra.search(csr, workspace, originId, -1);
+            long[] distances = new long[csr.getNodeCount()];
+            for (int i = 0; i < distances.length; i++) {
+                distances[i] = workspace.distance(i);
+            }
+            return distances;
+        } finally {
+            workspace.release();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.solutions.grid.cluster;
+
+import org.junit.jupiter.api.Test;
+import org.solutions.grid.server.Server;
+import org.solutions.grid.server.ServerComparison;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A coordinator of three shards started by {@link LocalCluster} answers like a single server.
+ */
+class ClusterComparisonIT {
+    private static final int SHARDS = 3;
+
+    @Test
+    void clusterAnswersLikeSingleServer() throws Exception {
+        int singlePort = ServerComparison.freePorts(SHARDS + 2);
+        int clusterPort = singlePort + 1;
+        Process single = ServerComparison.start("single-server", Server.class,
+                "server.port=" + singlePort);
+        Process cluster = ServerComparison.start("local-cluster", LocalCluster.class, String.valueOf(SHARDS),
+                "server.port=" + clusterPort, "cluster.shard_port=" + (clusterPort + 1),
+                /* blocks of about 5 km, so that the walked lattice spans many blocks of every shard */
+                "cluster.block_cells=8");
+        try {
+            LocalCluster.awaitListening(single, singlePort);
+            LocalCluster.awaitListening(cluster, clusterPort);
+
+            ServerComparison comparison = new ServerComparison(23, 300);
+            comparison.run(singlePort, clusterPort);
+            assertEquals(0, comparison.getMismatches(), comparison.getMismatches() + " of "
+                    + comparison.getCompared() + " responses differ, the first: " + comparison.getFirstMismatch());
+            assertTrue(comparison.getAnswered() > 500, "only " + comparison.getAnswered() + " queries answered");
+        } finally {
+            ServerComparison.stop(cluster);
+            ServerComparison.stop(single);
+        }
+    }
+}
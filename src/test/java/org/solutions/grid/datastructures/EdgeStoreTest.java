@@ -0,0 +1,121 @@
+package org.solutions.grid.datastructures;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Edges added to the store at random compared with an object per edge, as the graph kept them before.
+ */
+class EdgeStoreTest {
+
+    /**
+     * Edge as an object, the representation the store replaced.
+     */
+    private static class Edge {
+        private final int toId;
+        private long distancesSum;
+        private int edgesCounter;
+
+        private Edge(int toId, long distancesSum) {
+            this.toId = toId;
+            this.distancesSum = distancesSum;
+            this.edgesCounter = 1;
+        }
+
+        private long getAvgDistance() {
+            return distancesSum / edgesCounter;
+        }
+    }
+
+    @Test
+    void matchesEdgeObjectsWithOneShard() {
+        check(1, 1);
+    }
+
+    @Test
+    void matchesEdgeObjectsWithSeveralShards() {
+        check(4, 2);
+    }
+
+    /**
+     * Adds locations, edges and paths of edges in random order, one origin getting enough edges for its
+     * regions to grow past a chunk, and compares every edge with its object.
+     */
+    private static void check(int shards, long seed) {
+        Random random = new Random(seed);
+        EdgeStore store = new EdgeStore(shards, 16);
+        List<List<Edge>> expected = new ArrayList<>();
+        Map<Long, Integer> slots = new HashMap<>();
+        for (int l = 0; l < 150_000; l++) {
+            store.addLocation();
+            expected.add(new ArrayList<>());
+        }
+        for (int i = 0; i < 450_000; i++) {
+            if (random.nextInt(1000) == 0) {
+                store.addLocation();
+                expected.add(new ArrayList<>());
+            }
+            int locations = expected.size();
+            /* One hub gets edges to most locations, more than a chunk holds, the others a few edges each. */
+            int fromId;
+            int toId;
+            if (random.nextInt(3) == 0) {
+                fromId = shards - 1;
+                toId = random.nextInt(locations);
+            } else {
+                fromId = random.nextInt(locations);
+                toId = Math.floorMod(fromId + random.nextInt(9) - 4, locations);
+            }
+            long length = random.nextInt(8) == 0 ? 0xFFFF_FFFFL - random.nextInt(1000) : random.nextInt(5000);
+            long key = ((long) fromId << 32) | toId;
+            Integer slot = slots.get(key);
+            List<Edge> edges = expected.get(fromId);
+            if (slot == null) {
+                assertEquals(edges.size(), store.add(fromId, toId, length, 1));
+                slots.put(key, edges.size());
+                edges.add(new Edge(toId, length));
+            } else {
+                Edge edge = edges.get(slot);
+                assertEquals(edge.getAvgDistance(), store.accumulate(fromId, slot, length));
+                edge.distancesSum += length;
+                edge.edgesCounter++;
+            }
+            if (i % 100_000 == 0) {
+                compare(store, expected);
+            }
+        }
+        compare(store, expected);
+    }
+
+    private static void compare(EdgeStore store, List<List<Edge>> expected) {
+        assertEquals(expected.size(), store.getLocationCount());
+        int[] targets = new int[16];
+        long[] avgDistances = new long[16];
+        for (int fromId = 0; fromId < expected.size(); fromId++) {
+            List<Edge> edges = expected.get(fromId);
+            assertEquals(edges.size(), store.degree(fromId));
+            if (targets.length < edges.size() + 1) {
+                targets = new int[edges.size() * 2];
+                avgDistances = new long[edges.size() * 2];
+            }
+            assertEquals(edges.size() + 1, store.readTargets(fromId, targets, 1));
+            assertEquals(edges.size() + 1, store.readAvgDistances(fromId, avgDistances, 1));
+            for (int slot = 0; slot < edges.size(); slot++) {
+                Edge edge = edges.get(slot);
+                String name = "edge " + fromId + " -> " + edge.toId;
+                assertEquals(edge.toId, targets[slot + 1], name);
+                assertEquals(edge.getAvgDistance(), avgDistances[slot + 1], name);
+                assertEquals(edge.distancesSum, store.getDistancesSum(fromId, slot), name);
+                assertEquals(edge.edgesCounter, store.getEdgesCounter(fromId, slot), name);
+                assertEquals(edge.getAvgDistance(), store.getAvgDistance(fromId, slot), name);
+            }
+        }
+    }
+}
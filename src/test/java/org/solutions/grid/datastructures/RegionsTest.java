@@ -0,0 +1,82 @@
+package org.solutions.grid.datastructures;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Regions allocated and released at random must lie within their chunks and never overlap while in use.
+ */
+class RegionsTest {
+
+    @Test
+    void sizeClassHoldsUnits() {
+        assertEquals(0, Regions.sizeClass(0));
+        assertEquals(0, Regions.sizeClass(1));
+        assertEquals(1, Regions.sizeClass(2));
+        assertEquals(2, Regions.sizeClass(3));
+        assertEquals(16, Regions.sizeClass(Regions.CHUNK_SIZE));
+        assertEquals(17, Regions.sizeClass(Regions.CHUNK_SIZE + 1));
+        for (int units = 1; units < 100_000; units += 7) {
+            int size = 1 << Regions.sizeClass(units);
+            assertTrue(size >= units && size / 2 < units, "units " + units);
+        }
+    }
+
+    @Test
+    void allocatedRegionsDoNotOverlap() {
+        Random random = new Random(25);
+        Regions regions = new Regions();
+        List<int[]> live = new ArrayList<>(); /* region and size class */
+        List<int[]> released = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            if (!live.isEmpty() && random.nextInt(3) == 0) {
+                int[] region = live.remove(random.nextInt(live.size()));
+                regions.release(region[0], region[1]);
+                released.add(region);
+                continue;
+            }
+            /* Mostly small regions like rows of a few edges, a few larger than a chunk. */
+            int sizeClass = random.nextInt(50) == 0 ? 10 + random.nextInt(8) : random.nextInt(6);
+            int region = regions.allocate(sizeClass);
+            int chunk = Regions.chunk(region);
+            int position = Regions.position(region);
+            assertTrue(position + (1 << sizeClass) <= regions.getChunkSize(chunk), "region out of its chunk");
+            for (int[] other : live) {
+                if (Regions.chunk(other[0]) != chunk) continue;
+                int otherPosition = Regions.position(other[0]);
+                assertFalse(position < otherPosition + (1 << other[1]) && otherPosition < position + (1 << sizeClass),
+                        "regions overlap");
+            }
+            live.add(new int[]{region, sizeClass});
+        }
+        assertFalse(released.isEmpty());
+    }
+
+    @Test
+    void reusesReleasedRegionsOfTheSameSize() {
+        Regions regions = new Regions();
+        int first = regions.allocate(4);
+        regions.allocate(4);
+        long units = regions.getUnits();
+        regions.release(first, 4);
+        assertEquals(first, regions.allocate(4));
+        assertEquals(units, regions.getUnits());
+    }
+
+    @Test
+    void givesLargeRegionsChunksOfTheirOwn() {
+        Regions regions = new Regions();
+        regions.allocate(3);
+        int large = regions.allocate(18);
+        assertEquals(0, Regions.position(large));
+        assertEquals(1 << 18, regions.getChunkSize(Regions.chunk(large)));
+        assertEquals(Regions.CHUNK_SIZE + (1L << 18), regions.getUnits());
+    }
+}
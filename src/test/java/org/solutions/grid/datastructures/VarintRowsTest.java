@@ -0,0 +1,89 @@
+package org.solutions.grid.datastructures;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Rows decoded after random appends compared with the appended values.
+ */
+class VarintRowsTest {
+
+    @Test
+    void readsBackRowsGrowingAcrossRegionsAndChunks() {
+        Random random = new Random(25);
+        VarintRows rows = new VarintRows(4);
+        List<List<Integer>> expected = new ArrayList<>();
+        int[] bases = new int[3000];
+        for (int r = 0; r < bases.length; r++) {
+            rows.addRow();
+            expected.add(new ArrayList<>());
+            bases[r] = random.nextInt(1 << 20);
+        }
+        assertEquals(bases.length, rows.getRowCount());
+        for (int i = 0; i < 200_000; i++) {
+            /* Most appends go to a few rows, so some rows move many times and grow past a chunk. */
+            int row = random.nextInt(4) == 0 ? random.nextInt(8) : random.nextInt(bases.length);
+            List<Integer> values = expected.get(row);
+            int last = values.isEmpty() ? bases[row] : values.get(values.size() - 1);
+            int value = nextValue(random, last);
+            rows.append(row, bases[row], value);
+            values.add(value);
+            if (i % 20_000 == 0) {
+                check(rows, expected, bases);
+            }
+        }
+        check(rows, expected, bases);
+    }
+
+    @Test
+    void readsBackExtremeDifferences() {
+        VarintRows rows = new VarintRows(1);
+        rows.addRow();
+        int[] values = {Integer.MAX_VALUE, Integer.MIN_VALUE, 0, -1, Integer.MAX_VALUE, 63, -64, 64, -65,
+                8191, -8192, 8192, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int value : values) {
+            rows.append(0, 0, value);
+        }
+        int[] read = new int[values.length];
+        assertEquals(values.length, rows.read(0, 0, read, 0));
+        assertArrayEquals(values, read);
+    }
+
+    /**
+     * @return value close to the last one most of the time, as ids of neighbouring locations are,
+     *         otherwise far from it
+     */
+    private static int nextValue(Random random, int last) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt();
+            case 1:
+                return last + random.nextInt(1 << 16) - (1 << 15);
+            default:
+                return last + random.nextInt(128) - 64;
+        }
+    }
+
+    private static void check(VarintRows rows, List<List<Integer>> expected, int[] bases) {
+        int[] read = new int[16];
+        for (int row = 0; row < expected.size(); row++) {
+            List<Integer> values = expected.get(row);
+            assertEquals(values.size(), rows.size(row));
+            if (read.length < values.size() + 1) {
+                read = new int[values.size() * 2];
+            }
+            read[0] = -1;
+            assertEquals(values.size() + 1, rows.read(row, bases[row], read, 1));
+            assertEquals(-1, read[0]);
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals(values.get(i), read[i + 1], "row " + row + " value " + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.solutions.grid.replication;
+
+import org.junit.jupiter.api.Test;
+import org.solutions.grid.cluster.LocalCluster;
+import org.solutions.grid.server.Server;
+import org.solutions.grid.server.ServerComparison;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A primary with two read replicas started by {@link LocalReplicas} answers like a single server.
+ */
+class ReplicationComparisonIT {
+    private static final int REPLICAS = 2;
+
+    @Test
+    void primaryWithReplicasAnswersLikeSingleServer() throws Exception {
+        /* single server, primary, two ports per replica, metrics of the primary and of every replica */
+        int singlePort = ServerComparison.freePorts(3 + 3 * REPLICAS);
+        int primaryPort = singlePort + 1;
+        int metricsPort = primaryPort + 1 + 2 * REPLICAS;
+        Process single = ServerComparison.start("single-server", Server.class,
+                "server.port=" + singlePort);
+        Process replicated = ServerComparison.start("local-replicas", LocalReplicas.class, String.valueOf(REPLICAS),
+                "server.port=" + primaryPort, "replication.local_port=" + (primaryPort + 1),
+                "metrics.port=" + metricsPort);
+        try {
+            LocalCluster.awaitListening(single, singlePort);
+            LocalCluster.awaitListening(replicated, primaryPort);
+
+            ServerComparison comparison = new ServerComparison(24, 300);
+            comparison.run(singlePort, primaryPort);
+            assertEquals(0, comparison.getMismatches(), comparison.getMismatches() + " of "
+                    + comparison.getCompared() + " responses differ, the first: " + comparison.getFirstMismatch());
+            assertTrue(comparison.getAnswered() > 500, "only " + comparison.getAnswered() + " queries answered");
+            long forwarded = counter(metricsPort, "grid_replica_queries_total");
+            assertTrue(forwarded > comparison.getAnswered() / 4, "only " + forwarded + " queries were forwarded");
+        } finally {
+            ServerComparison.stop(replicated);
+            ServerComparison.stop(single);
+        }
+    }
+
+    /**
+     * @return value of a counter served by the metrics endpoint on the local port
+     */
+    private static long counter(int port, String name) throws IOException {
+        try (InputStream in = URI.create("http://localhost:" + port + "/metrics").toURL().openStream()) {
+            for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                if (line.startsWith(name + " ")) {
+                    return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+                }
+            }
+        }
+        throw new IOException("No " + name + " in the metrics on port " + port);
+    }
+}
@@ -0,0 +1,244 @@
+package org.solutions.grid.server;
+
+import cz.cvut.fel.esw.server.proto.*;
+import org.solutions.grid.cluster.LocalCluster;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the same seeded traffic against two servers started as processes of their own, for example a single
+ * server and a cluster coordinator, and compares every response.
+ * <p>
+ * Several connections walk a lattice of roads and query locations they have walked. They take turns, every
+ * request answered by both servers before the next one is sent, so both servers apply the walks and resets in
+ * the same order and must give the same answers.
+ */
+public class ServerComparison {
+    /**
+     * Distance of neighbouring lattice points, locations closer than 500 are the same.
+     */
+    private static final int SPACING = 1000;
+    private static final int SIDE = 60;
+    private static final int CONNECTIONS = 3;
+
+    private final long seed;
+    private final int rounds;
+    private long compared;
+    private long answered;
+    private long mismatches;
+    private String firstMismatch;
+
+    /**
+     * @param seed seed of the walks and queries
+     * @param rounds number of times every connection sends a few walks and a query
+     */
+    public ServerComparison(long seed, int rounds) {
+        this.seed = seed;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Sends the traffic to the servers listening on the local ports, a reset of the graph half way through.
+     */
+    public void run(int port, int otherPort) throws IOException {
+        Random random = new Random(seed);
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            Connection[] first = new Connection[CONNECTIONS];
+            Connection[] second = new Connection[CONNECTIONS];
+            for (int c = 0; c < CONNECTIONS; c++) {
+                first[c] = new Connection(port, sockets);
+                second[c] = new Connection(otherPort, sockets);
+            }
+            List<int[]> known = new ArrayList<>();
+            for (int round = 0; round < rounds; round++) {
+                for (int c = 0; c < CONNECTIONS; c++) {
+                    int walks = 1 + random.nextInt(5);
+                    for (int w = 0; w < walks; w++) {
+                        compare(walk(random, known), first[c], second[c]);
+                    }
+                    compare(query(random, known), first[c], second[c]);
+                }
+                if (round == rounds / 2) {
+                    compare(Request.newBuilder().setReset(Reset.newBuilder()).build(), first[0], second[0]);
+                    known.clear();
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * @return number of requests answered by both servers
+     */
+    public long getCompared() {
+        return compared;
+    }
+
+    /**
+     * @return number of queries both servers answered with the same result
+     */
+    public long getAnswered() {
+        return answered;
+    }
+
+    public long getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * @return request and responses of the first mismatch, null if there was none
+     */
+    public String getFirstMismatch() {
+        return firstMismatch;
+    }
+
+    private void compare(Request request, Connection first, Connection second) throws IOException {
+        Response response = first.call(request);
+        Response other = second.call(request);
+        compared++;
+        if (!response.equals(other)) {
+            if (mismatches++ == 0) {
+                firstMismatch = oneLine(request) + " answered " + oneLine(response) + " and " + oneLine(other);
+            }
+        } else if (!request.hasWalk() && response.getStatus() == Response.Status.OK) {
+            answered++;
+        }
+    }
+
+    private static Request walk(Random random, List<int[]> known) {
+        int x = random.nextInt(SIDE);
+        int y = random.nextInt(SIDE);
+        Walk.Builder walk = Walk.newBuilder().addLocations(location(x, y));
+        known.add(new int[]{x, y});
+        int steps = 1 + random.nextInt(10);
+        for (int s = 0; s < steps; s++) {
+            int fromX = x;
+            int fromY = y;
+            switch (random.nextInt(4)) {
+                case 0 -> x = Math.min(SIDE - 1, x + 1);
+                case 1 -> x = Math.max(0, x - 1);
+                case 2 -> y = Math.min(SIDE - 1, y + 1);
+                default -> y = Math.max(0, y - 1);
+            }
+            /* Every road has a length of its own, walks measure it with some noise. */
+            int road = Math.min(fromX, x) * 31 + Math.min(fromY, y) * 17 + (fromX != x ? 7 : 0);
+            walk.addLengths(SPACING + road % 400 + random.nextInt(50));
+            walk.addLocations(location(x, y));
+            known.add(new int[]{x, y});
+        }
+        return Request.newBuilder().setWalk(walk).build();
+    }
+
+    /**
+     * @return OneToOne query of two walked locations, a few with an unknown destination, or a OneToAll query
+     */
+    private static Request query(Random random, List<int[]> known) {
+        int[] origin = known.get(random.nextInt(known.size()));
+        if (random.nextInt(3) == 0) {
+            return Request.newBuilder().setOneToAll(OneToAll.newBuilder()
+                    .setOrigin(location(origin[0], origin[1]))).build();
+        }
+        int[] destination = random.nextInt(20) == 0 ? new int[]{-SIDE, SIDE}
+                : known.get(random.nextInt(known.size()));
+        return Request.newBuilder().setOneToOne(OneToOne.newBuilder()
+                .setOrigin(location(origin[0], origin[1]))
+                .setDestination(location(destination[0], destination[1]))).build();
+    }
+
+    private static Location location(int x, int y) {
+        return Location.newBuilder().setX(x * SPACING).setY(y * SPACING).build();
+    }
+
+    private static String oneLine(Request request) {
+        return request.getMsgCase() + " " + request.toString().trim().replaceAll("\\s+", " ");
+    }
+
+    private static String oneLine(Response response) {
+        return response.toString().trim().replaceAll("\\s+", " ");
+    }
+
+    private static class Connection {
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        private Connection(int port, List<Socket> sockets) throws IOException {
+            Socket socket = new Socket("localhost", port);
+            sockets.add(socket);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        private Response call(Request request) throws IOException {
+            byte[] frame = request.toByteArray();
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+            byte[] response = new byte[in.readInt()];
+            in.readFully(response);
+            return Response.parseFrom(response);
+        }
+    }
+
+    /**
+     * @return first of a number of consecutive local ports that are free
+     */
+    public static int freePorts(int count) throws IOException {
+        while (true) {
+            int first;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                first = probe.getLocalPort();
+            }
+            if (first + count > 65535) continue;
+            boolean free = true;
+            for (int p = first + 1; p < first + count && free; p++) {
+                try (ServerSocket ignored = new ServerSocket(p)) {
+                    /* free */
+                } catch (IOException e) {
+                    free = false;
+                }
+            }
+            if (free) return first;
+        }
+    }
+
+    /**
+     * Starts a process running the main class on the class path of this one, its output logged into
+     * {@code target/<name>.log}.
+     */
+    public static Process start(String name, Class<?> mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                ProcessHandle.current().info().command().orElse("java"), "-cp", LocalCluster.classPath(),
+                mainClass.getName()));
+        command.addAll(List.of(args));
+        Path log = Path.of("target", name + ".log");
+        Files.createDirectories(log.getParent());
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+    }
+
+    /**
+     * Stops the process together with the processes it started.
+     */
+    public static void stop(Process process) throws InterruptedException {
+        List<ProcessHandle> children = process.descendants().toList();
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+        for (ProcessHandle child : children) {
+            child.destroy();
+        }
+    }
+}